@@ -0,0 +1,96 @@
+/**
+ * Azure Active Directory Authentication Plugin for SonarQube
+ * <p>
+ * Copyright (c) 2022 Michael Johnson
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.almrangers.auth.aad;
+
+import com.microsoft.graph.models.Group;
+import com.microsoft.graph.requests.GroupCollectionPage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sonar.api.config.internal.MapSettings;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading the group names out of a transitiveMemberOf page, for users in a
+ * few, many and a very large number of groups. The page is built in memory,
+ * so only the work done by the plugin is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GroupCollectionBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    public int groupCount;
+
+    private AadGraphClient graphClient;
+    private TransitiveMemberOfResolver resolver;
+    private GroupCollectionPage page;
+
+    @Setup
+    public void setUp() {
+        AadSettings settings = new AadSettings(new MapSettings().asConfig());
+        graphClient = new AadGraphClient(settings);
+        resolver = new TransitiveMemberOfResolver(settings, graphClient, new AadMetrics(graphClient, new AadHttpTransport(settings)));
+
+        List<Group> groups = new ArrayList<>(groupCount);
+        for (int i = 0; i < groupCount; i++) {
+            Group group = new Group();
+            group.id = UUID.randomUUID().toString();
+            group.displayName = "group-" + i;
+            groups.add(group);
+        }
+        page = new GroupCollectionPage(groups, null);
+    }
+
+    @TearDown
+    public void tearDown() {
+        graphClient.stop();
+    }
+
+    @Benchmark
+    public Set<String> processMemberGroupCollection() {
+        return resolver.processMemberGroupCollection(page, Collections.emptyList(), "token");
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * Azure Active Directory Authentication Plugin for SonarQube
+ * <p>
+ * Copyright (c) 2022 Michael Johnson
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.almrangers.auth.aad;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+import com.nimbusds.jose.jwk.source.ImmutableJWKSet;
+import com.nimbusds.jose.jwk.source.JWKSource;
+import com.nimbusds.jose.proc.BadJOSEException;
+import com.nimbusds.jose.proc.SecurityContext;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sonar.api.config.internal.MapSettings;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares building a JWT processor for every ID token (the old behaviour)
+ * with the shared processor held by {@link AadIdTokenValidator}. Keys come
+ * from memory so only processor setup and token verification are measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IdTokenValidationBenchmark {
+
+    private static final String CLIENT_ID = "benchmarkClient";
+
+    private JWKSource<SecurityContext> keySource;
+    private AadIdTokenValidator validator;
+    private SignedJWT idToken;
+
+    @Setup
+    public void setUp() throws JOSEException {
+        RSAKey rsaKey = new RSAKeyGenerator(2048).keyID("benchmark").generate();
+        keySource = new ImmutableJWKSet<>(new JWKSet(rsaKey.toPublicJWK()));
+
+        MapSettings settings = new MapSettings();
+        settings.setProperty("sonar.auth.aad.clientId.secured", CLIENT_ID);
+        settings.setProperty("sonar.auth.aad.tenantId", "benchmarkTenant");
+        validator = new AadIdTokenValidator(new AadSettings(settings.asConfig()), keySource);
+
+        Date now = new Date();
+        idToken = new SignedJWT(
+            new JWSHeader.Builder(JWSAlgorithm.RS256).keyID("benchmark").build(),
+            new JWTClaimsSet.Builder()
+                .audience(CLIENT_ID)
+                .issuer("https://login.microsoftonline.com/benchmarkTenant/v2.0")
+                .issueTime(now)
+                .notBeforeTime(now)
+                .expirationTime(new Date(now.getTime() + TimeUnit.DAYS.toMillis(1)))
+                .claim("name", "Bench Mark")
+                .claim("oid", "benchmarkOid")
+                .claim("preferred_username", "bench@example.com")
+                .subject("benchmarkSubject")
+                .claim("tid", "benchmarkTenant")
+                .build());
+        idToken.sign(new RSASSASigner(rsaKey));
+    }
+
+    @Benchmark
+    public Object processorPerToken() throws BadJOSEException, JOSEException {
+        return AadTokenHelper.buildIdTokenProcessor(CLIENT_ID, keySource).process(idToken, null);
+    }
+
+    @Benchmark
+    public boolean sharedProcessor() throws BadJOSEException, JOSEException {
+        return validator.validate(idToken);
+    }
+}
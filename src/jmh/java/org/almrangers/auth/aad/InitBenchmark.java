@@ -0,0 +1,118 @@
+/**
+ * Azure Active Directory Authentication Plugin for SonarQube
+ * <p>
+ * Copyright (c) 2022 Michael Johnson
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.almrangers.auth.aad;
+
+import com.nimbusds.oauth2.sdk.AuthorizationRequest;
+import com.nimbusds.oauth2.sdk.ResponseMode;
+import com.nimbusds.oauth2.sdk.ResponseType;
+import com.nimbusds.oauth2.sdk.id.ClientID;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sonar.api.config.internal.MapSettings;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The redirect to Azure AD built by {@link AadIdentityProvider#init}, from the
+ * pre-built template, against building and serializing a full
+ * {@link AuthorizationRequest} for every redirect as init used to.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InitBenchmark {
+
+    private static final String CALLBACK_URL = "https://sonar.example.com/oauth2/callback/aad";
+
+    private AadSettings aadSettings;
+    private AadIoExecutor ioExecutor;
+    private AadHttpTransport transport;
+    private AadGraphClient graphClient;
+    private AadIdentityProvider provider;
+    private String state;
+
+    @Setup
+    public void setUp() {
+        MapSettings settings = new MapSettings();
+        settings.setProperty("sonar.auth.aad.clientId.secured", "benchmarkClient");
+        settings.setProperty("sonar.auth.aad.clientSecret.secured", "secret");
+        settings.setProperty("sonar.auth.aad.tenantId", "benchmarkTenant");
+        aadSettings = new AadSettings(settings.asConfig());
+
+        ioExecutor = new AadIoExecutor();
+        transport = new AadHttpTransport(aadSettings);
+        graphClient = new AadGraphClient(aadSettings);
+        AadMetrics metrics = new AadMetrics(graphClient, transport);
+        AadJwkSource jwkSource = new AadJwkSource(aadSettings, transport);
+        provider = new AadIdentityProvider(aadSettings, new AadIdTokenValidator(aadSettings, jwkSource),
+            new AadClientTokenManager(aadSettings, transport),
+            new AadGroupService(aadSettings, graphClient, new AadGroupCache(aadSettings),
+                new AadGroupDirectory(aadSettings, graphClient), new AadMembershipIndex(), metrics),
+            ioExecutor, transport, metrics);
+
+        // SonarQube's CSRF state is a random 64 character hex string.
+        state = (UUID.randomUUID().toString() + UUID.randomUUID()).replace("-", "");
+    }
+
+    @TearDown
+    public void tearDown() {
+        graphClient.stop();
+        transport.stop();
+        ioExecutor.stop();
+    }
+
+    @Benchmark
+    public String template() throws URISyntaxException {
+        return provider.authorizationUrl(CALLBACK_URL, state);
+    }
+
+    @Benchmark
+    public String fullRequest() throws URISyntaxException {
+        return new AuthorizationRequest(
+            new URI(aadSettings.authorizationUrl()),
+            ResponseType.CODE,
+            ResponseMode.QUERY,
+            new ClientID(aadSettings.clientId().orElse(null)),
+            new URI(CALLBACK_URL),
+            com.nimbusds.oauth2.sdk.Scope.parse("openid profile email User.Read"),
+            new com.nimbusds.oauth2.sdk.id.State(state)).toURI().toString();
+    }
+}
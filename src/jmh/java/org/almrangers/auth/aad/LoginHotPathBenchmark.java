@@ -0,0 +1,163 @@
+/**
+ * Azure Active Directory Authentication Plugin for SonarQube
+ * <p>
+ * Copyright (c) 2022 Michael Johnson
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.almrangers.auth.aad;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+import com.nimbusds.jose.proc.BadJOSEException;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.server.authentication.UserIdentity;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The CPU-bound steps of a login once Azure AD has sent the tokens back:
+ * ID token validation, reading the claims and building the SonarQube
+ * identity. Signing keys are served over HTTP by a local stub, like Azure AD
+ * would, so the key cache is exercised too.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoginHotPathBenchmark {
+
+    private static final String CLIENT_ID = "benchmarkClient";
+
+    private MockWebServer jwksServer;
+    private AadHttpTransport transport;
+    private AadJwkSource jwkSource;
+    private AadIdTokenValidator validator;
+    private SignedJWT idToken;
+    private String serializedIdToken;
+    private AadUserInfo user;
+
+    @Setup
+    public void setUp() throws IOException, JOSEException, ParseException {
+        RSAKey rsaKey = new RSAKeyGenerator(2048).keyID("benchmark").generate();
+        String jwks = new JWKSet(rsaKey.toPublicJWK()).toString();
+
+        jwksServer = new MockWebServer();
+        jwksServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return new MockResponse().setHeader("Content-Type", "application/json").setBody(jwks);
+            }
+        });
+        jwksServer.start();
+        String keysUrl = jwksServer.url("/benchmarkTenant/discovery/keys").toString();
+
+        MapSettings settings = new MapSettings();
+        settings.setProperty("sonar.auth.aad.clientId.secured", CLIENT_ID);
+        settings.setProperty("sonar.auth.aad.tenantId", "benchmarkTenant");
+        AadSettings aadSettings = new AadSettings(settings.asConfig()) {
+            @Override
+            public String jwkKeysUrl() {
+                return keysUrl;
+            }
+        };
+
+        transport = new AadHttpTransport(aadSettings);
+        jwkSource = new AadJwkSource(aadSettings, transport);
+        validator = new AadIdTokenValidator(aadSettings, jwkSource);
+
+        Date now = new Date();
+        idToken = new SignedJWT(
+            new JWSHeader.Builder(JWSAlgorithm.RS256).keyID("benchmark").build(),
+            new JWTClaimsSet.Builder()
+                .audience(CLIENT_ID)
+                .issuer("https://login.microsoftonline.com/benchmarkTenant/v2.0")
+                .issueTime(now)
+                .notBeforeTime(now)
+                .expirationTime(new Date(now.getTime() + TimeUnit.DAYS.toMillis(1)))
+                .claim("email", "bench@example.com")
+                .claim("name", "Bench Mark")
+                .claim("oid", "benchmarkOid")
+                .claim("preferred_username", "bench@example.com")
+                .subject("benchmarkSubject")
+                .claim("tid", "benchmarkTenant")
+                .claim("groups", Arrays.asList("89fb503f-134f-43cd-aaa7-f21facb2eca3", "d595c0e2-28f4-4a52-8ec5-58eab17309f8"))
+                .build());
+        idToken.sign(new RSASSASigner(rsaKey));
+        serializedIdToken = idToken.serialize();
+
+        user = new AadUserInfo(idToken);
+        user.setUserGroups(new HashSet<>(Arrays.asList("Developers", "Administrators")));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        jwkSource.stop();
+        transport.stop();
+        jwksServer.shutdown();
+    }
+
+    @Benchmark
+    public boolean validateIdToken() throws BadJOSEException, JOSEException {
+        return validator.validate(idToken);
+    }
+
+    // Starts from the serialized token, as received from the token endpoint,
+    // since a parsed token keeps its claims once they have been read.
+    @Benchmark
+    public AadUserInfo parseToken() throws ParseException {
+        return new AadUserInfo(SignedJWT.parse(serializedIdToken));
+    }
+
+    @Benchmark
+    public UserIdentity buildUserId() {
+        return user.buildUserId(true).build();
+    }
+}
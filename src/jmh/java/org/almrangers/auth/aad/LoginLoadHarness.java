@@ -0,0 +1,462 @@
+/**
+ * Azure Active Directory Authentication Plugin for SonarQube
+ * <p>
+ * Copyright (c) 2022 Michael Johnson
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.almrangers.auth.aad;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.server.authentication.OAuth2IdentityProvider;
+import org.sonar.api.server.http.HttpRequest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Signs in many users at once against a local stand-in for Azure AD and
+ * Microsoft Graph, and reports login latency and the upstream calls made per
+ * login.
+ * <p>
+ * Each login goes through {@link AadIdentityProvider#init} and the authorize
+ * endpoint to get a code, then through {@link AadIdentityProvider#callback}
+ * from one of the worker threads. The stand-in serves the authorize, token
+ * and signing key endpoints and paged transitiveMemberOf responses, with a
+ * configurable latency and error rate. Run it with:
+ * <pre>
+ * mvn -P benchmark test-compile exec:java@load-test -Daad.load.threads=64
+ * </pre>
+ * Options are read from system properties, see {@link Options}. Any
+ * {@code sonar.auth.aad.*} system property is passed on to the plugin
+ * settings, so runs with and without a feature can be compared.
+ */
+public class LoginLoadHarness {
+
+    private static final String CLIENT_ID = "loadTestClient";
+    private static final String TENANT_ID = "loadTestTenant";
+    private static final String GROUPS_PATH = "/transitiveMemberOf/microsoft.graph.group";
+
+    private final Options options;
+    private final MockWebServer server = new MockWebServer();
+    private final OkHttpClient browser = new OkHttpClient.Builder().followRedirects(false).build();
+    private final RSAKey signingKey;
+
+    private final LongAdder authorizeCalls = new LongAdder();
+    private final LongAdder tokenCalls = new LongAdder();
+    private final LongAdder keysCalls = new LongAdder();
+    private final LongAdder graphCalls = new LongAdder();
+    private final LongAdder injectedErrors = new LongAdder();
+
+    LoginLoadHarness(Options options) throws JOSEException {
+        this.options = options;
+        this.signingKey = new RSAKeyGenerator(2048).keyID("loadTest").generate();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.fromSystemProperties();
+        LoginLoadHarness harness = new LoginLoadHarness(options);
+        harness.run();
+    }
+
+    void run() throws Exception {
+        server.setDispatcher(new StandIn());
+        server.start();
+
+        MapSettings settings = new MapSettings();
+        settings.setProperty("sonar.auth.aad.enabled", true);
+        settings.setProperty("sonar.auth.aad.clientId.secured", CLIENT_ID);
+        settings.setProperty("sonar.auth.aad.clientSecret.secured", "secret");
+        settings.setProperty("sonar.auth.aad.tenantId", TENANT_ID);
+        settings.setProperty("sonar.auth.aad.enableGroupsSync", true);
+        System.getProperties().stringPropertyNames().stream()
+            .filter(name -> name.startsWith("sonar.auth.aad."))
+            .forEach(name -> settings.setProperty(name, System.getProperty(name)));
+
+        String baseUrl = server.url("/").toString();
+        String root = baseUrl.substring(0, baseUrl.length() - 1);
+        AadSettings aadSettings = new AadSettings(settings.asConfig()) {
+            @Override
+            public String authorizationUrl() {
+                return root + "/" + TENANT_ID + "/oauth2/v2.0/authorize";
+            }
+
+            @Override
+            public String authorityUrl() {
+                return root + "/" + TENANT_ID + "/oauth2/v2.0/token";
+            }
+
+            @Override
+            public String jwkKeysUrl() {
+                return root + "/" + TENANT_ID + "/discovery/keys";
+            }
+
+            @Override
+            public String getGraphURL() {
+                return root;
+            }
+        };
+
+        AadIoExecutor ioExecutor = new AadIoExecutor();
+        AadHttpTransport transport = new AadHttpTransport(aadSettings);
+        AadJwkSource jwkSource = new AadJwkSource(aadSettings, transport);
+        AadClientTokenManager clientTokenManager = new AadClientTokenManager(aadSettings, transport);
+        AadGraphClient graphClient = new AadGraphClient(aadSettings);
+        AadMetrics metrics = new AadMetrics(graphClient, transport);
+        AadGroupService groupService = new AadGroupService(aadSettings, graphClient, new AadGroupCache(aadSettings),
+            new AadGroupDirectory(aadSettings, graphClient), new AadMembershipIndex(), metrics);
+        AadIdentityProvider provider = new AadIdentityProvider(aadSettings, new AadIdTokenValidator(aadSettings, jwkSource),
+            clientTokenManager, groupService, ioExecutor, transport, metrics);
+
+        ExecutorService workers = Executors.newFixedThreadPool(options.threads);
+        try {
+            // A few logins first, so connection setup and class loading don't count.
+            runLogins(provider, workers, Math.min(options.logins, options.threads));
+            resetCounters();
+
+            long start = System.nanoTime();
+            List<LoginResult> results = runLogins(provider, workers, options.logins);
+            long elapsed = System.nanoTime() - start;
+
+            report(results, elapsed);
+            reportStages(metrics);
+        } finally {
+            workers.shutdownNow();
+            graphClient.stop();
+            clientTokenManager.stop();
+            jwkSource.stop();
+            transport.stop();
+            ioExecutor.stop();
+            server.shutdown();
+        }
+    }
+
+    private List<LoginResult> runLogins(AadIdentityProvider provider, ExecutorService workers, int count) throws Exception {
+        List<Future<LoginResult>> futures = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int user = i % options.users;
+            futures.add(workers.submit(() -> login(provider, user)));
+        }
+
+        List<LoginResult> results = new ArrayList<>(count);
+        for (Future<LoginResult> future : futures) {
+            results.add(future.get());
+        }
+        return results;
+    }
+
+    private LoginResult login(AadIdentityProvider provider, int user) throws IOException {
+        // Mocks are set up before timing starts, they are slow to create.
+        AtomicReference<String> redirect = new AtomicReference<>();
+        OAuth2IdentityProvider.InitContext initContext = mock(OAuth2IdentityProvider.InitContext.class);
+        when(initContext.generateCsrfState()).thenReturn("state");
+        when(initContext.getCallbackUrl()).thenReturn("http://localhost/oauth2/callback/aad");
+        doAnswer(invocation -> {
+            redirect.set(invocation.getArgument(0));
+            return null;
+        }).when(initContext).redirectTo(anyString());
+
+        AtomicReference<String> code = new AtomicReference<>();
+        OAuth2IdentityProvider.CallbackContext callbackContext = mock(OAuth2IdentityProvider.CallbackContext.class);
+        HttpRequest request = mock(HttpRequest.class);
+        when(request.getParameter("code")).thenAnswer(invocation -> code.get());
+        when(callbackContext.getHttpRequest()).thenReturn(request);
+        when(callbackContext.getCallbackUrl()).thenReturn("http://localhost/oauth2/callback/aad");
+
+        long initStart = System.nanoTime();
+        provider.init(initContext);
+        code.set(authorize(redirect.get(), user));
+        long callbackStart = System.nanoTime();
+
+        boolean success;
+        try {
+            provider.callback(callbackContext);
+            success = true;
+        } catch (RuntimeException e) {
+            success = false;
+        }
+        long end = System.nanoTime();
+
+        return new LoginResult(callbackStart - initStart, end - callbackStart, success);
+    }
+
+    // Plays the browser's part: follows the redirect to Azure AD and reads the code it sends back.
+    private String authorize(String authorizationUrl, int user) throws IOException {
+        HttpUrl url = HttpUrl.get(authorizationUrl).newBuilder().addQueryParameter("login_hint", "user" + user).build();
+        try (Response response = browser.newCall(new Request.Builder().url(url).build()).execute()) {
+            String location = response.header("Location");
+            return location != null ? HttpUrl.get(location).queryParameter("code") : null;
+        }
+    }
+
+    private void resetCounters() {
+        Arrays.asList(authorizeCalls, tokenCalls, keysCalls, graphCalls, injectedErrors).forEach(LongAdder::reset);
+    }
+
+    private void report(List<LoginResult> results, long elapsedNanos) {
+        long[] init = results.stream().mapToLong(result -> result.initNanos).sorted().toArray();
+        long[] callback = results.stream().mapToLong(result -> result.callbackNanos).sorted().toArray();
+        long failures = results.stream().filter(result -> !result.success).count();
+        double logins = results.size();
+
+        System.out.println();
+        System.out.println("Logins:                " + results.size() + " (" + options + ")");
+        System.out.println(String.format(Locale.ROOT, "Throughput:            %.1f logins/s",
+            logins / (elapsedNanos / 1e9)));
+        System.out.println("Failed logins:         " + failures);
+        System.out.println("Init + authorize (ms): " + percentiles(init));
+        System.out.println("Callback (ms):         " + percentiles(callback));
+        System.out.println(String.format(Locale.ROOT,
+            "Upstream calls/login:  authorize %.2f, token %.2f, keys %.2f, graph %.2f (injected errors: %d)",
+            authorizeCalls.sum() / logins, tokenCalls.sum() / logins, keysCalls.sum() / logins,
+            graphCalls.sum() / logins, injectedErrors.sum()));
+    }
+
+    // The plugin's own view of where the callback time went, warm-up included.
+    private static void reportStages(AadMetrics metrics) {
+        for (AadMetrics.Stage stage : AadMetrics.Stage.values()) {
+            AadLatencyHistogram histogram = metrics.histogram(stage);
+            System.out.println(String.format(Locale.ROOT, "  %-20s p50 <= %.0f, p95 <= %.0f, p99 <= %.0f ms (%d calls)",
+                stage, histogram.getP50Millis(), histogram.getP95Millis(), histogram.getP99Millis(), histogram.getCount()));
+        }
+        System.out.println(String.format(Locale.ROOT, "Graph: %d pages, %d groups, %d retries, cache %d hits / %d misses",
+            metrics.getGraphPages(), metrics.getGraphGroups(), metrics.getGraphRetries(),
+            metrics.getGroupCacheHits(), metrics.getGroupCacheMisses()));
+    }
+
+    private static String percentiles(long[] sortedNanos) {
+        return String.format(Locale.ROOT, "p50 %.1f, p95 %.1f, p99 %.1f, max %.1f",
+            percentile(sortedNanos, 50), percentile(sortedNanos, 95), percentile(sortedNanos, 99),
+            percentile(sortedNanos, 100));
+    }
+
+    static double percentile(long[] sortedNanos, double percentile) {
+        if (sortedNanos.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100 * sortedNanos.length) - 1;
+        return sortedNanos[Math.max(0, Math.min(index, sortedNanos.length - 1))] / 1e6;
+    }
+
+    private String idToken(String user) {
+        Date now = new Date();
+        SignedJWT idToken = new SignedJWT(
+            new JWSHeader.Builder(JWSAlgorithm.RS256).keyID("loadTest").build(),
+            new JWTClaimsSet.Builder()
+                .audience(CLIENT_ID)
+                .issuer("https://login.microsoftonline.com/" + TENANT_ID + "/v2.0")
+                .issueTime(now)
+                .notBeforeTime(now)
+                .expirationTime(new Date(now.getTime() + TimeUnit.HOURS.toMillis(1)))
+                .claim("email", user + "@example.com")
+                .claim("name", user)
+                .claim("oid", user)
+                .claim("preferred_username", user + "@example.com")
+                .subject(user)
+                .claim("tid", TENANT_ID)
+                .build());
+        try {
+            idToken.sign(new RSASSASigner(signingKey));
+        } catch (JOSEException e) {
+            throw new IllegalStateException(e);
+        }
+        return idToken.serialize();
+    }
+
+    /**
+     * Answers like Azure AD and Microsoft Graph would, after the configured latency.
+     */
+    private final class StandIn extends Dispatcher {
+
+        @Override
+        public MockResponse dispatch(RecordedRequest request) {
+            String path = request.getRequestUrl().encodedPath();
+
+            if (path.endsWith("/oauth2/v2.0/authorize")) {
+                authorizeCalls.increment();
+                String user = request.getRequestUrl().queryParameter("login_hint");
+                HttpUrl callback = HttpUrl.get(request.getRequestUrl().queryParameter("redirect_uri")).newBuilder()
+                    .addQueryParameter("code", user)
+                    .addQueryParameter("state", request.getRequestUrl().queryParameter("state"))
+                    .build();
+                return new MockResponse().setResponseCode(302).setHeader("Location", callback);
+            }
+
+            if (path.endsWith("/oauth2/v2.0/token")) {
+                tokenCalls.increment();
+                if (injectError(options.tokenErrorRate)) {
+                    return delayed(new MockResponse().setResponseCode(503));
+                }
+                HttpUrl form = HttpUrl.get("http://form/?" + request.getBody().readUtf8());
+                String body = "client_credentials".equals(form.queryParameter("grant_type"))
+                    ? "{\"access_token\":\"client\",\"token_type\":\"Bearer\",\"expires_in\":3600}"
+                    : "{\"access_token\":\"user\",\"token_type\":\"Bearer\",\"expires_in\":3600,\"id_token\":\""
+                        + idToken(form.queryParameter("code")) + "\"}";
+                return delayed(json(body));
+            }
+
+            if (path.endsWith("/discovery/keys")) {
+                keysCalls.increment();
+                return delayed(json(new JWKSet(signingKey.toPublicJWK()).toString()));
+            }
+
+            if (path.endsWith(GROUPS_PATH)) {
+                graphCalls.increment();
+                if (injectError(options.graphErrorRate)) {
+                    return delayed(new MockResponse().setResponseCode(503).setHeader("Retry-After", "0"));
+                }
+                return delayed(json(groupsPage(request.getRequestUrl())));
+            }
+
+            return new MockResponse().setResponseCode(404);
+        }
+
+        private String groupsPage(HttpUrl url) {
+            String skipToken = url.queryParameter("$skiptoken");
+            int page = skipToken != null ? Integer.parseInt(skipToken) : 1;
+
+            StringBuilder body = new StringBuilder("{");
+            if (page < options.graphPages) {
+                HttpUrl next = url.newBuilder().setQueryParameter("$skiptoken", String.valueOf(page + 1)).build();
+                body.append("\"@odata.nextLink\":\"").append(next).append("\",");
+            }
+            body.append("\"value\":[");
+            for (int i = 0; i < options.groupsPerPage; i++) {
+                if (i > 0) {
+                    body.append(',');
+                }
+                body.append("{\"id\":\"group-").append(page).append('-').append(i)
+                    .append("\",\"displayName\":\"Group ").append(page).append('-').append(i).append("\"}");
+            }
+            return body.append("]}").toString();
+        }
+
+        private boolean injectError(double rate) {
+            if (rate > 0 && ThreadLocalRandom.current().nextDouble() < rate) {
+                injectedErrors.increment();
+                return true;
+            }
+            return false;
+        }
+
+        private MockResponse delayed(MockResponse response) {
+            return response.setHeadersDelay(options.latencyMillis, TimeUnit.MILLISECONDS);
+        }
+
+        private MockResponse json(String body) {
+            return new MockResponse().setHeader("Content-Type", "application/json").setBody(body);
+        }
+    }
+
+    private static final class LoginResult {
+        private final long initNanos;
+        private final long callbackNanos;
+        private final boolean success;
+
+        private LoginResult(long initNanos, long callbackNanos, boolean success) {
+            this.initNanos = initNanos;
+            this.callbackNanos = callbackNanos;
+            this.success = success;
+        }
+    }
+
+    /**
+     * Shape of the load, from {@code aad.load.*} system properties.
+     */
+    static final class Options {
+        // Total number of logins, and how many run at the same time.
+        final int logins;
+        final int threads;
+        // Number of distinct users the logins are spread over.
+        final int users;
+        // Delay before the stand-in answers any token, keys or Graph request.
+        final long latencyMillis;
+        final int graphPages;
+        final int groupsPerPage;
+        // Share of requests answered with a 503, between 0 and 1.
+        final double graphErrorRate;
+        final double tokenErrorRate;
+
+        private Options(int logins, int threads, int users, long latencyMillis, int graphPages, int groupsPerPage,
+            double graphErrorRate, double tokenErrorRate) {
+            this.logins = logins;
+            this.threads = threads;
+            this.users = users;
+            this.latencyMillis = latencyMillis;
+            this.graphPages = graphPages;
+            this.groupsPerPage = groupsPerPage;
+            this.graphErrorRate = graphErrorRate;
+            this.tokenErrorRate = tokenErrorRate;
+        }
+
+        static Options fromSystemProperties() {
+            return new Options(
+                Integer.getInteger("aad.load.logins", 2000),
+                Integer.getInteger("aad.load.threads", 32),
+                Math.max(1, Integer.getInteger("aad.load.users", 500)),
+                Long.getLong("aad.load.latencyMs", 20),
+                Math.max(1, Integer.getInteger("aad.load.graphPages", 1)),
+                Integer.getInteger("aad.load.groupsPerPage", 100),
+                Double.parseDouble(System.getProperty("aad.load.graphErrorRate", "0")),
+                Double.parseDouble(System.getProperty("aad.load.tokenErrorRate", "0")));
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                "%d threads, %d users, %d ms latency, %d Graph pages of %d groups, %.0f%% Graph errors, %.0f%% token errors",
+                threads, users, latencyMillis, graphPages, groupsPerPage, graphErrorRate * 100, tokenErrorRate * 100);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/**
+ * Azure Active Directory Authentication Plugin for SonarQube
+ * <p>
+ * Copyright (c) 2022 Michael Johnson
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.almrangers.auth.aad;
+
+import org.sonar.api.utils.System2;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stops calling a remote service that keeps failing.
+ * <p>
+ * After the configured number of failures in a row the circuit opens, and
+ * callers are turned away straight away instead of each waiting for their own
+ * timeout. Once the open duration has passed, a single call is let through to
+ * probe the service: if it succeeds the circuit closes again, if it fails the
+ * circuit stays open for another open duration. A threshold of 0 disables the
+ * breaker.
+ */
+public class AadCircuitBreaker {
+
+    private static final Logger LOGGER = Loggers.get(AadCircuitBreaker.class);
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String name;
+    private final AadSettings settings;
+    private final System2 system2;
+    private final LongAdder rejected = new LongAdder();
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+    private boolean probing;
+    private long probeStartedAt;
+
+    AadCircuitBreaker(String name, AadSettings settings) {
+        this(name, settings, System2.INSTANCE);
+    }
+
+    AadCircuitBreaker(String name, AadSettings settings, System2 system2) {
+        this.name = name;
+        this.settings = settings;
+        this.system2 = system2;
+    }
+
+    /**
+     * Returns whether a call may be made now. A caller that is let through must
+     * report the outcome with {@link #recordSuccess()} or {@link #recordFailure()}.
+     */
+    public synchronized boolean allowRequest() {
+        if (settings.circuitBreakerThreshold() == 0 || state == State.CLOSED) {
+            return true;
+        }
+
+        long now = system2.now();
+        long openDuration = TimeUnit.SECONDS.toMillis(settings.circuitBreakerOpenDuration());
+        if (state == State.OPEN && now - openedAt >= openDuration) {
+            state = State.HALF_OPEN;
+            LOGGER.info("{} circuit breaker is half-open, probing with the next call", name);
+        }
+
+        // A probe whose caller never reported back is given up on after the
+        // open duration, so the breaker can't get stuck half-open.
+        if (state == State.HALF_OPEN && (!probing || now - probeStartedAt >= openDuration)) {
+            probing = true;
+            probeStartedAt = now;
+            return true;
+        }
+
+        rejected.increment();
+        return false;
+    }
+
+    public synchronized void recordSuccess() {
+        if (state != State.CLOSED) {
+            LOGGER.info("{} circuit breaker is closed, {} is reachable again", name, name);
+        }
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        probing = false;
+    }
+
+    public synchronized void recordFailure() {
+        consecutiveFailures++;
+        probing = false;
+
+        int threshold = settings.circuitBreakerThreshold();
+        if (threshold == 0) {
+            return;
+        }
+        if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= threshold)) {
+            if (state == State.CLOSED) {
+                LOGGER.warn("{} circuit breaker is open after {} failures in a row, calls are skipped for {} seconds",
+                    name, consecutiveFailures, settings.circuitBreakerOpenDuration());
+            }
+            state = State.OPEN;
+            openedAt = system2.now();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    // When the circuit last opened, in milliseconds since the epoch. 0 if it never did.
+    public synchronized long getOpenedAt() {
+        return openedAt;
+    }
+
+    // Calls turned away since the server started.
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+}
@@ -0,0 +1,208 @@
+/**
+ * Azure Active Directory Authentication Plugin for SonarQube
+ * <p>
+ * Copyright (c) 2022 Michael Johnson
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.almrangers.auth.aad;
+
+import com.nimbusds.oauth2.sdk.AccessTokenResponse;
+import com.nimbusds.oauth2.sdk.ClientCredentialsGrant;
+import com.nimbusds.oauth2.sdk.TokenErrorResponse;
+import com.nimbusds.oauth2.sdk.TokenRequest;
+import com.nimbusds.oauth2.sdk.TokenResponse;
+import com.nimbusds.oauth2.sdk.auth.ClientSecretBasic;
+import com.nimbusds.oauth2.sdk.token.AccessToken;
+import com.nimbusds.oauth2.sdk.token.BearerAccessToken;
+import org.sonar.api.Startable;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import java.io.IOException;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the app-only Microsoft Graph token used for group sync when the client
+ * credential flow is enabled.
+ * <p>
+ * The token is reused until shortly before it expires. Within the last few
+ * minutes of its lifetime a new one is requested in the background, so logins
+ * keep using the current token instead of waiting on the token endpoint. No
+ * matter how many logins ask at once, only one token request is ever in flight.
+ */
+@ServerSide
+public class AadClientTokenManager implements Startable {
+
+    private static final Logger LOGGER = Loggers.get(AadClientTokenManager.class);
+
+    // Start looking for a new token this long before the current one expires.
+    private static final long REFRESH_AHEAD = TimeUnit.MINUTES.toMillis(5);
+
+    // Never hand out a token that expires sooner than this.
+    private static final long EXPIRY_SKEW = TimeUnit.SECONDS.toMillis(30);
+
+    // Used when the token response doesn't say how long the token is valid.
+    private static final long DEFAULT_LIFETIME = TimeUnit.MINUTES.toMillis(10);
+
+    private final AadSettings settings;
+    private final AadHttpTransport transport;
+    private final ExecutorService refreshExecutor;
+
+    private final SingleFlight<AadSettings.Snapshot, CachedToken> refreshes = new SingleFlight<>();
+
+    private volatile CachedToken cachedToken;
+
+    public AadClientTokenManager(AadSettings settings, AadHttpTransport transport) {
+        this.settings = settings;
+        this.transport = transport;
+        this.refreshExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "aad-client-token-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void start() {
+        // The token is requested lazily by the first login that needs it.
+    }
+
+    @Override
+    public void stop() {
+        refreshExecutor.shutdownNow();
+    }
+
+    /**
+     * Returns a client credential token for Microsoft Graph. If AAD refuses to
+     * issue one, the error is logged and an empty token is returned so the
+     * login can carry on without group information.
+     */
+    public AccessToken getAccessToken() throws IOException {
+        return findAccessToken().orElseGet(BearerAccessToken::new); // Empty access token so we pass _something_.
+    }
+
+    /**
+     * Returns a client credential token for Microsoft Graph, or nothing if AAD
+     * refused to issue one. The error is logged.
+     */
+    public Optional<AccessToken> findAccessToken() throws IOException {
+        // A token is only reused for the exact same app registration and endpoints.
+        AadSettings.Snapshot snapshot = settings.snapshot();
+        long now = System.currentTimeMillis();
+
+        CachedToken token = cachedToken;
+        if (token != null && token.snapshot == snapshot && now < token.expiresAt - EXPIRY_SKEW) {
+            if (now >= token.refreshAt) {
+                scheduleRefresh(snapshot);
+            }
+            return Optional.of(token.accessToken);
+        }
+
+        token = refresh(snapshot);
+        return token != null ? Optional.of(token.accessToken) : Optional.empty();
+    }
+
+    /**
+     * Returns when the cached client token expires, in milliseconds since the
+     * epoch, or nothing if no token has been issued yet.
+     */
+    public OptionalLong tokenExpiresAt() {
+        CachedToken token = cachedToken;
+        return token != null ? OptionalLong.of(token.expiresAt) : OptionalLong.empty();
+    }
+
+    private CachedToken refresh(AadSettings.Snapshot snapshot) throws IOException {
+        try {
+            return scheduleRefresh(snapshot).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while requesting a client token", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Couldn't request a client token: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    // Only one token request is ever in flight. Concurrent callers share its result.
+    private CompletableFuture<CachedToken> scheduleRefresh(AadSettings.Snapshot snapshot) {
+        return refreshes.submit(snapshot, () -> {
+            CachedToken token = requestToken(snapshot);
+            if (token != null) {
+                cachedToken = token;
+            }
+            return token;
+        }, refreshExecutor);
+    }
+
+    private CachedToken requestToken(AadSettings.Snapshot snapshot) throws Exception {
+        TokenRequest clientRequest = new TokenRequest(
+            snapshot.authorityUri(),
+            new ClientSecretBasic(snapshot.clientId(), snapshot.clientSecret()),
+            new ClientCredentialsGrant(),
+            snapshot.graphScope());
+
+        // Parse and check response
+        TokenResponse clientResponse = TokenResponse.parse(transport.send(clientRequest.toHTTPRequest()));
+
+        // Client token request failed, log the error
+        if (!clientResponse.indicatesSuccess()) {
+            TokenErrorResponse errorResponse = clientResponse.toErrorResponse();
+            LOGGER.error("Issue in getting client token for group sync. Returned error: "
+                + errorResponse.getErrorObject().getDescription());
+            return null;
+        }
+
+        AccessTokenResponse successResponse = clientResponse.toSuccessResponse();
+        AccessToken accessToken = successResponse.getTokens().getAccessToken();
+
+        long issuedAt = System.currentTimeMillis();
+        long lifetime = accessToken.getLifetime() > 0 ? TimeUnit.SECONDS.toMillis(accessToken.getLifetime()) : DEFAULT_LIFETIME;
+        long expiresAt = issuedAt + lifetime;
+        long refreshAt = expiresAt - Math.min(REFRESH_AHEAD, lifetime / 2);
+
+        LOGGER.debug("Got a new client token for group sync, valid for {} seconds", TimeUnit.MILLISECONDS.toSeconds(lifetime));
+        return new CachedToken(snapshot, accessToken, expiresAt, refreshAt);
+    }
+
+    private static final class CachedToken {
+        private final AadSettings.Snapshot snapshot;
+        private final AccessToken accessToken;
+        private final long expiresAt;
+        private final long refreshAt;
+
+        private CachedToken(AadSettings.Snapshot snapshot, AccessToken accessToken, long expiresAt, long refreshAt) {
+            this.snapshot = snapshot;
+            this.accessToken = accessToken;
+            this.expiresAt = expiresAt;
+            this.refreshAt = refreshAt;
+        }
+    }
+}
@@ -0,0 +1,266 @@
+/**
+ * Azure Active Directory Authentication Plugin for SonarQube
+ * <p>
+ * Copyright (c) 2022 Michael Johnson
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.almrangers.auth.aad;
+
+import com.microsoft.graph.authentication.IAuthenticationProvider;
+import com.microsoft.graph.core.ClientException;
+import com.microsoft.graph.http.GraphServiceException;
+import com.microsoft.graph.httpcore.HttpClients;
+import com.microsoft.graph.httpcore.RetryHandler;
+import com.microsoft.graph.requests.GraphServiceClient;
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import org.sonar.api.Startable;
+import org.sonar.api.server.ServerSide;
+import reactor.util.annotation.NonNull;
+
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * The single Microsoft Graph client used by the plugin.
+ * <p>
+ * All Graph calls share one OkHttp client, so connections to the Graph endpoint
+ * are pooled, kept alive between logins and multiplexed over HTTP/2. Requests
+ * use the same timeouts as the Azure AD requests, and throttled requests are
+ * retried by {@link AadGraphRetryHandler}. Each login brings its own
+ * access token, which is handed to the authentication provider for the
+ * duration of {@link #call(String, Function)}. Connection use is counted per
+ * host, see {@link #getHostStats()}.
+ */
+@ServerSide
+public class AadGraphClient implements Startable, AadConnectionsMXBean {
+
+    static final String GRAPH_API_VERSION = "/v1.0";
+
+    // Idle connections kept around for the next logins, and how long they are kept.
+    private static final int MAX_IDLE_CONNECTIONS = 10;
+    private static final long KEEP_ALIVE_MINUTES = 5;
+
+    private static final ThreadLocal<String> CURRENT_TOKEN = new ThreadLocal<>();
+
+    // Set while guarded work runs on the thread, see guarded().
+    private static final ThreadLocal<Boolean> GUARDED = new ThreadLocal<>();
+
+    private final ConcurrentMap<String, AadHostStats> hostStats = new ConcurrentHashMap<>();
+    private final AadSettings settings;
+    private final AadGraphRetryHandler retryHandler;
+    private final AadCircuitBreaker circuitBreaker;
+    private final AadRateLimiter rateLimiter;
+    private final OkHttpClient httpClient;
+
+    private volatile ServiceClient serviceClient;
+
+    public AadGraphClient(AadSettings settings) {
+        this.settings = settings;
+
+        IAuthenticationProvider graphAuthProvider = new IAuthenticationProvider() {
+            @NonNull
+            @Override
+            public CompletableFuture<String> getAuthorizationTokenAsync(URL requestUrl) {
+                return CompletableFuture.completedFuture(CURRENT_TOKEN.get());
+            }
+        };
+
+        this.retryHandler = new AadGraphRetryHandler(settings);
+        this.circuitBreaker = new AadCircuitBreaker("Microsoft Graph", settings);
+        this.rateLimiter = new AadRateLimiter(settings);
+
+        OkHttpClient.Builder builder = HttpClients.createDefault(graphAuthProvider).newBuilder();
+        // Our retry handler takes the place of the SDK's, after authentication.
+        builder.interceptors().replaceAll(interceptor -> interceptor instanceof RetryHandler ? retryHandler : interceptor);
+
+        this.httpClient = builder
+            .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+            .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+            .eventListenerFactory(AadHostStats.recordingInto(hostStats))
+            .build();
+    }
+
+    @Override
+    public void start() {
+        // Connections are opened lazily by the first Graph call.
+    }
+
+    @Override
+    public void stop() {
+        httpClient.dispatcher().executorService().shutdown();
+        httpClient.connectionPool().evictAll();
+    }
+
+    /**
+     * Runs Graph requests on behalf of the given access token. Every request
+     * made by {@code call} on the calling thread, including follow-up page
+     * requests, is authenticated with that token.
+     */
+    public <T> T call(String accessToken, Function<GraphServiceClient<Request>, T> call) {
+        CURRENT_TOKEN.set(accessToken);
+        try {
+            return call.apply(serviceClient());
+        } finally {
+            CURRENT_TOKEN.remove();
+        }
+    }
+
+    /**
+     * Runs Graph work made at login once the shared rate limit lets it
+     * through, unless the circuit breaker is open. Throttling, server errors
+     * and network failures count as failures for the circuit breaker, any
+     * other answer shows that Graph is up.
+     * <p>
+     * Guarded work started by other guarded work, such as a group name lookup
+     * made during a group lookup, takes its own permit but is reported to the
+     * circuit breaker as part of the outer work.
+     *
+     * @param what describes the work in the error message
+     * @throws AadGroupsUnavailableException if the rate limit or the circuit
+     *                                       breaker turned the work away
+     */
+    public <T> T guarded(String what, Supplier<T> work) {
+        try {
+            if (!rateLimiter.tryAcquire()) {
+                throw new AadGroupsUnavailableException("Too many Microsoft Graph requests, skipped " + what, null);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ClientException("Interrupted while waiting to call Microsoft Graph for " + what, e);
+        }
+
+        if (GUARDED.get() != null) {
+            return work.get();
+        }
+
+        if (!circuitBreaker.allowRequest()) {
+            throw new AadGroupsUnavailableException("Microsoft Graph circuit breaker is open, skipped " + what, null);
+        }
+
+        GUARDED.set(Boolean.TRUE);
+        try {
+            T result = work.get();
+            circuitBreaker.recordSuccess();
+            return result;
+        } catch (RuntimeException e) {
+            if (e instanceof GraphServiceException && !isOutage(((GraphServiceException) e).getResponseCode())) {
+                circuitBreaker.recordSuccess();
+            } else {
+                circuitBreaker.recordFailure();
+            }
+            throw e;
+        } finally {
+            GUARDED.remove();
+        }
+    }
+
+    // Answers that say nothing about the request itself, only about Graph.
+    static boolean isOutage(int responseCode) {
+        return responseCode >= 500 || AadGraphRetryHandler.isRetryable(responseCode);
+    }
+
+    GraphServiceClient<Request> serviceClient() {
+        String serviceRoot = settings.snapshot().graphUrl() + GRAPH_API_VERSION;
+
+        int connectTimeout = settings.connectTimeout();
+        int readTimeout = settings.readTimeout();
+        int callTimeout = settings.callbackTimeout();
+
+        ServiceClient current = serviceClient;
+        if (current == null || !current.serviceRoot.equals(serviceRoot)
+            || !current.hasTimeouts(connectTimeout, readTimeout, callTimeout)) {
+            GraphServiceClient<Request> graphClient = GraphServiceClient
+                .builder()
+                .httpClient(AadHttpTransport.withTimeouts(httpClient, connectTimeout, readTimeout, callTimeout))
+                .buildClient();
+            graphClient.setServiceRoot(serviceRoot);
+
+            current = new ServiceClient(serviceRoot, connectTimeout, readTimeout, callTimeout, graphClient);
+            serviceClient = current;
+        }
+
+        return current.graphClient;
+    }
+
+    /**
+     * Connection use per host since the server started, by host name.
+     */
+    @Override
+    public Map<String, AadHostStats> getHostStats() {
+        return Collections.unmodifiableMap(new TreeMap<>(hostStats));
+    }
+
+    OkHttpClient httpClient() {
+        return httpClient;
+    }
+
+    AadGraphRetryHandler retryHandler() {
+        return retryHandler;
+    }
+
+    /**
+     * The circuit breaker guarding Graph calls made at login.
+     */
+    public AadCircuitBreaker circuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * The rate limit shared by all Graph calls.
+     */
+    public AadRateLimiter rateLimiter() {
+        return rateLimiter;
+    }
+
+    private static final class ServiceClient {
+        private final String serviceRoot;
+        private final int connectTimeout;
+        private final int readTimeout;
+        private final int callTimeout;
+        private final GraphServiceClient<Request> graphClient;
+
+        private ServiceClient(String serviceRoot, int connectTimeout, int readTimeout, int callTimeout,
+            GraphServiceClient<Request> graphClient) {
+            this.serviceRoot = serviceRoot;
+            this.connectTimeout = connectTimeout;
+            this.readTimeout = readTimeout;
+            this.callTimeout = callTimeout;
+            this.graphClient = graphClient;
+        }
+
+        private boolean hasTimeouts(int connectTimeout, int readTimeout, int callTimeout) {
+            return this.connectTimeout == connectTimeout && this.readTimeout == readTimeout && this.callTimeout == callTimeout;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * Azure Active Directory Authentication Plugin for SonarQube
+ * <p>
+ * Copyright (c) 2022 Michael Johnson
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.almrangers.auth.aad;
+
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Retries Microsoft Graph requests that were throttled or hit a busy service.
+ * <p>
+ * Replaces the retry handler of the Graph SDK, whose delays aren't bounded by
+ * anything the login can afford. A 429, 503 or 504 response is retried up to
+ * the configured number of times. The wait is the one asked for by Graph in
+ * {@code Retry-After}, or an exponential backoff with jitter when there is
+ * none, so that throttled logins don't all come back at the same moment. A
+ * request never waits past the group lookup timeout: when the next wait
+ * doesn't fit, the last response is returned as it is. Requests made for one
+ * group lookup, see {@link #withDeadline(Long, Supplier)}, share a single
+ * deadline, so a lookup of many pages doesn't get the timeout once per page.
+ */
+class AadGraphRetryHandler implements Interceptor {
+
+    static final int TOO_MANY_REQUESTS = 429;
+    static final int SERVICE_UNAVAILABLE = 503;
+    static final int GATEWAY_TIMEOUT = 504;
+
+    // First backoff delay, doubled for every retry up to the maximum.
+    static final long BASE_DELAY_MILLIS = 500;
+    static final long MAX_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(8);
+
+    // Deadline of the group lookup the current thread is working for, in System.nanoTime() terms.
+    private static final ThreadLocal<Long> LOOKUP_DEADLINE = new ThreadLocal<>();
+
+    private final AadSettings settings;
+    private final LongAdder retries = new LongAdder();
+
+    AadGraphRetryHandler(AadSettings settings) {
+        this.settings = settings;
+    }
+
+    static boolean isRetryable(int responseCode) {
+        return responseCode == TOO_MANY_REQUESTS || responseCode == SERVICE_UNAVAILABLE || responseCode == GATEWAY_TIMEOUT;
+    }
+
+    /**
+     * Runs a lookup whose Graph requests, retries included, must all be done
+     * by the given deadline, as returned by {@link System#nanoTime()}. A null
+     * deadline leaves every request to its own timeout.
+     */
+    static <T> T withDeadline(Long deadline, Supplier<T> lookup) {
+        Long outerDeadline = LOOKUP_DEADLINE.get();
+        if (deadline == null) {
+            LOOKUP_DEADLINE.remove();
+        } else {
+            LOOKUP_DEADLINE.set(deadline);
+        }
+        try {
+            return lookup.get();
+        } finally {
+            if (outerDeadline == null) {
+                LOOKUP_DEADLINE.remove();
+            } else {
+                LOOKUP_DEADLINE.set(outerDeadline);
+            }
+        }
+    }
+
+    // Deadline of the lookup running on this thread, null outside of a lookup.
+    static Long lookupDeadline() {
+        return LOOKUP_DEADLINE.get();
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        Long lookupDeadline = LOOKUP_DEADLINE.get();
+        long deadline = lookupDeadline != null
+            ? lookupDeadline
+            : System.nanoTime() + TimeUnit.SECONDS.toNanos(settings.groupSyncTimeout());
+        int maxRetries = settings.graphMaxRetries();
+
+        Response response = chain.proceed(request);
+        for (int retry = 1; retry <= maxRetries && isRetryable(response.code()) && canReplay(request); retry++) {
+            long delay = delayMillis(response, retry);
+            if (System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay) >= deadline) {
+                break;
+            }
+
+            response.close();
+            sleep(delay);
+            retries.increment();
+            response = chain.proceed(request);
+        }
+        return response;
+    }
+
+    // Number of requests sent again since the server started.
+    long retryCount() {
+        return retries.sum();
+    }
+
+    static long delayMillis(Response response, int retry) {
+        Long retryAfter = retryAfterMillis(response.header("Retry-After"));
+        if (retryAfter != null) {
+            return retryAfter;
+        }
+
+        // Half of the delay is fixed, the other half random.
+        long backoff = Math.min(MAX_DELAY_MILLIS, BASE_DELAY_MILLIS << Math.min(retry - 1, 16));
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+
+    // Retry-After is either a number of seconds or an HTTP date.
+    static Long retryAfterMillis(String retryAfter) {
+        if (retryAfter == null || retryAfter.trim().isEmpty()) {
+            return null;
+        }
+        String value = retryAfter.trim();
+        try {
+            return TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(value)));
+        } catch (NumberFormatException e) {
+            // Not a number, try a date
+        }
+        try {
+            Instant retryAt = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+            return Math.max(0, retryAt.toEpochMilli() - System.currentTimeMillis());
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    private static boolean canReplay(Request request) {
+        return request.body() == null || !request.body().isOneShot();
+    }
+
+    // The login deadline interrupts the lookup, which must stop waiting too.
+    private static void sleep(long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry a Microsoft Graph request");
+        }
+    }
+}
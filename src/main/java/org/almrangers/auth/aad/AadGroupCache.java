@@ -0,0 +1,122 @@
+/**
+ * Azure Active Directory Authentication Plugin for SonarQube
+ * <p>
+ * Copyright (c) 2022 Michael Johnson
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.almrangers.auth.aad;
+
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.System2;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory cache of resolved group memberships, keyed by tenant and user OID.
+ * <p>
+ * Entries are used as-is while they are younger than the configured TTL. Older
+ * entries are not dropped: they are kept as a fallback for when Graph can't be
+ * reached. The number of entries is bounded, and the least recently used user
+ * is evicted first.
+ */
+@ServerSide
+public class AadGroupCache {
+
+    private final AadSettings settings;
+    private final System2 system2;
+
+    // Access-ordered, so the eldest entry is always the least recently used one.
+    private final Map<String, CachedGroups> entries;
+
+    public AadGroupCache(AadSettings settings) {
+        this(settings, System2.INSTANCE);
+    }
+
+    AadGroupCache(AadSettings settings, System2 system2) {
+        this.settings = settings;
+        this.system2 = system2;
+        this.entries = new LinkedHashMap<String, CachedGroups>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedGroups> eldest) {
+                return size() > settings.groupCacheMaxEntries();
+            }
+        };
+    }
+
+    /**
+     * Returns the cached groups of a user if they are younger than the TTL.
+     */
+    public Optional<Set<String>> getFresh(String tenantId, String userOid) {
+        long maxAge = TimeUnit.MINUTES.toMillis(settings.groupCacheTtl());
+
+        return lookup(tenantId, userOid)
+            .filter(cached -> system2.now() - cached.loadedAt < maxAge)
+            .map(cached -> cached.groups);
+    }
+
+    /**
+     * Returns the cached groups of a user, however old they are.
+     */
+    public Optional<Set<String>> getStale(String tenantId, String userOid) {
+        return lookup(tenantId, userOid).map(cached -> cached.groups);
+    }
+
+    public void put(String tenantId, String userOid, Set<String> groups) {
+        CachedGroups cached = new CachedGroups(Collections.unmodifiableSet(new HashSet<>(groups)), system2.now());
+
+        synchronized (entries) {
+            entries.put(key(tenantId, userOid), cached);
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private Optional<CachedGroups> lookup(String tenantId, String userOid) {
+        synchronized (entries) {
+            return Optional.ofNullable(entries.get(key(tenantId, userOid)));
+        }
+    }
+
+    private static String key(String tenantId, String userOid) {
+        return tenantId + '/' + userOid;
+    }
+
+    private static final class CachedGroups {
+        private final Set<String> groups;
+        private final long loadedAt;
+
+        private CachedGroups(Set<String> groups, long loadedAt) {
+            this.groups = groups;
+            this.loadedAt = loadedAt;
+        }
+    }
+}
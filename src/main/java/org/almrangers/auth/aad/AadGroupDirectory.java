@@ -0,0 +1,196 @@
+/**
+ * Azure Active Directory Authentication Plugin for SonarQube
+ * <p>
+ * Copyright (c) 2022 Michael Johnson
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.almrangers.auth.aad;
+
+import com.microsoft.graph.models.DirectoryObject;
+import com.microsoft.graph.models.DirectoryObjectGetByIdsParameterSet;
+import com.microsoft.graph.models.Group;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.System2;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Maps AAD group object IDs to their display names.
+ * <p>
+ * Names are looked up in Graph in batches and kept in memory, so once the
+ * groups of an organisation have been seen, resolving the groups claim of an
+ * ID token doesn't need any Graph call at all. IDs Graph doesn't know as groups
+ * are remembered too, so they aren't asked for on every login.
+ */
+@ServerSide
+public class AadGroupDirectory {
+
+    // Largest number of IDs Graph accepts in one getByIds call.
+    static final int MAX_IDS_PER_REQUEST = 1000;
+
+    private final AadSettings settings;
+    private final AadGraphClient graphClient;
+    private final System2 system2;
+
+    // Access-ordered, so the eldest entry is always the least recently used one.
+    private final Map<String, CachedName> names;
+
+    public AadGroupDirectory(AadSettings settings, AadGraphClient graphClient) {
+        this(settings, graphClient, System2.INSTANCE);
+    }
+
+    AadGroupDirectory(AadSettings settings, AadGraphClient graphClient, System2 system2) {
+        this.settings = settings;
+        this.graphClient = graphClient;
+        this.system2 = system2;
+        this.names = new LinkedHashMap<String, CachedName>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedName> eldest) {
+                return size() > settings.groupCacheMaxEntries();
+            }
+        };
+    }
+
+    /**
+     * Returns the display names of the given groups. IDs that aren't in the
+     * cache are looked up in Graph with the given token.
+     */
+    public Set<String> getDisplayNames(Collection<String> groupIds, String accessToken) {
+        return new HashSet<>(getNames(groupIds, accessToken).values());
+    }
+
+    /**
+     * Returns the display names of the given groups, keyed by group ID. IDs
+     * that don't belong to a group are left out.
+     *
+     * @throws AadGroupsUnavailableException if names had to be looked up and
+     *                                       the Graph rate limit or circuit
+     *                                       breaker didn't allow it
+     */
+    public Map<String, String> getNames(Collection<String> groupIds, String accessToken) {
+        long maxAge = maxAge();
+        long now = system2.now();
+
+        Map<String, String> resolved = new HashMap<>();
+        List<String> unknownIds = new ArrayList<>();
+
+        synchronized (names) {
+            for (String groupId : groupIds) {
+                CachedName cached = names.get(groupId);
+                if (cached != null && now - cached.loadedAt < maxAge) {
+                    if (cached.displayName != null) {
+                        resolved.put(groupId, cached.displayName);
+                    }
+                } else {
+                    unknownIds.add(groupId);
+                }
+            }
+        }
+
+        if (!unknownIds.isEmpty()) {
+            Map<String, String> loaded = fetchNames(unknownIds, accessToken);
+            long loadedAt = system2.now();
+
+            synchronized (names) {
+                for (String groupId : unknownIds) {
+                    String displayName = loaded.get(groupId);
+                    names.put(groupId, new CachedName(displayName, loadedAt));
+                    if (displayName != null) {
+                        resolved.put(groupId, displayName);
+                    }
+                }
+            }
+        }
+
+        return resolved;
+    }
+
+    /**
+     * Records a group name learned some other way, so it doesn't have to be
+     * looked up again.
+     */
+    public void put(String groupId, String displayName) {
+        CachedName cached = new CachedName(displayName, system2.now());
+
+        synchronized (names) {
+            names.put(groupId, cached);
+        }
+    }
+
+    // How long a group name is trusted, in milliseconds.
+    long maxAge() {
+        return TimeUnit.MINUTES.toMillis(settings.groupNameCacheTtl());
+    }
+
+    public int size() {
+        synchronized (names) {
+            return names.size();
+        }
+    }
+
+    private Map<String, String> fetchNames(List<String> groupIds, String accessToken) {
+        return graphClient.guarded("the group name lookup", () -> graphClient.call(accessToken, graphServiceClient -> {
+            Map<String, String> loaded = new HashMap<>();
+
+            for (int from = 0; from < groupIds.size(); from += MAX_IDS_PER_REQUEST) {
+                List<String> batch = groupIds.subList(from, Math.min(from + MAX_IDS_PER_REQUEST, groupIds.size()));
+
+                List<DirectoryObject> objects = graphServiceClient
+                    .directoryObjects()
+                    .getByIds(DirectoryObjectGetByIdsParameterSet.newBuilder()
+                        .withIds(new ArrayList<>(batch))
+                        .withTypes(Collections.singletonList("group"))
+                        .build())
+                    .buildRequest()
+                    .post()
+                    .getCurrentPage();
+
+                for (DirectoryObject object : objects) {
+                    if (object instanceof Group && object.id != null && ((Group) object).displayName != null) {
+                        loaded.put(object.id, ((Group) object).displayName);
+                    }
+                }
+            }
+
+            return loaded;
+        }));
+    }
+
+    private static final class CachedName {
+        private final String displayName;
+        private final long loadedAt;
+
+        private CachedName(String displayName, long loadedAt) {
+            this.displayName = displayName;
+            this.loadedAt = loadedAt;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/**
+ * Azure Active Directory Authentication Plugin for SonarQube
+ * <p>
+ * Copyright (c) 2022 Michael Johnson
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.almrangers.auth.aad;
+
+import com.microsoft.graph.core.ClientException;
+import com.microsoft.graph.http.GraphServiceException;
+import com.nimbusds.oauth2.sdk.token.AccessToken;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Resolves the SonarQube groups of a user from their AAD group memberships.
+ */
+@ServerSide
+public class AadGroupService {
+
+    private static final Logger LOGGER = Loggers.get(AadGroupService.class);
+
+    private final AadSettings settings;
+    private final AadGroupCache groupCache;
+    private final AadGroupDirectory groupDirectory;
+    private final AadMembershipIndex membershipIndex;
+    private final AadGroupResolver transitiveResolver;
+    private final AadGroupResolver allowlistResolver;
+    private final AadGraphClient graphClient;
+    private final AadMetrics metrics;
+
+    // Concurrent logins of the same user share a single Graph lookup.
+    private final SingleFlight<String, Set<String>> lookups = new SingleFlight<>();
+
+    public AadGroupService(AadSettings settings, AadGraphClient graphClient, AadGroupCache groupCache,
+                           AadGroupDirectory groupDirectory, AadMembershipIndex membershipIndex, AadMetrics metrics) {
+        this.settings = settings;
+        this.groupCache = groupCache;
+        this.groupDirectory = groupDirectory;
+        this.membershipIndex = membershipIndex;
+        this.transitiveResolver = new TransitiveMemberOfResolver(settings, graphClient, metrics);
+        this.allowlistResolver = new CheckMemberGroupsResolver(settings, graphClient, groupDirectory, metrics);
+        this.graphClient = graphClient;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns the display names of the groups the user belongs to. When the
+     * group cache is enabled, a recent enough cached answer is returned without
+     * calling Graph, and an older one is used if Graph fails. Concurrent calls
+     * for the same user wait for one shared Graph lookup.
+     * <p>
+     * When groups are read from the ID token and the token has the complete
+     * list, only the names of groups not seen before are looked up in Graph,
+     * and the group cache is only used if that fails. The group allowlist and
+     * name prefix apply to those groups as well. Otherwise the lookup is done
+     * by the {@link AadGroupResolver} matching the settings.
+     * <p>
+     * With background group sync, the local membership index answers without
+     * calling Graph once it has been built, as long as it is recent enough and
+     * knows the user. It can't apply a custom group filter, so it isn't used
+     * when one is set.
+     * <p>
+     * While the Graph circuit breaker is open, or when the lookup rate limit
+     * doesn't let the lookup through in time, Graph isn't called at all and the
+     * lookup fails straight away unless cached groups can be used.
+     *
+     * @throws AadGroupsUnavailableException if Graph is throttling, unavailable or
+     *                                       can't be reached, and no cached groups
+     *                                       can be used
+     */
+    public Set<String> getUserGroups(AadUserInfo user, AccessToken accessToken) {
+        if (settings.backgroundGroupSync() && !settings.groupFilter().isPresent()
+            && membershipIndex.isFresh(TimeUnit.MINUTES.toMillis(settings.backgroundGroupSyncMaxAge()))) {
+            Optional<Map<String, String>> indexedGroups = membershipIndex.getUserGroups(user.getUserOid());
+            if (indexedGroups.isPresent()) {
+                return applyGroupSettings(indexedGroups.get());
+            }
+        }
+
+        Optional<List<String>> tokenGroupIds = groupIdsFromToken(user);
+
+        boolean useCache = settings.enableGroupCache();
+
+        // The groups claim is more recent than anything cached.
+        if (useCache && !tokenGroupIds.isPresent()) {
+            Optional<Set<String>> cachedGroups = groupCache.getFresh(user.getTenantId(), user.getUserOid());
+            if (cachedGroups.isPresent()) {
+                metrics.groupCacheHit();
+                return cachedGroups.get();
+            }
+            metrics.groupCacheMiss();
+        }
+
+        try {
+            return lookups.execute(user.getTenantId() + '/' + user.getUserOid(), () -> {
+                Set<String> groups = tokenGroupIds.isPresent()
+                    ? resolveFromToken(user, tokenGroupIds.get(), accessToken)
+                    : resolveGuarded(user, accessToken);
+                if (useCache) {
+                    groupCache.put(user.getTenantId(), user.getUserOid(), groups);
+                }
+                return groups;
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ClientException("Interrupted while waiting for the group membership of " + user.getUserOid(), e);
+        } catch (ClientException e) {
+            metrics.groupLookupFailed();
+            Optional<Set<String>> staleGroups = useCache ? groupCache.getStale(user.getTenantId(), user.getUserOid()) : Optional.empty();
+            if (staleGroups.isPresent()) {
+                LOGGER.warn("Group Membership Request failed, using previously cached groups. Error: " + e.getMessage());
+                return staleGroups.get();
+            }
+            if (e instanceof GraphServiceException && AadGraphClient.isOutage(((GraphServiceException) e).getResponseCode())) {
+                // Throttled or failing even after retrying. Not knowing the
+                // groups isn't the same as the user having none.
+                throw new AadGroupsUnavailableException("Microsoft Graph didn't answer the group lookup of " + user.getUserOid()
+                    + " after retrying, error: " + ((GraphServiceException) e).getResponseCode(), e);
+            }
+            if (e instanceof GraphServiceException) {
+                // A definitive answer, such as an unknown user or a token Graph
+                // refuses. Post the error to the logs, don't consider this fatal (fail auth)
+                LOGGER.error("Group Membership Request failed with error: " + e.getMessage());
+                return Collections.emptySet();
+            }
+            if (e instanceof AadGroupsUnavailableException) {
+                throw e;
+            }
+            // Timed out or couldn't connect: Graph never answered, so nothing
+            // is known about the groups either.
+            throw new AadGroupsUnavailableException("Microsoft Graph couldn't be reached for the group lookup of "
+                + user.getUserOid() + ", error: " + e.getMessage(), e);
+        }
+    }
+
+    // The groups claim, when it is to be used and the token has all of them.
+    private Optional<List<String>> groupIdsFromToken(AadUserInfo user) {
+        if (!settings.groupsFromIdToken()) {
+            return Optional.empty();
+        }
+
+        Optional<List<String>> groupIds = user.getGroupIds();
+        if (!groupIds.isPresent() && user.hasGroupOverage()) {
+            LOGGER.debug("User {} is in too many groups for the ID token, asking Graph for the memberships", user.getUserOid());
+        }
+        // Only Graph can apply a custom $filter expression.
+        if (groupIds.isPresent() && settings.groupFilter().isPresent()) {
+            LOGGER.debug("A group filter is configured, asking Graph for the memberships of {}", user.getUserOid());
+            return Optional.empty();
+        }
+        return groupIds;
+    }
+
+    // Only the names of groups not seen before are looked up, through the same
+    // rate limit and circuit breaker as the other lookups. When Graph refuses
+    // the name lookup, for example for lack of permission, the memberships are
+    // looked up instead. Not when Graph is failing though: the membership
+    // lookup would fail the same way, with twice the load on Graph.
+    private Set<String> resolveFromToken(AadUserInfo user, List<String> groupIds, AccessToken accessToken) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(settings.groupSyncTimeout());
+        try {
+            return applyGroupSettings(AadGraphRetryHandler.withDeadline(deadline,
+                () -> groupDirectory.getNames(groupIds, accessToken.getValue())));
+        } catch (GraphServiceException e) {
+            if (AadGraphClient.isOutage(e.getResponseCode())) {
+                throw e;
+            }
+            LOGGER.warn("Couldn't resolve the group names from the ID token, asking Graph for the memberships instead. Error: " + e.getMessage());
+            return resolveGuarded(user, accessToken);
+        }
+    }
+
+    // The rate limit and the circuit breaker apply to the lookup as a whole,
+    // and so does the group lookup timeout for retries.
+    private Set<String> resolveGuarded(AadUserInfo user, AccessToken accessToken) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(settings.groupSyncTimeout());
+        return graphClient.guarded("the group lookup of " + user.getUserOid(), () ->
+            AadGraphRetryHandler.withDeadline(deadline, () -> resolver().resolve(user, accessToken.getValue())));
+    }
+
+    // The groups claim and the index aren't narrowed down by Graph, do it the
+    // same way here. Allowlist entries can be group IDs or names.
+    private Set<String> applyGroupSettings(Map<String, String> groups) {
+        List<String> allowlist = settings.groupAllowlist();
+        Optional<String> prefix = settings.groupNamePrefix();
+
+        return groups.entrySet().stream()
+            .filter(group -> allowlist.isEmpty() || allowlist.contains(group.getKey()) || allowlist.contains(group.getValue()))
+            .filter(group -> !prefix.isPresent() || group.getValue().startsWith(prefix.get()))
+            .map(Map.Entry::getValue)
+            .collect(Collectors.toSet());
+    }
+
+    // The allowlist, when there is one, replaces the full membership lookup.
+    AadGroupResolver resolver() {
+        return settings.groupAllowlist().isEmpty() ? transitiveResolver : allowlistResolver;
+    }
+}
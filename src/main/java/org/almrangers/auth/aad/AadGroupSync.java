@@ -0,0 +1,240 @@
+/**
+ * Azure Active Directory Authentication Plugin for SonarQube
+ * <p>
+ * Copyright (c) 2022 Michael Johnson
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.almrangers.auth.aad;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.microsoft.graph.core.ClientException;
+import com.microsoft.graph.http.GraphServiceException;
+import com.microsoft.graph.models.Group;
+import com.microsoft.graph.requests.GroupDeltaCollectionPage;
+import com.microsoft.graph.requests.GroupDeltaCollectionRequest;
+import com.microsoft.graph.requests.GroupDeltaCollectionRequestBuilder;
+import com.nimbusds.oauth2.sdk.token.AccessToken;
+import org.sonar.api.Startable;
+import org.sonar.api.platform.ServerFileSystem;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background job keeping {@link AadMembershipIndex} in line with Azure AD.
+ * <p>
+ * The first run reads every group of the tenant with its members through the
+ * Graph groups delta query. Later runs only ask for what changed since the
+ * previous one. The delta link and the index are saved in the SonarQube data
+ * directory, so a restart picks up where the last run left off instead of
+ * crawling the whole tenant again.
+ * <p>
+ * The job uses the client credential token and only runs when background group
+ * sync, group sync and the client credential flow are all enabled.
+ */
+@ServerSide
+public class AadGroupSync implements Startable {
+
+    private static final Logger LOGGER = Loggers.get(AadGroupSync.class);
+
+    static final String INDEX_FILE = "authaad/group-index.json";
+
+    private final AadSettings settings;
+    private final AadClientTokenManager tokenManager;
+    private final AadGraphClient graphClient;
+    private final AadMembershipIndex index;
+    private final ServerFileSystem fileSystem;
+
+    private ScheduledExecutorService scheduler;
+
+    public AadGroupSync(AadSettings settings, AadClientTokenManager tokenManager, AadGraphClient graphClient,
+                        AadMembershipIndex index, ServerFileSystem fileSystem) {
+        this.settings = settings;
+        this.tokenManager = tokenManager;
+        this.graphClient = graphClient;
+        this.index = index;
+        this.fileSystem = fileSystem;
+    }
+
+    @Override
+    public void start() {
+        if (!settings.backgroundGroupSync()) {
+            return;
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "aad-group-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.execute(this::loadIndex);
+        scheduler.scheduleWithFixedDelay(this::runSync, 0, settings.backgroundGroupSyncInterval(), TimeUnit.MINUTES);
+    }
+
+    @Override
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    void loadIndex() {
+        File file = indexFile();
+        try {
+            Optional<AadMembershipIndex.Snapshot> saved = AadMembershipIndex.read(file);
+            if (saved.isPresent() && saved.get().scope.equals(scope())) {
+                index.publish(saved.get());
+                LOGGER.info("Loaded {} Azure AD groups from {}", saved.get().groupCount(), file);
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Couldn't load the saved group index, starting a full group sync. Error: " + e.getMessage());
+        }
+    }
+
+    // Scheduled runs must never throw, or the executor stops scheduling them.
+    private void runSync() {
+        try {
+            sync();
+        } catch (Exception e) {
+            LOGGER.error("Background group sync failed, will try again in {} minutes. Error: {}",
+                settings.backgroundGroupSyncInterval(), e.getMessage());
+        }
+    }
+
+    void sync() throws IOException {
+        Optional<AccessToken> token = tokenManager.findAccessToken();
+        if (!token.isPresent()) {
+            // The token manager already logged why.
+            return;
+        }
+        AccessToken accessToken = token.get();
+
+        String scope = scope();
+        AadMembershipIndex.Snapshot current = index.current();
+        boolean incremental = current != null && current.scope.equals(scope) && current.deltaLink != null;
+
+        long start = System.currentTimeMillis();
+        AadMembershipIndex.Snapshot updated;
+        try {
+            updated = crawl(incremental ? current : null, scope, accessToken.getValue());
+        } catch (GraphServiceException e) {
+            // Graph forgets delta links after a while, or if too much changed.
+            if (!incremental || e.getResponseCode() != 410) {
+                throw e;
+            }
+            LOGGER.info("Group delta link expired, starting a full group sync");
+            incremental = false;
+            updated = crawl(null, scope, accessToken.getValue());
+        }
+
+        index.publish(updated);
+        AadMembershipIndex.write(indexFile(), updated);
+
+        LOGGER.debug("{} group sync of {} groups done in {} ms", incremental ? "Incremental" : "Full",
+            updated.groupCount(), System.currentTimeMillis() - start);
+    }
+
+    private AadMembershipIndex.Snapshot crawl(AadMembershipIndex.Snapshot base, String scope, String accessToken) {
+        return graphClient.call(accessToken, graphServiceClient -> {
+            AadMembershipIndex.Builder builder = base != null ? base.toBuilder() : new AadMembershipIndex.Builder();
+
+            GroupDeltaCollectionPage page = fetch(base != null
+                ? new GroupDeltaCollectionRequestBuilder(base.deltaLink, graphServiceClient, null).buildRequest()
+                : graphServiceClient.groups().delta().buildRequest().select("displayName,members"));
+
+            while (true) {
+                for (Group group : page.getCurrentPage()) {
+                    apply(builder, group);
+                }
+
+                GroupDeltaCollectionRequestBuilder nextPage = page.getNextPage();
+                if (nextPage == null) {
+                    break;
+                }
+                page = fetch(nextPage.buildRequest());
+            }
+
+            return builder.build(scope, page.deltaLink());
+        });
+    }
+
+    // Every page takes its turn in the rate limit shared with the logins.
+    // Nobody is waiting on the sync, so it waits as long as needed.
+    private GroupDeltaCollectionPage fetch(GroupDeltaCollectionRequest request) {
+        try {
+            graphClient.rateLimiter().acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ClientException("Interrupted while waiting to sync the groups", e);
+        }
+        return request.get();
+    }
+
+    static void apply(AadMembershipIndex.Builder builder, Group group) {
+        if (group.id == null) {
+            return;
+        }
+        if (group.additionalDataManager().containsKey("@removed")) {
+            builder.removeGroup(group.id);
+            return;
+        }
+        if (group.displayName != null) {
+            builder.setName(group.id, group.displayName);
+        }
+
+        // Member changes come as a list of references, removed ones are
+        // flagged with "@removed". Large groups are split over several pages.
+        JsonElement memberChanges = group.additionalDataManager().get("members@delta");
+        if (memberChanges == null || !memberChanges.isJsonArray()) {
+            return;
+        }
+        for (JsonElement element : memberChanges.getAsJsonArray()) {
+            JsonObject member = element.getAsJsonObject();
+            if (!member.has("id")) {
+                continue;
+            }
+            String memberId = member.get("id").getAsString();
+            if (member.has("@removed")) {
+                builder.removeMember(group.id, memberId);
+            } else {
+                builder.addMember(group.id, memberId);
+            }
+        }
+    }
+
+    // An index is only reused for the tenant and app registration it was read with.
+    private String scope() {
+        return settings.tenantId().orElse("") + '|' + settings.clientId().orElse("");
+    }
+
+    private File indexFile() {
+        return new File(settings.dataPath().map(File::new).orElse(new File(fileSystem.getHomeDir(), "data")), INDEX_FILE);
+    }
+}
@@ -0,0 +1,298 @@
+/**
+ * Azure Active Directory Authentication Plugin for SonarQube
+ * <p>
+ * Copyright (c) 2022 Michael Johnson
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.almrangers.auth.aad;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.server.ws.LocalConnector;
+import org.sonar.api.server.ws.Request;
+import org.sonar.api.server.ws.Response;
+import org.sonar.api.server.ws.WebService;
+import org.sonar.api.utils.DateUtils;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code GET api/authaad/health}: the state of the plugin's caches, circuit
+ * breakers, connections and recent login latency, for administrators
+ * diagnosing slow sign-ins without turning on debug logging.
+ * <p>
+ * Plugins don't get to see the SonarQube user session, so the caller's
+ * permissions are read from {@code api/users/current}, which is called as
+ * the same user through the local connector.
+ */
+@ServerSide
+public class AadHealthWs implements WebService {
+
+    static final String CONTROLLER = "api/authaad";
+    static final String ACTION = "health";
+
+    private static final String CURRENT_USER_PATH = "api/users/current";
+    private static final String ADMIN_PERMISSION = "admin";
+
+    private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().create();
+
+    private final AadJwkSource jwkSource;
+    private final AadClientTokenManager clientTokenManager;
+    private final AadGroupCache groupCache;
+    private final AadGraphClient graphClient;
+    private final AadHttpTransport transport;
+    private final AadMetrics metrics;
+
+    public AadHealthWs(AadJwkSource jwkSource, AadClientTokenManager clientTokenManager, AadGroupCache groupCache,
+                       AadGraphClient graphClient, AadHttpTransport transport, AadMetrics metrics) {
+        this.jwkSource = jwkSource;
+        this.clientTokenManager = clientTokenManager;
+        this.groupCache = groupCache;
+        this.graphClient = graphClient;
+        this.transport = transport;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void define(Context context) {
+        NewController controller = context.createController(CONTROLLER)
+            .setDescription("Azure AD authentication plugin");
+
+        controller.createAction(ACTION)
+            .setDescription("Signing key and client token caches, group cache, circuit breakers, connection use per "
+                + "host and recent login latency of the Azure AD authentication plugin. Requires the 'Administer System' permission.")
+            .setInternal(true)
+            .setHandler(this::handle);
+
+        controller.done();
+    }
+
+    void handle(Request request, Response response) throws IOException {
+        Optional<JsonObject> user = currentUser(request);
+        if (!user.isPresent() || !user.get().has("isLoggedIn") || !user.get().get("isLoggedIn").getAsBoolean()) {
+            writeError(response, 401, "Authentication is required");
+            return;
+        }
+        if (!isAdministrator(user.get())) {
+            writeError(response, 403, "Insufficient privileges");
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        JsonObject health = new JsonObject();
+        health.add("jwks", jwks(now));
+        health.add("clientToken", clientToken(now));
+        health.add("groupCache", groupCache());
+        health.add("circuitBreakers", circuitBreakers());
+        health.add("connections", connections());
+        health.add("loginLatency", loginLatency());
+        write(response, 200, health);
+    }
+
+    private JsonObject jwks(long now) {
+        JsonObject jwks = new JsonObject();
+        OptionalLong fetchedAt = jwkSource.keysFetchedAt();
+        if (fetchedAt.isPresent()) {
+            jwks.addProperty("fetchedAt", DateUtils.formatDateTime(new Date(fetchedAt.getAsLong())));
+            jwks.addProperty("ageSeconds", TimeUnit.MILLISECONDS.toSeconds(now - fetchedAt.getAsLong()));
+        }
+        JsonArray keyIds = new JsonArray();
+        jwkSource.keyIds().forEach(keyIds::add);
+        jwks.add("keyIds", keyIds);
+        return jwks;
+    }
+
+    private JsonObject clientToken(long now) {
+        JsonObject clientToken = new JsonObject();
+        OptionalLong expiresAt = clientTokenManager.tokenExpiresAt();
+        if (expiresAt.isPresent()) {
+            clientToken.addProperty("expiresAt", DateUtils.formatDateTime(new Date(expiresAt.getAsLong())));
+            clientToken.addProperty("expiresInSeconds", TimeUnit.MILLISECONDS.toSeconds(expiresAt.getAsLong() - now));
+        }
+        return clientToken;
+    }
+
+    private JsonObject groupCache() {
+        long hits = metrics.getGroupCacheHits();
+        long misses = metrics.getGroupCacheMisses();
+
+        JsonObject cache = new JsonObject();
+        cache.addProperty("size", groupCache.size());
+        cache.addProperty("hits", hits);
+        cache.addProperty("misses", misses);
+        if (hits + misses > 0) {
+            cache.addProperty("hitRatio", hits / (double) (hits + misses));
+        }
+        return cache;
+    }
+
+    private JsonArray circuitBreakers() {
+        JsonArray breakers = new JsonArray();
+        for (AadCircuitBreaker breaker : Arrays.asList(transport.circuitBreaker(), graphClient.circuitBreaker())) {
+            JsonObject state = new JsonObject();
+            state.addProperty("name", breaker.getName());
+            state.addProperty("state", breaker.getState().name());
+            state.addProperty("consecutiveFailures", breaker.getConsecutiveFailures());
+            state.addProperty("rejected", breaker.getRejectedCount());
+            breakers.add(state);
+        }
+        return breakers;
+    }
+
+    private JsonArray connections() {
+        JsonArray connections = new JsonArray();
+        connections.add(hosts(transport.circuitBreaker().getName(), transport));
+        connections.add(hosts(graphClient.circuitBreaker().getName(), graphClient));
+        return connections;
+    }
+
+    private static JsonObject hosts(String name, AadConnectionsMXBean client) {
+        JsonArray hosts = new JsonArray();
+        for (Map.Entry<String, AadHostStats> host : client.getHostStats().entrySet()) {
+            AadHostStats stats = host.getValue();
+            JsonObject use = new JsonObject();
+            use.addProperty("host", host.getKey());
+            use.addProperty("requests", stats.getRequests());
+            use.addProperty("failures", stats.getFailures());
+            use.addProperty("connectionsOpened", stats.getConnectionsOpened());
+            use.addProperty("connectionsReused", stats.getConnectionsReused());
+            use.addProperty("totalTimeMillis", stats.getTotalTimeMillis());
+            hosts.add(use);
+        }
+
+        JsonObject connections = new JsonObject();
+        connections.addProperty("name", name);
+        connections.add("hosts", hosts);
+        return connections;
+    }
+
+    private JsonObject loginLatency() {
+        JsonObject latency = new JsonObject();
+        latency.addProperty("windowMinutes", AadMetrics.RECENT_WINDOW_MINUTES * 2);
+        latency.addProperty("count", metrics.getRecentLogins());
+        latency.addProperty("p50Millis", metrics.recentLoginLatencyMillis(50));
+        latency.addProperty("p95Millis", metrics.recentLoginLatencyMillis(95));
+        latency.addProperty("p99Millis", metrics.recentLoginLatencyMillis(99));
+        return latency;
+    }
+
+    private static Optional<JsonObject> currentUser(Request request) {
+        LocalConnector.LocalResponse response = request.localConnector().call(new CurrentUserRequest());
+        if (response.getStatus() != 200) {
+            return Optional.empty();
+        }
+        JsonElement user = JsonParser.parseString(new String(response.getBytes(), StandardCharsets.UTF_8));
+        return user.isJsonObject() ? Optional.of(user.getAsJsonObject()) : Optional.empty();
+    }
+
+    private static boolean isAdministrator(JsonObject user) {
+        JsonObject permissions = user.getAsJsonObject("permissions");
+        if (permissions == null || !permissions.has("global")) {
+            return false;
+        }
+        for (JsonElement permission : permissions.getAsJsonArray("global")) {
+            if (ADMIN_PERMISSION.equals(permission.getAsString())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Same shape as the errors returned by SonarQube's own web services.
+    private static void writeError(Response response, int status, String message) throws IOException {
+        JsonObject error = new JsonObject();
+        error.addProperty("msg", message);
+        JsonArray errors = new JsonArray();
+        errors.add(error);
+        JsonObject body = new JsonObject();
+        body.add("errors", errors);
+        write(response, status, body);
+    }
+
+    private static void write(Response response, int status, JsonObject body) throws IOException {
+        Response.Stream stream = response.stream();
+        stream.setStatus(status);
+        stream.setMediaType("application/json");
+        try (Writer output = new OutputStreamWriter(stream.output(), StandardCharsets.UTF_8)) {
+            GSON.toJson(body, output);
+        }
+    }
+
+    private static final class CurrentUserRequest implements LocalConnector.LocalRequest {
+
+        @Override
+        public String getPath() {
+            return CURRENT_USER_PATH;
+        }
+
+        @Override
+        public String getMediaType() {
+            return "application/json";
+        }
+
+        @Override
+        public boolean hasParam(String key) {
+            return false;
+        }
+
+        @Override
+        public String getParam(String key) {
+            return null;
+        }
+
+        @Override
+        public List<String> getMultiParam(String key) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public Optional<String> getHeader(String name) {
+            return Optional.empty();
+        }
+
+        @Override
+        public Map<String, String[]> getParameterMap() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public String getMethod() {
+            return "GET";
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * Azure Active Directory Authentication Plugin for SonarQube
+ * <p>
+ * Copyright (c) 2022 Michael Johnson
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.almrangers.auth.aad;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Requests made to one host and the connections they used, counted by an
+ * OkHttp event listener, see {@link #recordingInto(ConcurrentMap)}.
+ */
+public final class AadHostStats {
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder connectionsOpened = new LongAdder();
+    private final LongAdder connectionsReused = new LongAdder();
+    private final LongAdder totalTimeMillis = new LongAdder();
+
+    /**
+     * Counts the calls of an OkHttp client per host, in the given map.
+     */
+    static EventListener.Factory recordingInto(ConcurrentMap<String, AadHostStats> hostStats) {
+        return call -> new HostListener(hostStats.computeIfAbsent(call.request().url().host(), h -> new AadHostStats()));
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    public long getConnectionsOpened() {
+        return connectionsOpened.sum();
+    }
+
+    // Requests served over a connection that was already open.
+    public long getConnectionsReused() {
+        return connectionsReused.sum();
+    }
+
+    public long getTotalTimeMillis() {
+        return totalTimeMillis.sum();
+    }
+
+    // One listener per call, so plain fields are enough.
+    private static final class HostListener extends EventListener {
+        private final AadHostStats stats;
+        private long startedAt;
+        private boolean connected;
+
+        private HostListener(AadHostStats stats) {
+            this.stats = stats;
+        }
+
+        @Override
+        public void callStart(Call call) {
+            startedAt = System.nanoTime();
+            stats.requests.increment();
+        }
+
+        @Override
+        public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+            connected = true;
+        }
+
+        @Override
+        public void connectionAcquired(Call call, Connection connection) {
+            if (connected) {
+                stats.connectionsOpened.increment();
+            } else {
+                stats.connectionsReused.increment();
+            }
+            connected = false;
+        }
+
+        @Override
+        public void callEnd(Call call) {
+            stats.totalTimeMillis.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt));
+        }
+
+        @Override
+        public void callFailed(Call call, IOException ioe) {
+            stats.failures.increment();
+            callEnd(call);
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/**
+ * Azure Active Directory Authentication Plugin for SonarQube
+ * <p>
+ * Copyright (c) 2022 Michael Johnson
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.almrangers.auth.aad;
+
+import com.nimbusds.jose.util.Resource;
+import com.nimbusds.jose.util.ResourceRetriever;
+import com.nimbusds.oauth2.sdk.ParseException;
+import com.nimbusds.oauth2.sdk.http.HTTPRequest;
+import com.nimbusds.oauth2.sdk.http.HTTPResponse;
+import okhttp3.ConnectionPool;
+import okhttp3.Headers;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.sonar.api.Startable;
+import org.sonar.api.server.ServerSide;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The HTTP client for the OAuth calls to Azure AD: the authorization code and
+ * client credential grants, and the signing key downloads.
+ * <p>
+ * Everything goes through one OkHttp client, so connections to the login
+ * endpoint are pooled, kept alive between logins and multiplexed over HTTP/2.
+ * The connect and read timeouts come from the settings, and no single request
+ * may outlast the login timeout.
+ * Connection use is counted per host, see {@link #getHostStats()}.
+ * <p>
+ * Requests go through a circuit breaker: once Azure AD keeps failing, logins
+ * fail straight away instead of each waiting for the timeouts.
+ */
+@ServerSide
+public class AadHttpTransport implements Startable, AadConnectionsMXBean {
+
+    // Idle connections kept around for the next logins, and how long they are kept.
+    private static final int MAX_IDLE_CONNECTIONS = 5;
+    private static final long KEEP_ALIVE_MINUTES = 5;
+
+    // Same limit as Nimbus applies to key set downloads.
+    static final int MAX_RESOURCE_SIZE = 51200;
+
+    private final ConcurrentMap<String, AadHostStats> hostStats = new ConcurrentHashMap<>();
+    private final AadSettings settings;
+    private final OkHttpClient httpClient;
+    private final AadCircuitBreaker circuitBreaker;
+
+    private volatile TimedClient timedClient;
+
+    public AadHttpTransport(AadSettings settings) {
+        this.settings = settings;
+        this.circuitBreaker = new AadCircuitBreaker("Azure AD", settings);
+        this.httpClient = new OkHttpClient.Builder()
+            .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+            .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+            .followRedirects(false)
+            .eventListenerFactory(AadHostStats.recordingInto(hostStats))
+            .build();
+    }
+
+    @Override
+    public void start() {
+        // Connections are opened lazily by the first login.
+    }
+
+    @Override
+    public void stop() {
+        httpClient.dispatcher().executorService().shutdown();
+        httpClient.connectionPool().evictAll();
+    }
+
+    /**
+     * Sends a Nimbus request, such as {@code TokenRequest.toHTTPRequest()},
+     * in place of {@link HTTPRequest#send()}.
+     */
+    public HTTPResponse send(HTTPRequest request) throws IOException {
+        try (Response response = execute(toOkHttp(request))) {
+            return toNimbus(response);
+        }
+    }
+
+    /**
+     * Downloads resources, such as the signing keys, for Nimbus.
+     */
+    public ResourceRetriever resourceRetriever() {
+        return this::retrieve;
+    }
+
+    /**
+     * Connection use per host since the server started, by host name.
+     */
+    @Override
+    public Map<String, AadHostStats> getHostStats() {
+        return Collections.unmodifiableMap(new TreeMap<>(hostStats));
+    }
+
+    /**
+     * The circuit breaker guarding the login and signing key endpoints.
+     */
+    public AadCircuitBreaker circuitBreaker() {
+        return circuitBreaker;
+    }
+
+    // Throttling and server errors count as failures, a refused grant doesn't.
+    private Response execute(Request request) throws IOException {
+        if (!circuitBreaker.allowRequest()) {
+            throw new IOException("Azure AD is failing, not calling " + request.url().host() + " until the circuit breaker closes");
+        }
+
+        Response response;
+        try {
+            response = client().newCall(request).execute();
+        } catch (IOException e) {
+            circuitBreaker.recordFailure();
+            throw e;
+        }
+
+        if (response.code() >= 500 || response.code() == AadGraphRetryHandler.TOO_MANY_REQUESTS) {
+            circuitBreaker.recordFailure();
+        } else {
+            circuitBreaker.recordSuccess();
+        }
+        return response;
+    }
+
+    private Resource retrieve(URL url) throws IOException {
+        Request request = new Request.Builder().url(url).get().build();
+        try (Response response = execute(request)) {
+            if (!response.isSuccessful()) {
+                throw new IOException("HTTP " + response.code() + " from " + url);
+            }
+
+            ResponseBody body = response.body();
+            String contentType = body != null && body.contentType() != null ? body.contentType().toString() : null;
+            return new Resource(readLimited(body, MAX_RESOURCE_SIZE), contentType);
+        }
+    }
+
+    private static String readLimited(ResponseBody body, int limit) throws IOException {
+        if (body == null) {
+            return "";
+        }
+
+        try (InputStream in = body.byteStream()) {
+            byte[] content = new byte[limit + 1];
+            int length = 0;
+            int read;
+            while (length <= limit && (read = in.read(content, length, content.length - length)) != -1) {
+                length += read;
+            }
+            if (length > limit) {
+                throw new IOException("Exceeded the size limit of " + limit + " bytes");
+            }
+            return new String(content, 0, length, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static Request toOkHttp(HTTPRequest request) {
+        String url = request.getURL().toString();
+        String query = request.getQuery();
+        boolean hasBody = request.getMethod() == HTTPRequest.Method.POST
+            || request.getMethod() == HTTPRequest.Method.PUT;
+
+        // Like HTTPRequest.send(), the query goes in the URL unless there's a body to put it in.
+        if (!hasBody && query != null && !query.isEmpty()) {
+            url += (url.contains("?") ? "&" : "?") + query;
+        }
+
+        Request.Builder builder = new Request.Builder().url(url);
+        for (Map.Entry<String, List<String>> header : request.getHeaderMap().entrySet()) {
+            for (String value : header.getValue()) {
+                builder.addHeader(header.getKey(), value);
+            }
+        }
+
+        RequestBody body = null;
+        if (hasBody) {
+            MediaType contentType = request.getEntityContentType() != null
+                ? MediaType.parse(request.getEntityContentType().toString())
+                : null;
+            body = RequestBody.create(query != null ? query : "", contentType);
+        }
+        return builder.method(request.getMethod().name(), body).build();
+    }
+
+    private static HTTPResponse toNimbus(Response response) throws IOException {
+        HTTPResponse httpResponse = new HTTPResponse(response.code());
+        httpResponse.setStatusMessage(response.message());
+
+        Headers headers = response.headers();
+        for (String name : headers.names()) {
+            httpResponse.setHeader(name, headers.values(name).toArray(new String[0]));
+        }
+
+        ResponseBody body = response.body();
+        if (body != null) {
+            if (body.contentType() != null) {
+                try {
+                    httpResponse.setContentType(body.contentType().toString());
+                } catch (ParseException e) {
+                    // Left unset, Nimbus reports the missing content type when parsing.
+                }
+            }
+            String content = body.string();
+            if (!content.isEmpty()) {
+                httpResponse.setContent(content);
+            }
+        }
+        return httpResponse;
+    }
+
+    // Clients derived from the shared one share its connection pool, so this
+    // only swaps the timeouts.
+    OkHttpClient client() {
+        int connectTimeout = settings.connectTimeout();
+        int readTimeout = settings.readTimeout();
+        int callTimeout = settings.callbackTimeout();
+
+        TimedClient current = timedClient;
+        if (current == null || !current.hasTimeouts(connectTimeout, readTimeout, callTimeout)) {
+            current = new TimedClient(connectTimeout, readTimeout, callTimeout,
+                withTimeouts(httpClient, connectTimeout, readTimeout, callTimeout));
+            timedClient = current;
+        }
+        return current.client;
+    }
+
+    static OkHttpClient withTimeouts(OkHttpClient client, int connectTimeout, int readTimeout, int callTimeout) {
+        return client.newBuilder()
+            .connectTimeout(connectTimeout, TimeUnit.SECONDS)
+            .readTimeout(readTimeout, TimeUnit.SECONDS)
+            .writeTimeout(readTimeout, TimeUnit.SECONDS)
+            .callTimeout(callTimeout, TimeUnit.SECONDS)
+            .build();
+    }
+
+    private static final class TimedClient {
+        private final int connectTimeout;
+        private final int readTimeout;
+        private final int callTimeout;
+        private final OkHttpClient client;
+
+        private TimedClient(int connectTimeout, int readTimeout, int callTimeout, OkHttpClient client) {
+            this.connectTimeout = connectTimeout;
+            this.readTimeout = readTimeout;
+            this.callTimeout = callTimeout;
+            this.client = client;
+        }
+
+        private boolean hasTimeouts(int connectTimeout, int readTimeout, int callTimeout) {
+            return this.connectTimeout == connectTimeout && this.readTimeout == readTimeout && this.callTimeout == callTimeout;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * Azure Active Directory Authentication Plugin for SonarQube
+ * <p>
+ * Copyright (c) 2022 Michael Johnson
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.almrangers.auth.aad;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.jwk.source.JWKSource;
+import com.nimbusds.jose.proc.BadJOSEException;
+import com.nimbusds.jose.proc.SecurityContext;
+import com.nimbusds.jwt.JWT;
+import com.nimbusds.jwt.proc.JWTProcessor;
+import org.sonar.api.server.ServerSide;
+
+/**
+ * Validates AAD ID tokens with a single, pre-configured JWT processor.
+ * <p>
+ * The processor only depends on the client ID and on where the signing keys
+ * come from, so it is built once and shared by every login. It is rebuilt only
+ * when the settings snapshot changes. A configured processor is thread-safe.
+ */
+@ServerSide
+public class AadIdTokenValidator {
+
+    private final AadSettings settings;
+    private final JWKSource<SecurityContext> keySource;
+
+    private volatile ConfiguredProcessor processor;
+
+    public AadIdTokenValidator(AadSettings settings, AadJwkSource keySource) {
+        this(settings, (JWKSource<SecurityContext>) keySource);
+    }
+
+    AadIdTokenValidator(AadSettings settings, JWKSource<SecurityContext> keySource) {
+        this.settings = settings;
+        this.keySource = keySource;
+    }
+
+    public boolean validate(JWT idToken) throws BadJOSEException, JOSEException {
+        // Don't capture the output. This will throw an error if the token doesn't
+        // validate instead of returning true.
+        currentProcessor().process(idToken, null);
+
+        return true; // If there was no exception thrown, then the token is valid
+    }
+
+    JWTProcessor<SecurityContext> currentProcessor() {
+        AadSettings.Snapshot snapshot = settings.snapshot();
+
+        ConfiguredProcessor current = processor;
+        if (current == null || current.snapshot != snapshot) {
+            current = new ConfiguredProcessor(snapshot,
+                AadTokenHelper.buildIdTokenProcessor(snapshot.clientIdValue().orElse(null), keySource));
+            processor = current;
+        }
+
+        return current.jwtProcessor;
+    }
+
+    private static final class ConfiguredProcessor {
+        private final AadSettings.Snapshot snapshot;
+        private final JWTProcessor<SecurityContext> jwtProcessor;
+
+        private ConfiguredProcessor(AadSettings.Snapshot snapshot, JWTProcessor<SecurityContext> jwtProcessor) {
+            this.snapshot = snapshot;
+            this.jwtProcessor = jwtProcessor;
+        }
+    }
+}
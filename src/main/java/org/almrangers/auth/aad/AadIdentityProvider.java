@@ -28,16 +28,21 @@
 package org.almrangers.auth.aad;
 
 import java.net.*;
-import java.util.concurrent.ExecutorService;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
-import com.nimbusds.jwt.JWT;
 import com.nimbusds.oauth2.sdk.*;
 import com.nimbusds.oauth2.sdk.auth.ClientSecretBasic;
-import com.nimbusds.oauth2.sdk.auth.Secret;
-import com.nimbusds.oauth2.sdk.id.ClientID;
-import com.nimbusds.oauth2.sdk.id.State;
 import com.nimbusds.oauth2.sdk.token.AccessToken;
-import com.nimbusds.oauth2.sdk.token.BearerAccessToken;
 import com.nimbusds.openid.connect.sdk.OIDCTokenResponse;
 import com.nimbusds.openid.connect.sdk.token.OIDCTokens;
 import org.sonar.api.server.ServerSide;
@@ -56,9 +61,25 @@ public class AadIdentityProvider implements OAuth2IdentityProvider {
   private static final Logger LOGGER = Loggers.get(AadIdentityProvider.class);
 
   private final AadSettings settings;
-
-  public AadIdentityProvider(AadSettings settings) {
+  private final AadIdTokenValidator idTokenValidator;
+  private final AadClientTokenManager clientTokenManager;
+  private final AadGroupService groupService;
+  private final AadIoExecutor ioExecutor;
+  private final AadHttpTransport transport;
+  private final AadMetrics metrics;
+
+  private volatile AuthorizationUrlTemplate authorizationUrlTemplate;
+
+  public AadIdentityProvider(AadSettings settings, AadIdTokenValidator idTokenValidator,
+    AadClientTokenManager clientTokenManager, AadGroupService groupService, AadIoExecutor ioExecutor,
+    AadHttpTransport transport, AadMetrics metrics) {
     this.settings = settings;
+    this.idTokenValidator = idTokenValidator;
+    this.clientTokenManager = clientTokenManager;
+    this.groupService = groupService;
+    this.ioExecutor = ioExecutor;
+    this.transport = transport;
+    this.metrics = metrics;
   }
 
   @Override
@@ -89,41 +110,42 @@ public class AadIdentityProvider implements OAuth2IdentityProvider {
     return settings.allowUsersToSignUp();
   }
 
+  // Anyone can hit this, bots included, so only the state and the callback
+  // URL are filled in here. The rest of the URL is built once per settings.
   @Override
   public void init(InitContext context) {
     String sqState = context.generateCsrfState();
 
-    State state = new State(sqState);
-    ClientID clientId = new ClientID(settings.clientId().orElse(null));
-    Scope scope = Scope.parse("openid profile email User.Read");
-
     try {
-      AuthorizationRequest authReq = new AuthorizationRequest(
-          new URI(settings.authorizationUrl()),
-          ResponseType.CODE,
-          ResponseMode.QUERY,
-          clientId,
-          new URI(context.getCallbackUrl()),
-          scope,
-          state);
-
-      URI authUrl = authReq.toURI();
-
-      context.redirectTo(authUrl.toString());
+      String authUrl = authorizationUrl(context.getCallbackUrl(), sqState);
+
+      context.redirectTo(authUrl);
     } catch (URISyntaxException e) {
       LOGGER.error(e.toString());
     }
+  }
 
-
+  String authorizationUrl(String callbackUrl, String state) throws URISyntaxException {
+    AadSettings.Snapshot snapshot = settings.snapshot();
+    AuthorizationUrlTemplate template = authorizationUrlTemplate;
+    if (template == null || template.snapshot != snapshot) {
+      template = new AuthorizationUrlTemplate(snapshot);
+      authorizationUrlTemplate = template;
+    }
+    return template.build(callbackUrl, state);
   }
 
   @Override
   public void callback(CallbackContext context) {
+    long start = System.nanoTime();
     try {
       onCallback(context);
     } catch (Exception e) {
+      metrics.loginFailed();
       LOGGER.error("Exception:" + e);
       throw new UnauthorizedException(e.getMessage());
+    } finally {
+      metrics.record(AadMetrics.Stage.LOGIN, System.nanoTime() - start);
     }
   }
 
@@ -132,78 +154,217 @@ public class AadIdentityProvider implements OAuth2IdentityProvider {
 
     HttpRequest request = context.getHttpRequest();
     AuthorizationCode code = new AuthorizationCode(request.getParameter("code"));
-    ExecutorService service = null;
+    String callbackUrl = context.getCallbackUrl();
+    boolean groupSync = settings.enableGroupSync();
+    int timeout = settings.callbackTimeout();
 
-    try {
-      TokenRequest tokenReq = new TokenRequest(
-          new URI(settings.authorityUrl()),
-          new ClientSecretBasic(
-              new ClientID(settings.clientId().orElse(null)),
-              new Secret(settings.clientSecret().orElse(""))),
-          new AuthorizationCodeGrant(code, new URI(context.getCallbackUrl()))
-      );
-
-      // Parse and check response
-      OIDCTokenResponse tokenResponse = AadTokenHelper.extractTokenResponse(tokenReq.toHTTPRequest().send());
-
-      OIDCTokens accessTokens = tokenResponse.getOIDCTokens();
-
-      JWT idToken = accessTokens.getIDToken();
-
-      AadUserInfo aadUser;
-      AccessToken accessToken; // The user's auth token as the default.
-
-      if (AadTokenHelper.validateIdToken(idToken, settings)) {
-
-        // Decide if we are going to use a user auth token or the client auth
-        // token. This is used for group sync for access to MS Graph. If client
-        // credential is enabled along with group sync, try to grab a client auth
-        // token. Otherwise we just set the token to the user token.
-        if(settings.enableGroupSync() && settings.enableClientCredential()) {
-          TokenRequest clientRequest = new TokenRequest(
-              new URI(settings.authorityUrl()),
-              new ClientSecretBasic(
-                  new ClientID(settings.clientId().orElse("")),
-                  new Secret(settings.clientSecret().orElse(""))
-              ),
-              new ClientCredentialsGrant(),
-              new Scope(settings.getGraphURL() + "/.default"));
-
-          // Parse and check response
-          TokenResponse clientResponse = TokenResponse.parse(clientRequest.toHTTPRequest().send());
-
-          // Client token request failed, log the error
-          if (!clientResponse.indicatesSuccess()) {
-            TokenErrorResponse errorResponse = clientResponse.toErrorResponse();
-            LOGGER.error("Issue in getting client token for group sync. Returned error: "
-                + errorResponse.getErrorObject().getDescription());
-            accessToken = new BearerAccessToken(); // Empty access token so we pass _something_.
-          } else {
-            AccessTokenResponse successResponse = clientResponse.toSuccessResponse();
-            accessToken = successResponse.getTokens().getAccessToken();
-          }
-        } else {
-          // Use the user's access token
-          accessToken = accessTokens.getAccessToken();
-        }
+    // Every network call runs on an I/O thread. Calls that don't depend on
+    // each other run at the same time, and this thread only waits for the
+    // result to hand it to SonarQube.
+    CallbackPipeline pipeline = new CallbackPipeline(ioExecutor);
 
+    try {
+      // Decide if we are going to use a user auth token or the client auth
+      // token. This is used for group sync for access to MS Graph. If client
+      // credential is enabled along with group sync, the client auth token
+      // doesn't depend on the user and is requested right away.
+      CompletableFuture<AccessToken> clientToken = groupSync && settings.enableClientCredential()
+        ? pipeline.run(metrics.timed(AadMetrics.Stage.CLIENT_TOKEN, clientTokenManager::getAccessToken))
+        : null;
+
+      CompletableFuture<OIDCTokens> userTokens = pipeline.run(
+        metrics.timed(AadMetrics.Stage.CODE_EXCHANGE, () -> exchangeCode(code, callbackUrl)));
+
+      CompletableFuture<AadUserInfo> user = userTokens.thenCompose(tokens ->
+        pipeline.run(metrics.timed(AadMetrics.Stage.ID_TOKEN_VALIDATION,
+          () -> idTokenValidator.validate(tokens.getIDToken()) ? new AadUserInfo(tokens.getIDToken()) : null)));
+
+      CompletableFuture<Login> login;
+      if (groupSync) {
         // NOTE: The Access token IS EITHER:
         // The client credential token if client credential flow is enabled **OR**
         // The user's token if client credential flow fails or client flow is disabled
-        aadUser = new AadUserInfo(idToken, accessToken, settings.enableGroupSync());
+        CompletableFuture<AccessToken> graphToken = clientToken != null
+          ? clientToken
+          : userTokens.thenApply(OIDCTokens::getAccessToken);
+
+        login = user.thenCombine(graphToken, UserAndToken::new).thenCompose(userAndToken -> {
+          if (userAndToken.user == null) {
+            return CompletableFuture.completedFuture(null);
+          }
+          return lookUpGroups(pipeline, userAndToken.user, userAndToken.token);
+        });
+      } else {
+        login = user.thenApply(aadUser -> aadUser == null ? null : new Login(aadUser, false));
+      }
 
-        context.authenticate(aadUser.buildUserId(settings.enableGroupSync()).build());
+      Login result = login.get(timeout, TimeUnit.SECONDS);
+
+      // A token that fails validation ends the login without signing anyone in.
+      if (result != null) {
+        context.authenticate(result.user.buildUserId(result.groupsUpdated).build());
 
         context.redirectToRequestedPage();
       }
 
-    } catch (Exception e) {
-      LOGGER.error("Exception:" + e);
-      throw new UnauthorizedException(e.getMessage());
-    } finally {
-      if (service != null) {
-        service.shutdown();
+    } catch (TimeoutException e) {
+      pipeline.cancel();
+      LOGGER.error("Azure AD login didn't complete within {} seconds", timeout);
+      throw new UnauthorizedException("Azure AD login timed out");
+    } catch (InterruptedException e) {
+      pipeline.cancel();
+      Thread.currentThread().interrupt();
+      throw new UnauthorizedException("Azure AD login was interrupted");
+    } catch (ExecutionException e) {
+      pipeline.cancel();
+      Throwable cause = e.getCause() instanceof CompletionException ? e.getCause().getCause() : e.getCause();
+      LOGGER.error("Exception:" + cause);
+      throw new UnauthorizedException(cause.getMessage());
+    }
+  }
+
+  // Groups only get their share of the login timeout. When it runs out, or
+  // Graph keeps throttling us or can't be reached, the user is signed in
+  // anyway and their groups in SonarQube stay as they are.
+  private CompletableFuture<Login> lookUpGroups(CallbackPipeline pipeline, AadUserInfo aadUser, AccessToken accessToken) {
+    int groupSyncTimeout = settings.groupSyncTimeout();
+    CompletableFuture<Set<String>> groups = pipeline.run(
+      metrics.timed(AadMetrics.Stage.GROUP_LOOKUP, () -> groupService.getUserGroups(aadUser, accessToken)));
+
+    return groups
+      .thenApply(userGroups -> {
+        aadUser.setUserGroups(userGroups);
+        return new Login(aadUser, true);
+      })
+      .exceptionally(error -> {
+        Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+        if (!(cause instanceof AadGroupsUnavailableException)) {
+          throw error instanceof CompletionException ? (CompletionException) error : new CompletionException(error);
+        }
+        LOGGER.warn("{}, signing in without updating the groups", cause.getMessage());
+        return new Login(aadUser, false);
+      })
+      .completeOnTimeout(null, groupSyncTimeout, TimeUnit.SECONDS)
+      .thenApply(result -> {
+        if (result != null) {
+          return result;
+        }
+        groups.cancel(true);
+        LOGGER.warn("Groups of {} weren't found within {} seconds, signing in without updating them",
+          aadUser.getUserOid(), groupSyncTimeout);
+        return new Login(aadUser, false);
+      });
+  }
+
+  private OIDCTokens exchangeCode(AuthorizationCode code, String callbackUrl) throws Exception {
+    AadSettings.Snapshot snapshot = settings.snapshot();
+    TokenRequest tokenReq = new TokenRequest(
+        snapshot.authorityUri(),
+        new ClientSecretBasic(snapshot.clientId(), snapshot.clientSecret()),
+        new AuthorizationCodeGrant(code, new URI(callbackUrl))
+    );
+
+    // Parse and check response
+    OIDCTokenResponse tokenResponse = AadTokenHelper.extractTokenResponse(transport.send(tokenReq.toHTTPRequest()));
+
+    return tokenResponse.getOIDCTokens();
+  }
+
+  /**
+   * Keeps track of the work started for one callback, so all of it can be
+   * cancelled once the deadline has passed.
+   */
+  private static final class CallbackPipeline {
+    private final AadIoExecutor ioExecutor;
+    private final Queue<Future<?>> started = new ConcurrentLinkedQueue<>();
+    private volatile boolean cancelled;
+
+    private CallbackPipeline(AadIoExecutor ioExecutor) {
+      this.ioExecutor = ioExecutor;
+    }
+
+    <T> CompletableFuture<T> run(Callable<T> task) {
+      CompletableFuture<T> future = ioExecutor.supply(task);
+      started.add(future);
+      // A step chained after the deadline must not run either.
+      if (cancelled) {
+        future.cancel(true);
+      }
+      return future;
+    }
+
+    void cancel() {
+      cancelled = true;
+      started.forEach(future -> future.cancel(true));
+    }
+  }
+
+  /**
+   * The authorization request URL with everything but the state and the
+   * callback URL filled in. Same parameters as a code flow
+   * {@link AuthorizationRequest} with a query response mode.
+   */
+  private static final class AuthorizationUrlTemplate {
+    private final AadSettings.Snapshot snapshot;
+    private final String prefix;
+    // SonarQube's callback URL hardly ever changes, the last one is kept encoded.
+    private volatile EncodedCallback lastCallback;
+
+    private AuthorizationUrlTemplate(AadSettings.Snapshot snapshot) throws URISyntaxException {
+      if (snapshot.clientId() == null) {
+        throw new IllegalArgumentException("The client ID must not be null");
       }
+      this.snapshot = snapshot;
+      this.prefix = snapshot.authorizationUri()
+        + "?response_type=" + encode(ResponseType.CODE.toString())
+        + "&response_mode=" + encode(ResponseMode.QUERY.getValue())
+        + "&client_id=" + encode(snapshot.clientId().getValue())
+        + "&scope=" + encode(snapshot.loginScope().toString());
+    }
+
+    private String build(String callbackUrl, String state) throws URISyntaxException {
+      EncodedCallback callback = lastCallback;
+      if (callback == null || !callback.url.equals(callbackUrl)) {
+        callback = new EncodedCallback(callbackUrl);
+        lastCallback = callback;
+      }
+      return prefix + "&redirect_uri=" + callback.encoded + "&state=" + encode(state);
+    }
+
+    private static String encode(String value) {
+      return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+  }
+
+  private static final class EncodedCallback {
+    private final String url;
+    private final String encoded;
+
+    private EncodedCallback(String url) throws URISyntaxException {
+      // Rejects the same callback URLs the full request would.
+      new URI(url);
+      this.url = url;
+      this.encoded = AuthorizationUrlTemplate.encode(url);
+    }
+  }
+
+  private static final class Login {
+    private final AadUserInfo user;
+    private final boolean groupsUpdated;
+
+    private Login(AadUserInfo user, boolean groupsUpdated) {
+      this.user = user;
+      this.groupsUpdated = groupsUpdated;
+    }
+  }
+
+  private static final class UserAndToken {
+    private final AadUserInfo user;
+    private final AccessToken token;
+
+    private UserAndToken(AadUserInfo user, AccessToken token) {
+      this.user = user;
+      this.token = token;
     }
   }
 
@@ -0,0 +1,187 @@
+/**
+ * Azure Active Directory Authentication Plugin for SonarQube
+ * <p>
+ * Copyright (c) 2022 Michael Johnson
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.almrangers.auth.aad;
+
+import com.nimbusds.jose.KeySourceException;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.JWKSelector;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.source.JWKSource;
+import com.nimbusds.jose.proc.SecurityContext;
+import com.nimbusds.jose.util.ResourceRetriever;
+import org.sonar.api.Startable;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+import java.util.OptionalLong;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Process-wide cache of the AAD token signing keys.
+ * <p>
+ * The key set is downloaded once and kept for the configured TTL. Once most of
+ * the TTL has elapsed the keys are refreshed in the background, so logins never
+ * wait on the keys endpoint in the steady state. A token signed with a key we
+ * don't know about triggers a single forced refresh, which covers AAD rolling
+ * its signing keys before the cache expires.
+ */
+@ServerSide
+public class AadJwkSource implements JWKSource<SecurityContext>, Startable {
+
+    private static final Logger LOGGER = Loggers.get(AadJwkSource.class);
+
+    // Don't force a refresh for an unknown key ID more often than this. A stream
+    // of forged tokens would otherwise turn into a stream of key downloads.
+    private static final long DEFAULT_MIN_REFRESH_INTERVAL = TimeUnit.SECONDS.toMillis(30);
+
+    // Start refreshing in the background once this share of the TTL is used up.
+    private static final double REFRESH_AHEAD_RATIO = 0.8;
+
+    private final AadSettings settings;
+    private final ResourceRetriever retriever;
+    private final long minRefreshInterval;
+    private final ExecutorService refreshExecutor;
+
+    private final SingleFlight<String, CachedKeys> refreshes = new SingleFlight<>();
+
+    private volatile CachedKeys cachedKeys;
+
+    public AadJwkSource(AadSettings settings, AadHttpTransport transport) {
+        this(settings, transport, DEFAULT_MIN_REFRESH_INTERVAL);
+    }
+
+    AadJwkSource(AadSettings settings, AadHttpTransport transport, long minRefreshInterval) {
+        this.settings = settings;
+        this.minRefreshInterval = minRefreshInterval;
+        this.retriever = transport.resourceRetriever();
+        this.refreshExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "aad-jwks-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void start() {
+        // Keys are loaded by AadWarmUp at startup, or lazily by the first login.
+    }
+
+    @Override
+    public void stop() {
+        refreshExecutor.shutdownNow();
+    }
+
+    @Override
+    public List<JWK> get(JWKSelector jwkSelector, SecurityContext context) throws KeySourceException {
+        String url = settings.snapshot().jwkKeysUrl();
+        long ttl = TimeUnit.MINUTES.toMillis(settings.jwksCacheTtl());
+        long now = System.currentTimeMillis();
+
+        CachedKeys keys = cachedKeys;
+        if (keys == null || !keys.url.equals(url) || now - keys.fetchedAt >= ttl) {
+            keys = refresh(url);
+        } else if (now - keys.fetchedAt >= ttl * REFRESH_AHEAD_RATIO) {
+            scheduleRefresh(url);
+        }
+
+        List<JWK> matches = jwkSelector.select(keys.jwkSet);
+
+        // Unknown key ID, AAD may have rolled its keys. Refresh once and try again.
+        if (matches.isEmpty() && now - keys.fetchedAt >= minRefreshInterval) {
+            LOGGER.debug("No matching signing key in the cached key set, refreshing from {}", url);
+            keys = refresh(url);
+            matches = jwkSelector.select(keys.jwkSet);
+        }
+
+        return matches;
+    }
+
+    /**
+     * Returns when the cached keys were downloaded, in milliseconds since the
+     * epoch, or nothing before the first download.
+     */
+    public OptionalLong keysFetchedAt() {
+        CachedKeys keys = cachedKeys;
+        return keys != null ? OptionalLong.of(keys.fetchedAt) : OptionalLong.empty();
+    }
+
+    /**
+     * Returns the IDs of the cached signing keys.
+     */
+    public List<String> keyIds() {
+        CachedKeys keys = cachedKeys;
+        return keys != null
+            ? keys.jwkSet.getKeys().stream().map(JWK::getKeyID).collect(Collectors.toList())
+            : Collections.emptyList();
+    }
+
+    private CachedKeys refresh(String url) throws KeySourceException {
+        try {
+            return scheduleRefresh(url).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KeySourceException("Interrupted while retrieving the signing keys", e);
+        } catch (ExecutionException e) {
+            throw new KeySourceException("Couldn't retrieve the signing keys from " + url + ": " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    // Only one download per URL is ever in flight. Concurrent callers share its result.
+    private CompletableFuture<CachedKeys> scheduleRefresh(String url) {
+        return refreshes.submit(url, () -> {
+            CachedKeys keys = load(url);
+            cachedKeys = keys;
+            return keys;
+        }, refreshExecutor);
+    }
+
+    private CachedKeys load(String url) throws Exception {
+        JWKSet jwkSet = JWKSet.parse(retriever.retrieveResource(new URL(url)).getContent());
+        LOGGER.debug("Loaded {} signing keys from {}", jwkSet.getKeys().size(), url);
+        return new CachedKeys(url, jwkSet, System.currentTimeMillis());
+    }
+
+    private static final class CachedKeys {
+        private final String url;
+        private final JWKSet jwkSet;
+        private final long fetchedAt;
+
+        private CachedKeys(String url, JWKSet jwkSet, long fetchedAt) {
+            this.url = url;
+            this.jwkSet = jwkSet;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+}
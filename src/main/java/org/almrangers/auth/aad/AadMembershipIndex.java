@@ -0,0 +1,239 @@
+/**
+ * Azure Active Directory Authentication Plugin for SonarQube
+ * <p>
+ * Copyright (c) 2022 Michael Johnson
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.almrangers.auth.aad;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import org.sonar.api.server.ServerSide;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Local copy of the tenant's group memberships, kept up to date by
+ * {@link AadGroupSync}.
+ * <p>
+ * The index is replaced as a whole after every sync, so lookups never see a
+ * half-applied change and don't need any locking. Until the first full sync
+ * has completed (or a previous one was loaded from disk) the index isn't ready
+ * and logins keep asking Graph. They also ask Graph for users the index has
+ * never seen, such as users created since the last sync.
+ */
+@ServerSide
+public class AadMembershipIndex {
+
+    private volatile Snapshot snapshot;
+
+    public boolean isReady() {
+        return snapshot != null;
+    }
+
+    /**
+     * Returns whether the index is ready and its last successful sync is at
+     * most the given number of milliseconds old.
+     */
+    public boolean isFresh(long maxAgeMillis) {
+        Snapshot current = snapshot;
+        return current != null && System.currentTimeMillis() - current.syncedAt <= maxAgeMillis;
+    }
+
+    /**
+     * Returns the groups the user is a member of, directly or through nested
+     * groups, keyed by group ID. Empty if the index isn't ready yet, or if the
+     * user isn't a member of any group it knows of: the user may well be in
+     * groups that were created, or joined, after the last sync.
+     */
+    public Optional<Map<String, String>> getUserGroups(String userOid) {
+        Snapshot current = snapshot;
+        if (current == null || !current.parents.containsKey(userOid)) {
+            return Optional.empty();
+        }
+
+        Map<String, String> groups = new HashMap<>();
+        Deque<String> pending = new ArrayDeque<>();
+        pending.add(userOid);
+
+        while (!pending.isEmpty()) {
+            for (String groupId : current.parents.getOrDefault(pending.poll(), Collections.emptySet())) {
+                if (!groups.containsKey(groupId)) {
+                    groups.put(groupId, current.names.get(groupId));
+                    pending.add(groupId);
+                }
+            }
+        }
+
+        // Groups we only know by ID still count for nesting, but can't be mapped.
+        groups.values().removeIf(name -> name == null);
+        return Optional.of(groups);
+    }
+
+    Snapshot current() {
+        return snapshot;
+    }
+
+    void publish(Snapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Loads a snapshot written by {@link #write(File, Snapshot)}. Returns
+     * nothing if there is no file or it can't be read.
+     */
+    static Optional<Snapshot> read(File file) throws IOException {
+        if (!file.isFile()) {
+            return Optional.empty();
+        }
+
+        try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            PersistedIndex persisted = new Gson().fromJson(reader, PersistedIndex.class);
+            if (persisted == null || persisted.scope == null || persisted.names == null || persisted.members == null) {
+                return Optional.empty();
+            }
+            return Optional.of(new Snapshot(persisted.scope, persisted.deltaLink, persisted.names, persisted.members,
+                persisted.syncedAt));
+        } catch (JsonParseException e) {
+            throw new IOException("Couldn't parse " + file, e);
+        }
+    }
+
+    // Written next to the target and moved over it, so a crash mid-write
+    // never leaves a truncated index behind.
+    static void write(File file, Snapshot snapshot) throws IOException {
+        Path target = file.toPath();
+        Files.createDirectories(target.getParent());
+        Path temp = Files.createTempFile(target.getParent(), file.getName(), ".tmp");
+
+        PersistedIndex persisted = new PersistedIndex();
+        persisted.scope = snapshot.scope;
+        persisted.deltaLink = snapshot.deltaLink;
+        persisted.names = snapshot.names;
+        persisted.members = snapshot.members;
+        persisted.syncedAt = snapshot.syncedAt;
+
+        try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            new Gson().toJson(persisted, writer);
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Immutable state of the index after a sync.
+     */
+    static final class Snapshot {
+        // Which tenant and app registration the memberships were read with.
+        final String scope;
+        final String deltaLink;
+        final Map<String, String> names;
+        final Map<String, Set<String>> members;
+        // When the sync this snapshot is the result of completed, in milliseconds since the epoch.
+        final long syncedAt;
+        // Reverse of members, to walk from a user up to its groups.
+        final Map<String, Set<String>> parents;
+
+        Snapshot(String scope, String deltaLink, Map<String, String> names, Map<String, Set<String>> members,
+                 long syncedAt) {
+            this.scope = scope;
+            this.deltaLink = deltaLink;
+            this.names = names;
+            this.members = members;
+            this.syncedAt = syncedAt;
+            this.parents = new HashMap<>();
+
+            members.forEach((groupId, memberIds) -> {
+                for (String memberId : memberIds) {
+                    parents.computeIfAbsent(memberId, id -> new HashSet<>()).add(groupId);
+                }
+            });
+        }
+
+        int groupCount() {
+            return members.size();
+        }
+
+        Builder toBuilder() {
+            Builder builder = new Builder();
+            builder.names.putAll(names);
+            members.forEach((groupId, memberIds) -> builder.members.put(groupId, new HashSet<>(memberIds)));
+            return builder;
+        }
+    }
+
+    /**
+     * Collects the changes of one sync before they are published.
+     */
+    static final class Builder {
+        private final Map<String, String> names = new HashMap<>();
+        private final Map<String, Set<String>> members = new HashMap<>();
+
+        void setName(String groupId, String displayName) {
+            names.put(groupId, displayName);
+            members.computeIfAbsent(groupId, id -> new HashSet<>());
+        }
+
+        void removeGroup(String groupId) {
+            names.remove(groupId);
+            members.remove(groupId);
+        }
+
+        void addMember(String groupId, String memberId) {
+            members.computeIfAbsent(groupId, id -> new HashSet<>()).add(memberId);
+        }
+
+        void removeMember(String groupId, String memberId) {
+            Set<String> memberIds = members.get(groupId);
+            if (memberIds != null) {
+                memberIds.remove(memberId);
+            }
+        }
+
+        Snapshot build(String scope, String deltaLink) {
+            return new Snapshot(scope, deltaLink, names, members, System.currentTimeMillis());
+        }
+    }
+
+    private static final class PersistedIndex {
+        private String scope;
+        private String deltaLink;
+        private Map<String, String> names;
+        private Map<String, Set<String>> members;
+        // Missing from indexes written by older versions, which then count as stale.
+        private long syncedAt;
+    }
+}
@@ -0,0 +1,315 @@
+/**
+ * Azure Active Directory Authentication Plugin for SonarQube
+ * <p>
+ * Copyright (c) 2022 Michael Johnson
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.almrangers.auth.aad;
+
+import org.sonar.api.Startable;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.System2;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timings of each step of a login, and counters of the work done against
+ * Microsoft Graph.
+ * <p>
+ * Everything is published over JMX under the {@value #JMX_DOMAIN} domain:
+ * the counters as {@code type=Login}, and the latency of each
+ * {@link Stage} as {@code type=LoginStage,name=<stage>}, and the connection
+ * use per host of the Azure AD and Graph clients as
+ * {@code type=Connections,name=azureAd} and {@code name=graph}. They can be read
+ * with any JMX client without going through SonarQube.
+ * <p>
+ * Besides the totals since startup, the login latency of the last five to
+ * ten minutes is kept for {@link AadHealthWs}.
+ */
+@ServerSide
+public class AadMetrics implements Startable, AadMetricsMXBean {
+
+    private static final Logger LOGGER = Loggers.get(AadMetrics.class);
+
+    static final String JMX_DOMAIN = "org.almrangers.auth.aad";
+
+    // Recent logins are counted in windows of this length. The current window
+    // and the one before it are reported together, so a window that has just
+    // started doesn't leave us with only a handful of logins.
+    static final long RECENT_WINDOW_MINUTES = 5;
+    private static final long RECENT_WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(RECENT_WINDOW_MINUTES);
+
+    /**
+     * Steps of a login, each with its own latency histogram.
+     */
+    public enum Stage {
+        // The whole callback, from SonarQube handing it over to the user being signed in.
+        LOGIN("login"),
+        CODE_EXCHANGE("codeExchange"),
+        // Includes fetching the signing keys when they aren't cached.
+        ID_TOKEN_VALIDATION("idTokenValidation"),
+        CLIENT_TOKEN("clientToken"),
+        GROUP_LOOKUP("groupLookup");
+
+        private final String jmxName;
+
+        Stage(String jmxName) {
+            this.jmxName = jmxName;
+        }
+    }
+
+    private final AadGraphClient graphClient;
+    private final AadHttpTransport transport;
+    private final System2 system2;
+    private final Map<Stage, AadLatencyHistogram> stages = new EnumMap<>(Stage.class);
+
+    private final LongAdder failedLogins = new LongAdder();
+    private final LongAdder groupCacheHits = new LongAdder();
+    private final LongAdder groupCacheMisses = new LongAdder();
+    private final LongAdder graphPages = new LongAdder();
+    private final LongAdder graphGroups = new LongAdder();
+    private final LongAdder groupLookupFailures = new LongAdder();
+
+    private final List<ObjectName> registered = new ArrayList<>();
+
+    private volatile RecentLogins recentLogins;
+
+    public AadMetrics(AadGraphClient graphClient, AadHttpTransport transport) {
+        this(graphClient, transport, System2.INSTANCE);
+    }
+
+    AadMetrics(AadGraphClient graphClient, AadHttpTransport transport, System2 system2) {
+        this.graphClient = graphClient;
+        this.transport = transport;
+        this.system2 = system2;
+        for (Stage stage : Stage.values()) {
+            stages.put(stage, new AadLatencyHistogram());
+        }
+        this.recentLogins = new RecentLogins(system2.now(), null);
+    }
+
+    @Override
+    public void start() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        register(server, JMX_DOMAIN + ":type=Login", this);
+        stages.forEach((stage, histogram) ->
+            register(server, JMX_DOMAIN + ":type=LoginStage,name=" + stage.jmxName, histogram));
+        register(server, JMX_DOMAIN + ":type=Connections,name=azureAd", transport);
+        register(server, JMX_DOMAIN + ":type=Connections,name=graph", graphClient);
+    }
+
+    @Override
+    public void stop() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        synchronized (registered) {
+            for (ObjectName name : registered) {
+                try {
+                    server.unregisterMBean(name);
+                } catch (JMException e) {
+                    LOGGER.debug("Couldn't unregister {}: {}", name, e.getMessage());
+                }
+            }
+            registered.clear();
+        }
+    }
+
+    // Metrics are only a convenience, failing to publish them mustn't stop the plugin.
+    private void register(MBeanServer server, String objectName, Object mbean) {
+        try {
+            ObjectName name = new ObjectName(objectName);
+            // Left behind by a previous instance of the plugin, for example
+            // after SonarQube restarted its web server.
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(mbean, name);
+            synchronized (registered) {
+                registered.add(name);
+            }
+        } catch (JMException e) {
+            LOGGER.warn("Couldn't publish the {} metrics over JMX: {}", objectName, e.getMessage());
+        }
+    }
+
+    public AadLatencyHistogram histogram(Stage stage) {
+        return stages.get(stage);
+    }
+
+    public void record(Stage stage, long nanos) {
+        stages.get(stage).record(nanos);
+        if (stage == Stage.LOGIN) {
+            recentLogins().current.record(nanos);
+        }
+    }
+
+    /**
+     * Number of logins in the recent windows.
+     */
+    public long getRecentLogins() {
+        RecentLogins recent = recentLogins();
+        return recent.current.getCount() + (recent.previous != null ? recent.previous.getCount() : 0);
+    }
+
+    /**
+     * Estimates the given percentile of the recent login latency, in
+     * milliseconds. Returns 0 when there haven't been any recent logins.
+     */
+    public double recentLoginLatencyMillis(double percentile) {
+        RecentLogins recent = recentLogins();
+        long[] counts = recent.current.bucketCounts();
+        double max = recent.current.getMaxMillis();
+        if (recent.previous != null) {
+            long[] previousCounts = recent.previous.bucketCounts();
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += previousCounts[i];
+            }
+            max = Math.max(max, recent.previous.getMaxMillis());
+        }
+        return AadLatencyHistogram.percentileMillis(counts, max, percentile);
+    }
+
+    private RecentLogins recentLogins() {
+        RecentLogins recent = recentLogins;
+        long now = system2.now();
+        return now - recent.startedAt < RECENT_WINDOW_MILLIS ? recent : nextWindow(now);
+    }
+
+    private synchronized RecentLogins nextWindow(long now) {
+        RecentLogins recent = recentLogins;
+        long elapsed = now - recent.startedAt;
+        if (elapsed >= RECENT_WINDOW_MILLIS) {
+            // After more than a window without any logins the last one isn't recent any more.
+            recent = new RecentLogins(now, elapsed < 2 * RECENT_WINDOW_MILLIS ? recent.current : null);
+            recentLogins = recent;
+        }
+        return recent;
+    }
+
+    /**
+     * Wraps the task so that its running time, successful or not, is recorded
+     * for the given stage.
+     */
+    public <T> Callable<T> timed(Stage stage, Callable<T> task) {
+        return () -> {
+            long start = System.nanoTime();
+            try {
+                return task.call();
+            } finally {
+                record(stage, System.nanoTime() - start);
+            }
+        };
+    }
+
+    public void loginFailed() {
+        failedLogins.increment();
+    }
+
+    public void groupCacheHit() {
+        groupCacheHits.increment();
+    }
+
+    public void groupCacheMiss() {
+        groupCacheMisses.increment();
+    }
+
+    public void graphPageFetched(int groups) {
+        graphPages.increment();
+        graphGroups.add(groups);
+    }
+
+    public void groupLookupFailed() {
+        groupLookupFailures.increment();
+    }
+
+    @Override
+    public long getLogins() {
+        return stages.get(Stage.LOGIN).getCount();
+    }
+
+    @Override
+    public long getFailedLogins() {
+        return failedLogins.sum();
+    }
+
+    @Override
+    public long getGroupCacheHits() {
+        return groupCacheHits.sum();
+    }
+
+    @Override
+    public long getGroupCacheMisses() {
+        return groupCacheMisses.sum();
+    }
+
+    @Override
+    public long getGraphPages() {
+        return graphPages.sum();
+    }
+
+    @Override
+    public long getGraphGroups() {
+        return graphGroups.sum();
+    }
+
+    @Override
+    public long getGraphRetries() {
+        return graphClient.retryHandler().retryCount();
+    }
+
+    @Override
+    public long getGroupLookupFailures() {
+        return groupLookupFailures.sum();
+    }
+
+    @Override
+    public long getRateLimitedLookups() {
+        return graphClient.rateLimiter().getRejectedCount();
+    }
+
+    @Override
+    public long getCircuitBreakerRejections() {
+        return graphClient.circuitBreaker().getRejectedCount();
+    }
+
+    private static final class RecentLogins {
+        private final long startedAt;
+        private final AadLatencyHistogram current = new AadLatencyHistogram();
+        private final AadLatencyHistogram previous;
+
+        private RecentLogins(long startedAt, AadLatencyHistogram previous) {
+            this.startedAt = startedAt;
+            this.previous = previous;
+        }
+    }
+}
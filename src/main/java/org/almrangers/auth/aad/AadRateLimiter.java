@@ -0,0 +1,148 @@
+/**
+ * Azure Active Directory Authentication Plugin for SonarQube
+ * <p>
+ * Copyright (c) 2022 Michael Johnson
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.almrangers.auth.aad;
+
+import org.sonar.api.utils.System2;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Token bucket spreading Microsoft Graph lookups over time.
+ * <p>
+ * The bucket holds up to one second worth of permits and refills at the
+ * configured rate, so short bursts go through untouched while a sustained
+ * flood, such as everyone signing in again after a restart, is held to the
+ * rate. A caller that finds the bucket empty waits for its turn, but only if
+ * its turn comes within the configured maximum wait and not too many callers
+ * are waiting already. Otherwise it is turned away and can fall back on cached
+ * groups. Background work, which has no login waiting on it, always waits for
+ * its turn, see {@link #acquire()}.
+ */
+public class AadRateLimiter {
+
+    private final AadSettings settings;
+    private final System2 system2;
+    private final LongAdder waited = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    private int rate;
+    private double permits;
+    private long refilledAt;
+    private int waiting;
+
+    AadRateLimiter(AadSettings settings) {
+        this(settings, System2.INSTANCE);
+    }
+
+    AadRateLimiter(AadSettings settings, System2 system2) {
+        this.settings = settings;
+        this.system2 = system2;
+    }
+
+    /**
+     * Takes a permit, waiting for one if needed and allowed. Returns false if
+     * the caller should not call Graph now.
+     */
+    public boolean tryAcquire() throws InterruptedException {
+        long wait = reserve(true);
+        if (wait < 0) {
+            rejected.increment();
+            return false;
+        }
+        awaitTurn(wait);
+        return true;
+    }
+
+    /**
+     * Takes a permit, waiting as long as it takes.
+     */
+    public void acquire() throws InterruptedException {
+        awaitTurn(reserve(false));
+    }
+
+    private void awaitTurn(long wait) throws InterruptedException {
+        if (wait == 0) {
+            return;
+        }
+
+        waited.increment();
+        try {
+            TimeUnit.MILLISECONDS.sleep(wait);
+        } finally {
+            synchronized (this) {
+                waiting--;
+            }
+        }
+    }
+
+    // Returns how long to wait for the reserved permit, or -1 if none could be
+    // reserved within the limits on waiting.
+    private synchronized long reserve(boolean limitWait) {
+        int currentRate = settings.graphRequestsPerSecond();
+        if (currentRate == 0) {
+            return 0;
+        }
+
+        long now = system2.now();
+        if (currentRate != rate) {
+            // New or changed rate, start with a full bucket.
+            rate = currentRate;
+            permits = currentRate;
+            refilledAt = now;
+        }
+        permits = Math.min(rate, permits + (now - refilledAt) * rate / 1000.0);
+        refilledAt = now;
+
+        if (permits >= 1) {
+            permits -= 1;
+            return 0;
+        }
+
+        // Permits already handed out to waiting callers are counted as debt.
+        long wait = (long) Math.ceil((1 - permits) * 1000 / rate);
+        if (limitWait && (wait > settings.graphRateLimitMaxWait() || waiting >= settings.graphRateLimitQueueSize())) {
+            return -1;
+        }
+        permits -= 1;
+        waiting++;
+        return wait;
+    }
+
+    public synchronized int getWaiting() {
+        return waiting;
+    }
+
+    // Callers that had to wait for a permit since the server started.
+    public long getWaitedCount() {
+        return waited.sum();
+    }
+
+    // Callers turned away since the server started.
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+}
@@ -26,10 +26,16 @@
  */
 package org.almrangers.auth.aad;
 
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Collectors;
 
+import com.nimbusds.oauth2.sdk.Scope;
+import com.nimbusds.oauth2.sdk.auth.Secret;
+import com.nimbusds.oauth2.sdk.id.ClientID;
 import org.sonar.api.config.Configuration;
 import org.sonar.api.config.PropertyDefinition;
 import org.sonar.api.server.ServerSide;
@@ -50,7 +56,34 @@ public class AadSettings {
   protected static final String DIRECTORY_LOC_CN = "Azure AD China";
   protected static final String ENABLE_GROUPS_SYNC = "sonar.auth.aad.enableGroupsSync";
   protected static final String ENABLE_CLIENT_CRED = "sonar.auth.aad.enableClientCredential";
+  protected static final String GROUP_SOURCE = "sonar.auth.aad.groupSource";
+  protected static final String GROUP_SOURCE_GRAPH = "Microsoft Graph";
+  protected static final String GROUP_SOURCE_ID_TOKEN = "ID Token Claim";
+  protected static final String ENABLE_GROUP_CACHE = "sonar.auth.aad.enableGroupCache";
+  protected static final String GROUP_CACHE_TTL = "sonar.auth.aad.groupCacheTtl";
+  protected static final String GROUP_CACHE_MAX_ENTRIES = "sonar.auth.aad.groupCacheMaxEntries";
+  protected static final String GROUP_NAME_CACHE_TTL = "sonar.auth.aad.groupNameCacheTtl";
+  protected static final String GROUP_NAME_PREFIX = "sonar.auth.aad.groupNamePrefix";
+  protected static final String GROUP_FILTER = "sonar.auth.aad.groupFilter";
+  protected static final String GROUP_ALLOWLIST = "sonar.auth.aad.groupAllowlist";
+  protected static final String BACKGROUND_GROUP_SYNC = "sonar.auth.aad.enableBackgroundGroupSync";
+  protected static final String BACKGROUND_GROUP_SYNC_INTERVAL = "sonar.auth.aad.backgroundGroupSyncInterval";
+  protected static final String BACKGROUND_GROUP_SYNC_MAX_AGE = "sonar.auth.aad.backgroundGroupSyncMaxAge";
   protected static final String MULTI_TENANT = "sonar.auth.aad.multiTenant";
+  protected static final String CALLBACK_TIMEOUT = "sonar.auth.aad.callbackTimeout";
+  protected static final String CONNECT_TIMEOUT = "sonar.auth.aad.connectTimeout";
+  protected static final String READ_TIMEOUT = "sonar.auth.aad.readTimeout";
+  protected static final String GROUP_SYNC_TIMEOUT = "sonar.auth.aad.groupSyncTimeout";
+  protected static final String GRAPH_MAX_RETRIES = "sonar.auth.aad.graphMaxRetries";
+  protected static final String CIRCUIT_BREAKER_THRESHOLD = "sonar.auth.aad.circuitBreakerThreshold";
+  protected static final String CIRCUIT_BREAKER_OPEN_DURATION = "sonar.auth.aad.circuitBreakerOpenDuration";
+  protected static final String GRAPH_REQUESTS_PER_SECOND = "sonar.auth.aad.graphRequestsPerSecond";
+  protected static final String GRAPH_RATE_LIMIT_MAX_WAIT = "sonar.auth.aad.graphRateLimitMaxWait";
+  protected static final String GRAPH_RATE_LIMIT_QUEUE_SIZE = "sonar.auth.aad.graphRateLimitQueueSize";
+  protected static final String JWKS_CACHE_TTL = "sonar.auth.aad.jwksCacheTtl";
+  protected static final String WARM_UP_ON_STARTUP = "sonar.auth.aad.warmUpOnStartup";
+
+  protected static final String DATA_PATH = "sonar.path.data";
 
   protected static final String CATEGORY = "aad";
   protected static final String SUBCATEGORY_GENERAL = "general";
@@ -69,8 +102,31 @@ public class AadSettings {
   protected static final String GRAPH_URL_CN = "https://microsoftgraph.chinacloudapi.cn";
   protected static final String GROUPS_REQUEST_FORMAT = "/v1.0/%s/users/%s/transitiveMemberOf";
 
+  protected static final int DEFAULT_JWKS_CACHE_TTL = 60;
+  protected static final int DEFAULT_GROUP_CACHE_TTL = 15;
+  protected static final int DEFAULT_GROUP_CACHE_MAX_ENTRIES = 10000;
+  protected static final int DEFAULT_GROUP_NAME_CACHE_TTL = 60;
+  protected static final int DEFAULT_BACKGROUND_GROUP_SYNC_INTERVAL = 10;
+  protected static final int DEFAULT_BACKGROUND_GROUP_SYNC_MAX_AGE = 60;
+  protected static final int DEFAULT_CALLBACK_TIMEOUT = 30;
+  protected static final int DEFAULT_CONNECT_TIMEOUT = 5;
+  protected static final int DEFAULT_READ_TIMEOUT = 10;
+  protected static final int DEFAULT_GROUP_SYNC_TIMEOUT = 10;
+  protected static final int DEFAULT_GRAPH_MAX_RETRIES = 3;
+  protected static final int DEFAULT_CIRCUIT_BREAKER_THRESHOLD = 5;
+  protected static final int DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION = 30;
+  protected static final int DEFAULT_GRAPH_REQUESTS_PER_SECOND = 50;
+  protected static final int DEFAULT_GRAPH_RATE_LIMIT_MAX_WAIT = 1000;
+  protected static final int DEFAULT_GRAPH_RATE_LIMIT_QUEUE_SIZE = 100;
+
+  // The properties the connection settings in a Snapshot are derived from.
+  private static final List<String> CONNECTION_PROPERTIES =
+    Arrays.asList(CLIENT_ID, CLIENT_SECRET, TENANT_ID, DIRECTORY_LOCATION, MULTI_TENANT);
+
   private final Configuration config;
 
+  private volatile Snapshot snapshot;
+
   public AadSettings(Configuration config) {
     this.config = config;
   }
@@ -114,6 +170,79 @@ public class AadSettings {
         .defaultValue(valueOf(false))
         .index(1)
         .build(),
+      PropertyDefinition.builder(GROUP_SOURCE)
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY_GROUPSYNC)
+        .type(SINGLE_SELECT_LIST)
+        .defaultValue(GROUP_SOURCE_GRAPH)
+        .options(GROUP_SOURCE_GRAPH, GROUP_SOURCE_ID_TOKEN)
+        .index(2)
+        .build(),
+      PropertyDefinition.builder(ENABLE_GROUP_CACHE)
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY_GROUPSYNC)
+        .type(BOOLEAN)
+        .defaultValue(valueOf(false))
+        .index(3)
+        .build(),
+      PropertyDefinition.builder(GROUP_CACHE_TTL)
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY_GROUPSYNC)
+        .type(INTEGER)
+        .defaultValue(valueOf(DEFAULT_GROUP_CACHE_TTL))
+        .index(4)
+        .build(),
+      PropertyDefinition.builder(GROUP_CACHE_MAX_ENTRIES)
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY_GROUPSYNC)
+        .type(INTEGER)
+        .defaultValue(valueOf(DEFAULT_GROUP_CACHE_MAX_ENTRIES))
+        .index(5)
+        .build(),
+      PropertyDefinition.builder(GROUP_NAME_CACHE_TTL)
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY_GROUPSYNC)
+        .type(INTEGER)
+        .defaultValue(valueOf(DEFAULT_GROUP_NAME_CACHE_TTL))
+        .index(11)
+        .build(),
+      PropertyDefinition.builder(BACKGROUND_GROUP_SYNC_MAX_AGE)
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY_GROUPSYNC)
+        .type(INTEGER)
+        .defaultValue(valueOf(DEFAULT_BACKGROUND_GROUP_SYNC_MAX_AGE))
+        .index(12)
+        .build(),
+      PropertyDefinition.builder(GROUP_NAME_PREFIX)
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY_GROUPSYNC)
+        .index(6)
+        .build(),
+      PropertyDefinition.builder(GROUP_FILTER)
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY_GROUPSYNC)
+        .index(7)
+        .build(),
+      PropertyDefinition.builder(GROUP_ALLOWLIST)
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY_GROUPSYNC)
+        .multiValues(true)
+        .index(8)
+        .build(),
+      PropertyDefinition.builder(BACKGROUND_GROUP_SYNC)
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY_GROUPSYNC)
+        .type(BOOLEAN)
+        .defaultValue(valueOf(false))
+        .index(9)
+        .build(),
+      PropertyDefinition.builder(BACKGROUND_GROUP_SYNC_INTERVAL)
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY_GROUPSYNC)
+        .type(INTEGER)
+        .defaultValue(valueOf(DEFAULT_BACKGROUND_GROUP_SYNC_INTERVAL))
+        .index(10)
+        .build(),
       /* ADVANCED PROPERTIES */
       PropertyDefinition.builder(MULTI_TENANT)
         .category(CATEGORY)
@@ -136,6 +265,90 @@ public class AadSettings {
         .type(BOOLEAN)
         .defaultValue(valueOf(false))
         .index(3)
+        .build(),
+      PropertyDefinition.builder(JWKS_CACHE_TTL)
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY_ADVANCED)
+        .type(INTEGER)
+        .defaultValue(valueOf(DEFAULT_JWKS_CACHE_TTL))
+        .index(4)
+        .build(),
+      PropertyDefinition.builder(CALLBACK_TIMEOUT)
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY_ADVANCED)
+        .type(INTEGER)
+        .defaultValue(valueOf(DEFAULT_CALLBACK_TIMEOUT))
+        .index(6)
+        .build(),
+      PropertyDefinition.builder(CONNECT_TIMEOUT)
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY_ADVANCED)
+        .type(INTEGER)
+        .defaultValue(valueOf(DEFAULT_CONNECT_TIMEOUT))
+        .index(7)
+        .build(),
+      PropertyDefinition.builder(READ_TIMEOUT)
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY_ADVANCED)
+        .type(INTEGER)
+        .defaultValue(valueOf(DEFAULT_READ_TIMEOUT))
+        .index(8)
+        .build(),
+      PropertyDefinition.builder(GROUP_SYNC_TIMEOUT)
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY_ADVANCED)
+        .type(INTEGER)
+        .defaultValue(valueOf(DEFAULT_GROUP_SYNC_TIMEOUT))
+        .index(9)
+        .build(),
+      PropertyDefinition.builder(GRAPH_MAX_RETRIES)
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY_ADVANCED)
+        .type(INTEGER)
+        .defaultValue(valueOf(DEFAULT_GRAPH_MAX_RETRIES))
+        .index(10)
+        .build(),
+      PropertyDefinition.builder(CIRCUIT_BREAKER_THRESHOLD)
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY_ADVANCED)
+        .type(INTEGER)
+        .defaultValue(valueOf(DEFAULT_CIRCUIT_BREAKER_THRESHOLD))
+        .index(11)
+        .build(),
+      PropertyDefinition.builder(CIRCUIT_BREAKER_OPEN_DURATION)
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY_ADVANCED)
+        .type(INTEGER)
+        .defaultValue(valueOf(DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION))
+        .index(12)
+        .build(),
+      PropertyDefinition.builder(GRAPH_REQUESTS_PER_SECOND)
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY_ADVANCED)
+        .type(INTEGER)
+        .defaultValue(valueOf(DEFAULT_GRAPH_REQUESTS_PER_SECOND))
+        .index(13)
+        .build(),
+      PropertyDefinition.builder(GRAPH_RATE_LIMIT_MAX_WAIT)
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY_ADVANCED)
+        .type(INTEGER)
+        .defaultValue(valueOf(DEFAULT_GRAPH_RATE_LIMIT_MAX_WAIT))
+        .index(14)
+        .build(),
+      PropertyDefinition.builder(GRAPH_RATE_LIMIT_QUEUE_SIZE)
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY_ADVANCED)
+        .type(INTEGER)
+        .defaultValue(valueOf(DEFAULT_GRAPH_RATE_LIMIT_QUEUE_SIZE))
+        .index(15)
+        .build(),
+      PropertyDefinition.builder(WARM_UP_ON_STARTUP)
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY_ADVANCED)
+        .type(BOOLEAN)
+        .defaultValue(valueOf(true))
+        .index(16)
         .build()
     );
   }
@@ -152,6 +365,68 @@ public class AadSettings {
     return config.getBoolean(ENABLE_GROUPS_SYNC).orElse(Boolean.FALSE);
   }
 
+  // Read group IDs from the ID token instead of always asking Graph.
+  public boolean groupsFromIdToken() {
+    return config.get(GROUP_SOURCE).map(GROUP_SOURCE_ID_TOKEN::equals).orElse(Boolean.FALSE);
+  }
+
+  public boolean enableGroupCache() {
+    return config.getBoolean(ENABLE_GROUP_CACHE).orElse(Boolean.FALSE);
+  }
+
+  // How long cached group memberships are used before asking Graph again, in minutes.
+  public int groupCacheTtl() {
+    return Math.max(0, config.getInt(GROUP_CACHE_TTL).orElse(DEFAULT_GROUP_CACHE_TTL));
+  }
+
+  public int groupCacheMaxEntries() {
+    return Math.max(1, config.getInt(GROUP_CACHE_MAX_ENTRIES).orElse(DEFAULT_GROUP_CACHE_MAX_ENTRIES));
+  }
+
+  // How long group names looked up by ID are kept, in minutes.
+  public int groupNameCacheTtl() {
+    return Math.max(0, config.getInt(GROUP_NAME_CACHE_TTL).orElse(DEFAULT_GROUP_NAME_CACHE_TTL));
+  }
+
+  public Optional<String> groupNamePrefix() {
+    return config.get(GROUP_NAME_PREFIX).map(String::trim).filter(prefix -> !prefix.isEmpty());
+  }
+
+  // Raw OData $filter expression applied to the group membership query.
+  public Optional<String> groupFilter() {
+    return config.get(GROUP_FILTER).map(String::trim).filter(filter -> !filter.isEmpty());
+  }
+
+  // Group IDs or names to check the user against, instead of reading all their groups.
+  public List<String> groupAllowlist() {
+    return Arrays.stream(config.getStringArray(GROUP_ALLOWLIST))
+      .map(String::trim)
+      .filter(entry -> !entry.isEmpty())
+      .distinct()
+      .collect(Collectors.toList());
+  }
+
+  // Only possible with the client credential flow, the job has no user token to work with.
+  public boolean backgroundGroupSync() {
+    return config.getBoolean(BACKGROUND_GROUP_SYNC).orElse(Boolean.FALSE) && enableGroupSync() && enableClientCredential();
+  }
+
+  // Delay between two background group syncs, in minutes.
+  public int backgroundGroupSyncInterval() {
+    return Math.max(1, config.getInt(BACKGROUND_GROUP_SYNC_INTERVAL).orElse(DEFAULT_BACKGROUND_GROUP_SYNC_INTERVAL));
+  }
+
+  // Age in minutes past which the background group sync index is no longer
+  // used at login. Never shorter than the interval between two syncs.
+  public int backgroundGroupSyncMaxAge() {
+    return Math.max(backgroundGroupSyncInterval(),
+      config.getInt(BACKGROUND_GROUP_SYNC_MAX_AGE).orElse(DEFAULT_BACKGROUND_GROUP_SYNC_MAX_AGE));
+  }
+
+  public Optional<String> dataPath() {
+    return config.get(DATA_PATH);
+  }
+
   public boolean enableClientCredential() {
     return config.getBoolean(ENABLE_CLIENT_CRED).orElse(Boolean.FALSE) && !multiTenant();
   }
@@ -168,6 +443,64 @@ public class AadSettings {
     return config.get(CLIENT_SECRET);
   }
 
+  // Lifetime of the cached signing keys, in minutes.
+  public int jwksCacheTtl() {
+    return Math.max(1, config.getInt(JWKS_CACHE_TTL).orElse(DEFAULT_JWKS_CACHE_TTL));
+  }
+
+  // Longest a login may take once the user is sent back from Azure AD, in seconds.
+  public int callbackTimeout() {
+    return Math.max(1, config.getInt(CALLBACK_TIMEOUT).orElse(DEFAULT_CALLBACK_TIMEOUT));
+  }
+
+  // Connect and read timeouts for every request to Azure AD and Microsoft Graph, in seconds.
+  public int connectTimeout() {
+    return Math.max(1, config.getInt(CONNECT_TIMEOUT).orElse(DEFAULT_CONNECT_TIMEOUT));
+  }
+
+  public int readTimeout() {
+    return Math.max(1, config.getInt(READ_TIMEOUT).orElse(DEFAULT_READ_TIMEOUT));
+  }
+
+  // The part of the login timeout that may be spent looking up groups, in seconds.
+  public int groupSyncTimeout() {
+    return Math.max(1, Math.min(callbackTimeout(), config.getInt(GROUP_SYNC_TIMEOUT).orElse(DEFAULT_GROUP_SYNC_TIMEOUT)));
+  }
+
+  // Times a throttled Microsoft Graph request is sent again. 0 disables retries.
+  public int graphMaxRetries() {
+    return Math.max(0, config.getInt(GRAPH_MAX_RETRIES).orElse(DEFAULT_GRAPH_MAX_RETRIES));
+  }
+
+  // Failures in a row after which calls to Azure AD or Microsoft Graph are skipped. 0 disables the circuit breakers.
+  public int circuitBreakerThreshold() {
+    return Math.max(0, config.getInt(CIRCUIT_BREAKER_THRESHOLD).orElse(DEFAULT_CIRCUIT_BREAKER_THRESHOLD));
+  }
+
+  // How long calls are skipped before probing again, in seconds.
+  public int circuitBreakerOpenDuration() {
+    return Math.max(1, config.getInt(CIRCUIT_BREAKER_OPEN_DURATION).orElse(DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION));
+  }
+
+  // Group lookups sent to Microsoft Graph per second across all logins. 0 disables the limit.
+  public int graphRequestsPerSecond() {
+    return Math.max(0, config.getInt(GRAPH_REQUESTS_PER_SECOND).orElse(DEFAULT_GRAPH_REQUESTS_PER_SECOND));
+  }
+
+  // Longest a lookup may wait for its turn under the rate limit, in milliseconds.
+  public int graphRateLimitMaxWait() {
+    return Math.max(0, config.getInt(GRAPH_RATE_LIMIT_MAX_WAIT).orElse(DEFAULT_GRAPH_RATE_LIMIT_MAX_WAIT));
+  }
+
+  public int graphRateLimitQueueSize() {
+    return Math.max(0, config.getInt(GRAPH_RATE_LIMIT_QUEUE_SIZE).orElse(DEFAULT_GRAPH_RATE_LIMIT_QUEUE_SIZE));
+  }
+
+  // Load the signing keys and client token in the background when the server starts.
+  public boolean warmUpOnStartup() {
+    return config.getBoolean(WARM_UP_ON_STARTUP).orElse(Boolean.TRUE);
+  }
+
   public boolean isEnabled() {
     return config.getBoolean(ENABLED).orElse(Boolean.FALSE) && clientId().isPresent() && clientSecret().isPresent();
   }
@@ -228,4 +561,125 @@ public class AadSettings {
   public String getGraphMembershipUrl() {
     return getGraphURL() + GROUPS_REQUEST_FORMAT;
   }
+
+  /**
+   * Returns the connection settings, already parsed. The same snapshot is
+   * returned until one of the properties it is built from changes, so callers
+   * can tell that their cached tokens, keys or processors are still valid by
+   * checking that they were built from the current snapshot.
+   */
+  public Snapshot snapshot() {
+    Snapshot current = snapshot;
+    // Configuration can't tell us when it changes, so the properties are
+    // compared on every call, which is cheap next to rebuilding the snapshot.
+    if (current == null || !current.isBuiltFrom(config)) {
+      current = rebuildSnapshot();
+    }
+    return current;
+  }
+
+  private synchronized Snapshot rebuildSnapshot() {
+    Snapshot current = snapshot;
+    if (current == null || !current.isBuiltFrom(config)) {
+      current = new Snapshot(this, connectionProperties());
+      snapshot = current;
+    }
+    return current;
+  }
+
+  private List<Optional<String>> connectionProperties() {
+    return CONNECTION_PROPERTIES.stream().map(config::get).collect(Collectors.toList());
+  }
+
+  /**
+   * Immutable view of the settings used to talk to Azure AD and Microsoft
+   * Graph, with the URLs built and the OAuth values parsed once.
+   */
+  public static final class Snapshot {
+    private static final Scope LOGIN_SCOPE = Scope.parse("openid profile email User.Read");
+
+    private final List<Optional<String>> source;
+
+    private final Optional<String> clientIdValue;
+    private final ClientID clientId;
+    private final Secret clientSecret;
+    private final String authorizationUrl;
+    private final URI authorizationUri;
+    private final String authorityUrl;
+    private final URI authorityUri;
+    private final String jwkKeysUrl;
+    private final String graphUrl;
+    private final Scope graphScope;
+
+    private Snapshot(AadSettings settings, List<Optional<String>> source) {
+      this.source = source;
+      this.clientIdValue = settings.clientId();
+      this.clientId = clientIdValue.filter(id -> !id.trim().isEmpty()).map(ClientID::new).orElse(null);
+      this.clientSecret = new Secret(settings.clientSecret().orElse(""));
+      this.authorizationUrl = settings.authorizationUrl();
+      this.authorizationUri = parse(authorizationUrl);
+      this.authorityUrl = settings.authorityUrl();
+      this.authorityUri = parse(authorityUrl);
+      this.jwkKeysUrl = settings.jwkKeysUrl();
+      this.graphUrl = settings.getGraphURL();
+      this.graphScope = new Scope(graphUrl + "/.default");
+    }
+
+    private boolean isBuiltFrom(Configuration config) {
+      for (int i = 0; i < CONNECTION_PROPERTIES.size(); i++) {
+        if (!source.get(i).equals(config.get(CONNECTION_PROPERTIES.get(i)))) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    // Invalid URLs, such as a tenant ID with spaces, fail when they are used.
+    private static URI parse(String url) {
+      try {
+        return new URI(url);
+      } catch (URISyntaxException e) {
+        return null;
+      }
+    }
+
+    public Optional<String> clientIdValue() {
+      return clientIdValue;
+    }
+
+    // Null when no client ID is configured.
+    public ClientID clientId() {
+      return clientId;
+    }
+
+    public Secret clientSecret() {
+      return clientSecret;
+    }
+
+    public URI authorizationUri() throws URISyntaxException {
+      return authorizationUri != null ? authorizationUri : new URI(authorizationUrl);
+    }
+
+    public URI authorityUri() throws URISyntaxException {
+      return authorityUri != null ? authorityUri : new URI(authorityUrl);
+    }
+
+    public String jwkKeysUrl() {
+      return jwkKeysUrl;
+    }
+
+    public String graphUrl() {
+      return graphUrl;
+    }
+
+    // Scopes asked for when the user signs in.
+    public Scope loginScope() {
+      return LOGIN_SCOPE;
+    }
+
+    // Scope of the client credential token for Microsoft Graph.
+    public Scope graphScope() {
+      return graphScope;
+    }
+  }
 }
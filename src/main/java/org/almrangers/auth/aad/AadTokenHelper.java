@@ -25,15 +25,11 @@
  */
 package org.almrangers.auth.aad;
 
-import com.nimbusds.jose.JOSEException;
 import com.nimbusds.jose.JWSAlgorithm;
 import com.nimbusds.jose.jwk.source.JWKSource;
-import com.nimbusds.jose.jwk.source.RemoteJWKSet;
-import com.nimbusds.jose.proc.BadJOSEException;
 import com.nimbusds.jose.proc.JWSKeySelector;
 import com.nimbusds.jose.proc.JWSVerificationKeySelector;
 import com.nimbusds.jose.proc.SecurityContext;
-import com.nimbusds.jwt.JWT;
 import com.nimbusds.jwt.proc.ConfigurableJWTProcessor;
 import com.nimbusds.jwt.proc.DefaultJWTClaimsVerifier;
 import com.nimbusds.jwt.proc.DefaultJWTProcessor;
@@ -46,28 +42,29 @@ import org.sonar.api.server.authentication.UnauthorizedException;
 import org.sonar.api.utils.log.Logger;
 import org.sonar.api.utils.log.Loggers;
 
-import java.net.MalformedURLException;
-import java.net.URL;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Set;
 
 public class AadTokenHelper {
 
     private static final Logger LOGGER = Loggers.get(AadTokenHelper.class);
 
+    // Claims that must be present in every ID token we accept.
+    static final Set<String> REQUIRED_CLAIMS = Collections.unmodifiableSet(new HashSet<>(
+        Arrays.asList("iss", "iat", "nbf", "exp", "oid", "name", "preferred_username", "sub", "tid")));
+
     AadTokenHelper() {
         throw new IllegalStateException("This is a utility class, do not instantiate it.");
     }
 
-    public static boolean validateIdToken(JWT idToken, AadSettings settings) throws MalformedURLException, BadJOSEException, JOSEException {
+    public static ConfigurableJWTProcessor<SecurityContext> buildIdTokenProcessor(String clientId, JWKSource<SecurityContext> keySource) {
 
         // Create a JWT processor for the access tokens
         ConfigurableJWTProcessor<SecurityContext> jwtProcessor =
             new DefaultJWTProcessor<>();
 
-        JWKSource<SecurityContext> keySource =
-            new RemoteJWKSet<>(new URL(settings.jwkKeysUrl()));
-
         //MS uses RSA 256 to sign their JWTs
         JWSAlgorithm expectedJWSAlg = JWSAlgorithm.RS256;
 
@@ -82,17 +79,13 @@ public class AadTokenHelper {
         // to ensure the token is still valid.
         jwtProcessor.setJWTClaimsSetVerifier(
             new DefaultJWTClaimsVerifier<>(
-                settings.clientId().orElse(null),
+                clientId,
                 null,
-                new HashSet<>(Arrays.asList("iss", "iat", "nbf", "exp", "oid", "name", "preferred_username", "sub", "tid"))
+                REQUIRED_CLAIMS
             )
         );
 
-        // Don't capture the output. This will throw an error if the token doesn't
-        // validate instead of returning true.
-        jwtProcessor.process(idToken, null);
-
-        return true; // If there was no exception thrown, then the token is valid
+        return jwtProcessor;
     }
 
     public static OIDCTokenResponse extractTokenResponse(HTTPResponse tokenHTTPResp) {
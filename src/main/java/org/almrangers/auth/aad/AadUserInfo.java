@@ -26,50 +26,36 @@
 
 package org.almrangers.auth.aad;
 
-import com.microsoft.graph.authentication.IAuthenticationProvider;
-import com.microsoft.graph.http.GraphServiceException;
-import com.microsoft.graph.models.DirectoryObject;
-import com.microsoft.graph.models.Group;
-import com.microsoft.graph.requests.DirectoryObjectCollectionWithReferencesPage;
-import com.microsoft.graph.requests.DirectoryObjectCollectionWithReferencesRequestBuilder;
-import com.microsoft.graph.requests.GraphServiceClient;
 import com.nimbusds.jwt.JWT;
 import com.nimbusds.jwt.JWTClaimsSet;
-import com.nimbusds.oauth2.sdk.token.AccessToken;
-import okhttp3.Request;
 import org.sonar.api.server.authentication.UserIdentity;
-import org.sonar.api.utils.log.Logger;
-import org.sonar.api.utils.log.Loggers;
-import reactor.util.annotation.NonNull;
-import reactor.util.annotation.Nullable;
 
-import java.net.URL;
 import java.text.ParseException;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
-import java.util.concurrent.CompletableFuture;
 
 public class AadUserInfo {
 
     private String userOid;
+    private String tenantId;
     private String displayId;
     private String displayName;
     private String userEmail;
 
+    // Group object IDs from the "groups" claim. Null if the claim is missing
+    // or AAD left groups out because the user is in too many of them.
+    private List<String> groupIds;
+    private boolean groupOverage;
+
     //Initialized to an empty set so if group sync is enabled and no groups are
     //returned from the MS Graph call, user will be removed from all SQ groups.
     private Set<String> userGroups = Collections.emptySet();
 
-    private static final Logger LOGGER = Loggers.get(AadUserInfo.class);
-
-    public AadUserInfo(JWT idToken, AccessToken accessToken, Boolean wantGroups) throws ParseException {
+    public AadUserInfo(JWT idToken) throws ParseException {
         parseToken(idToken);
-
-        if(Boolean.TRUE.equals(wantGroups)) {
-            processGroups(accessToken.getValue());
-        }
     }
 
     private void parseToken(JWT idToken) throws ParseException {
@@ -77,6 +63,7 @@ public class AadUserInfo {
         final String USERNAME_CLAIM = "preferred_username";
         final String EMAIL_CLAIM = "email";
         final String DISPLAYNAME_CLAIM = "name";
+        final String GROUPS_CLAIM = "groups";
 
         JWTClaimsSet claims = idToken.getJWTClaimsSet();
 
@@ -85,6 +72,11 @@ public class AadUserInfo {
             this.userOid = claims.getStringClaim("oid");
         }
 
+        // Tenant the user signed in from. Part of the group cache key.
+        if(claims.getStringClaim("tid") != null) {
+            this.tenantId = claims.getStringClaim("tid");
+        }
+
         // Display ID (Used as the "Provider Login")
         // Tries the "preferred username" first, and falls back to email
         if(!"".equals(claims.getStringClaim(USERNAME_CLAIM)) && claims.getStringClaim(USERNAME_CLAIM) != null) {
@@ -111,6 +103,18 @@ public class AadUserInfo {
         } else if(claims.getStringClaim(USERNAME_CLAIM) != null) {
             this.userEmail = claims.getStringClaim(USERNAME_CLAIM);
         }
+
+        // Group IDs
+        // Only present if the app registration asks for group claims. When the
+        // user is in too many groups AAD leaves the claim out and points to
+        // Graph instead, either through "_claim_names" or "hasgroups".
+        Map<String, Object> claimNames = claims.getJSONObjectClaim("_claim_names");
+        this.groupOverage = (claimNames != null && claimNames.containsKey(GROUPS_CLAIM))
+            || Boolean.TRUE.equals(claims.getBooleanClaim("hasgroups"));
+
+        if(!groupOverage && claims.getClaim(GROUPS_CLAIM) != null) {
+            this.groupIds = Collections.unmodifiableList(claims.getStringListClaim(GROUPS_CLAIM));
+        }
     }
 
     public UserIdentity.Builder buildUserId(boolean includeGroups) {
@@ -126,74 +130,12 @@ public class AadUserInfo {
         return userIdentityBuilder;
     }
 
-
-    private void processGroups(String accessToken) {
-        // We already have the auth code, so create a custom provider that will
-        // return the code to our graph client.
-        IAuthenticationProvider graphAuthProvider = new IAuthenticationProvider() {
-            @NonNull
-            @Override
-            public CompletableFuture<String> getAuthorizationTokenAsync(URL requestUrl) {
-                CompletableFuture<String> future = new CompletableFuture<>();
-                future.complete(accessToken);
-                return future;
-            }
-        };
-
-        try {
-            final GraphServiceClient<Request> graphClient =
-                GraphServiceClient
-                    .builder()
-                    .authenticationProvider(graphAuthProvider)
-                    .buildClient();
-
-            DirectoryObjectCollectionWithReferencesPage memberGroupCollection =
-                graphClient
-                    .users(userOid).transitiveMemberOf()
-                    .buildRequest()
-                    .select("id,displayName")
-                    .top(999) // Maximum page size of 999 to reduce number of requests.
-                    .get();
-
-            Set<String> parsedUserGroups = processMemberGroupCollection(memberGroupCollection);
-
-            if(parsedUserGroups.isEmpty()) {
-                LOGGER.warn("Group list was empty. Maybe your AAD permissions aren't set correctly?");
-            }
-
-            userGroups = parsedUserGroups;
-        } catch (GraphServiceException e) {
-            // Post the error to the logs, don't consider this fatal (fail auth)
-            LOGGER.error("Group Membership Request failed with error: " + e.getMessage());
-        }
+    public String getUserOid() {
+        return userOid;
     }
 
-    Set<String> processMemberGroupCollection(@Nullable DirectoryObjectCollectionWithReferencesPage memberGroupCollection) {
-        Set<String> parsedUserGroups = new HashSet<>();
-
-        while(memberGroupCollection != null) {
-            final List<DirectoryObject> groupList = memberGroupCollection.getCurrentPage();
-
-            for (DirectoryObject group : groupList) {
-                if (group instanceof Group) {
-                    String groupDisplayName = ((Group) group).displayName;
-
-                    // Don't add the group if the display name is null
-                    if (groupDisplayName != null) {
-                        parsedUserGroups.add(groupDisplayName);
-                    }
-                }
-            }
-
-            final DirectoryObjectCollectionWithReferencesRequestBuilder nextPage = memberGroupCollection.getNextPage();
-            if (nextPage == null) {
-                break;
-            } else {
-                memberGroupCollection = nextPage.buildRequest().get();
-            }
-        }
-
-        return parsedUserGroups;
+    public String getTenantId() {
+        return tenantId;
     }
 
     public String getDisplayId() {
@@ -208,7 +150,23 @@ public class AadUserInfo {
         return userEmail;
     }
 
+    /**
+     * Returns the group IDs carried by the ID token, if the token has the
+     * complete list of the user's groups.
+     */
+    public Optional<List<String>> getGroupIds() {
+        return Optional.ofNullable(groupIds);
+    }
+
+    public boolean hasGroupOverage() {
+        return groupOverage;
+    }
+
     public Set<String> getUserGroups() {
         return userGroups;
     }
+
+    public void setUserGroups(Set<String> userGroups) {
+        this.userGroups = userGroups;
+    }
 }
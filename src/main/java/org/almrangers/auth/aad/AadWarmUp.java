@@ -0,0 +1,142 @@
+/**
+ * Azure Active Directory Authentication Plugin for SonarQube
+ * <p>
+ * Copyright (c) 2022 Michael Johnson
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.almrangers.auth.aad;
+
+import com.microsoft.graph.http.GraphServiceException;
+import com.nimbusds.jose.jwk.JWKMatcher;
+import com.nimbusds.jose.jwk.JWKSelector;
+import org.sonar.api.Startable;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Loads what the first login would otherwise have to fetch (signing keys, the
+ * client credential token and the connection to Microsoft Graph) on a
+ * background thread once the server has started, so it doesn't pay for cold
+ * caches and connections.
+ * <p>
+ * Endpoint URLs come straight from the settings, so there is no metadata
+ * document to fetch here.
+ */
+@ServerSide
+public class AadWarmUp implements Startable {
+
+    private static final Logger LOGGER = Loggers.get(AadWarmUp.class);
+
+    private final AadSettings settings;
+    private final AadJwkSource jwkSource;
+    private final AadClientTokenManager tokenManager;
+    private final AadGraphClient graphClient;
+
+    private ExecutorService executor;
+    private volatile Future<?> warmUp;
+
+    public AadWarmUp(AadSettings settings, AadJwkSource jwkSource, AadClientTokenManager tokenManager,
+                     AadGraphClient graphClient) {
+        this.settings = settings;
+        this.jwkSource = jwkSource;
+        this.tokenManager = tokenManager;
+        this.graphClient = graphClient;
+    }
+
+    @Override
+    public void start() {
+        if (!settings.isEnabled() || !settings.warmUpOnStartup()) {
+            return;
+        }
+
+        executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "aad-warm-up");
+            thread.setDaemon(true);
+            return thread;
+        });
+        warmUp = executor.submit(this::warmUp);
+        executor.shutdown();
+    }
+
+    @Override
+    public void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    Future<?> warmUpTask() {
+        return warmUp;
+    }
+
+    void warmUp() {
+        // Also opens the first connection to the login host, so DNS and TLS are done too.
+        step("Azure AD signing keys", () -> jwkSource.get(new JWKSelector(new JWKMatcher.Builder().build()), null));
+
+        if (settings.enableGroupSync()) {
+            AtomicReference<String> clientToken = new AtomicReference<>();
+            if (settings.enableClientCredential()) {
+                step("Azure AD client credential token",
+                    () -> tokenManager.findAccessToken().ifPresent(token -> clientToken.set(token.getValue())));
+            }
+            // Loads the Graph SDK classes and opens the first connection to the Graph host.
+            step("Microsoft Graph connection", () -> connectToGraph(clientToken.get()));
+        }
+    }
+
+    // A cheap request, made with the client token when there is one. Logins
+    // bring their own tokens, so without one the request goes unauthenticated:
+    // any answer, even a refusal, leaves the connection open in the pool. Like
+    // any other Graph call it takes a rate limit permit and is skipped while
+    // the circuit breaker is open.
+    private void connectToGraph(String accessToken) {
+        try {
+            graphClient.guarded("the warm-up request", () ->
+                graphClient.call(accessToken, client -> client.organization().buildRequest().select("id").get()));
+        } catch (GraphServiceException e) {
+            LOGGER.debug("Microsoft Graph answered the warm-up request with HTTP {}", e.getResponseCode());
+        }
+    }
+
+    // A failed step is only logged: the login path fetches the same things on demand.
+    private static void step(String name, WarmUpStep step) {
+        long start = System.nanoTime();
+        try {
+            step.run();
+            LOGGER.info("Warmed up {} in {} ms", name, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (Exception e) {
+            LOGGER.warn("Couldn't warm up {}, it will be loaded on the first login. Error: {}", name, e.getMessage());
+        }
+    }
+
+    @FunctionalInterface
+    private interface WarmUpStep {
+        void run() throws Exception;
+    }
+}
@@ -39,6 +39,20 @@ public class AuthAadPlugin implements Plugin {
 
     extensions.add(AadIdentityProvider.class);
     extensions.add(AadSettings.class);
+    extensions.add(AadIoExecutor.class);
+    extensions.add(AadHttpTransport.class);
+    extensions.add(AadJwkSource.class);
+    extensions.add(AadIdTokenValidator.class);
+    extensions.add(AadClientTokenManager.class);
+    extensions.add(AadGraphClient.class);
+    extensions.add(AadGroupCache.class);
+    extensions.add(AadGroupDirectory.class);
+    extensions.add(AadMembershipIndex.class);
+    extensions.add(AadGroupSync.class);
+    extensions.add(AadGroupService.class);
+    extensions.add(AadMetrics.class);
+    extensions.add(AadHealthWs.class);
+    extensions.add(AadWarmUp.class);
 
     extensions.addAll(AadSettings.definitions());
 
@@ -0,0 +1,206 @@
+/**
+ * Azure Active Directory Authentication Plugin for SonarQube
+ * <p>
+ * Copyright (c) 2022 Michael Johnson
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.almrangers.auth.aad;
+
+import com.microsoft.graph.core.ClientException;
+import com.microsoft.graph.models.DirectoryObjectCheckMemberGroupsParameterSet;
+import com.microsoft.graph.models.Group;
+import com.microsoft.graph.requests.GraphServiceClient;
+import com.microsoft.graph.requests.GroupCollectionPage;
+import com.microsoft.graph.requests.GroupCollectionRequestBuilder;
+import okhttp3.Request;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Only checks the user's membership of the groups in the configured allowlist.
+ * <p>
+ * Instead of paging through every group the user is in, the allowlisted group
+ * IDs are sent to checkMemberGroups, which answers with the ones the user is a
+ * (possibly nested) member of. Allowlist entries can be group IDs or names;
+ * names are looked up once and reused until the allowlist changes. Logins
+ * that need the allowlist while it is being looked up wait for that lookup
+ * instead of starting their own.
+ */
+class CheckMemberGroupsResolver implements AadGroupResolver {
+
+    private static final Logger LOGGER = Loggers.get(CheckMemberGroupsResolver.class);
+
+    // Largest number of group IDs Graph accepts in one checkMemberGroups call.
+    static final int MAX_IDS_PER_CHECK = 20;
+
+    // Graph limits the number of values in a single "in" filter.
+    static final int MAX_NAMES_PER_QUERY = 15;
+
+    private static final Pattern OBJECT_ID = Pattern.compile("[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}");
+
+    private final AadSettings settings;
+    private final AadGraphClient graphClient;
+    private final AadGroupDirectory groupDirectory;
+    private final AadMetrics metrics;
+
+    private final SingleFlight<List<String>, ResolvedAllowlist> allowlistLookups = new SingleFlight<>();
+
+    private volatile ResolvedAllowlist resolvedAllowlist;
+
+    CheckMemberGroupsResolver(AadSettings settings, AadGraphClient graphClient, AadGroupDirectory groupDirectory,
+                              AadMetrics metrics) {
+        this.settings = settings;
+        this.graphClient = graphClient;
+        this.groupDirectory = groupDirectory;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public Set<String> resolve(AadUserInfo user, String accessToken) {
+        Map<String, String> allowedGroups = allowedGroups(accessToken);
+        List<String> groupIds = new ArrayList<>(allowedGroups.keySet());
+
+        return graphClient.call(accessToken, graphServiceClient -> {
+            Set<String> parsedUserGroups = new HashSet<>();
+
+            for (int from = 0; from < groupIds.size(); from += MAX_IDS_PER_CHECK) {
+                List<String> batch = groupIds.subList(from, Math.min(from + MAX_IDS_PER_CHECK, groupIds.size()));
+
+                List<String> memberOf = graphServiceClient
+                    .users(user.getUserOid())
+                    .checkMemberGroups(DirectoryObjectCheckMemberGroupsParameterSet.newBuilder()
+                        .withGroupIds(new ArrayList<>(batch))
+                        .build())
+                    .buildRequest()
+                    .post()
+                    .getCurrentPage();
+                metrics.graphPageFetched(memberOf.size());
+
+                for (String groupId : memberOf) {
+                    String displayName = allowedGroups.get(groupId);
+                    if (displayName != null) {
+                        parsedUserGroups.add(displayName);
+                    }
+                }
+            }
+
+            return parsedUserGroups;
+        });
+    }
+
+    // Returns the allowlisted groups as a map of group ID to display name.
+    private Map<String, String> allowedGroups(String accessToken) {
+        List<String> allowlist = settings.groupAllowlist();
+
+        ResolvedAllowlist resolved = resolvedAllowlist;
+        if (resolved != null && resolved.allowlist.equals(allowlist)
+            && System.currentTimeMillis() - resolved.resolvedAt < groupDirectory.maxAge()) {
+            return resolved.groups;
+        }
+
+        try {
+            return allowlistLookups.execute(allowlist, () -> resolveAllowlist(allowlist, accessToken)).groups;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ClientException("Interrupted while waiting for the allowlisted groups", e);
+        }
+    }
+
+    private ResolvedAllowlist resolveAllowlist(List<String> allowlist, String accessToken) {
+        long now = System.currentTimeMillis();
+
+        List<String> groupIds = allowlist.stream().filter(entry -> OBJECT_ID.matcher(entry).matches()).collect(Collectors.toList());
+        List<String> groupNames = allowlist.stream().filter(entry -> !OBJECT_ID.matcher(entry).matches()).collect(Collectors.toList());
+
+        Map<String, String> groups = new HashMap<>(groupDirectory.getNames(groupIds, accessToken));
+        if (!groupNames.isEmpty()) {
+            groups.putAll(graphClient.guarded("the allowlisted group lookup",
+                () -> graphClient.call(accessToken, graphServiceClient -> findGroupsByName(graphServiceClient, groupNames))));
+        }
+
+        Set<String> found = new HashSet<>(groups.keySet());
+        found.addAll(groups.values());
+        for (String entry : allowlist) {
+            if (!found.contains(entry)) {
+                LOGGER.warn("Allowlisted group '{}' doesn't exist in Azure AD and will be ignored", entry);
+            }
+        }
+
+        ResolvedAllowlist resolved = new ResolvedAllowlist(allowlist, Collections.unmodifiableMap(groups), now);
+        resolvedAllowlist = resolved;
+        return resolved;
+    }
+
+    private Map<String, String> findGroupsByName(GraphServiceClient<Request> graphServiceClient, List<String> groupNames) {
+        Map<String, String> groups = new HashMap<>();
+
+        for (int from = 0; from < groupNames.size(); from += MAX_NAMES_PER_QUERY) {
+            String names = groupNames.subList(from, Math.min(from + MAX_NAMES_PER_QUERY, groupNames.size())).stream()
+                .map(name -> "'" + name.replace("'", "''") + "'")
+                .collect(Collectors.joining(","));
+
+            GroupCollectionPage page = graphServiceClient
+                .groups()
+                .buildRequest()
+                .filter("displayName in (" + names + ")")
+                .select("id,displayName")
+                .top(999)
+                .get();
+
+            while (page != null) {
+                for (Group group : page.getCurrentPage()) {
+                    if (group.id != null && group.displayName != null) {
+                        groups.put(group.id, group.displayName);
+                        groupDirectory.put(group.id, group.displayName);
+                    }
+                }
+
+                GroupCollectionRequestBuilder nextPage = page.getNextPage();
+                page = nextPage != null ? nextPage.buildRequest().get() : null;
+            }
+        }
+
+        return groups;
+    }
+
+    private static final class ResolvedAllowlist {
+        private final List<String> allowlist;
+        private final Map<String, String> groups;
+        private final long resolvedAt;
+
+        private ResolvedAllowlist(List<String> allowlist, Map<String, String> groups, long resolvedAt) {
+            this.allowlist = allowlist;
+            this.groups = groups;
+            this.resolvedAt = resolvedAt;
+        }
+    }
+}
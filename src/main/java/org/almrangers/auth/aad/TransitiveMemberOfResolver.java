@@ -0,0 +1,141 @@
+/**
+ * Azure Active Directory Authentication Plugin for SonarQube
+ * <p>
+ * Copyright (c) 2022 Michael Johnson
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.almrangers.auth.aad;
+
+import com.microsoft.graph.models.Group;
+import com.microsoft.graph.options.HeaderOption;
+import com.microsoft.graph.options.Option;
+import com.microsoft.graph.requests.GroupCollectionPage;
+import com.microsoft.graph.requests.GroupCollectionRequest;
+import com.microsoft.graph.requests.GroupCollectionRequestBuilder;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+import reactor.util.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Reads every group the user is a member of, directly or through nested
+ * groups, optionally narrowed down by the configured filters.
+ */
+class TransitiveMemberOfResolver implements AadGroupResolver {
+
+    private static final Logger LOGGER = Loggers.get(TransitiveMemberOfResolver.class);
+
+    private final AadSettings settings;
+    private final AadGraphClient graphClient;
+    private final AadMetrics metrics;
+
+    TransitiveMemberOfResolver(AadSettings settings, AadGraphClient graphClient, AadMetrics metrics) {
+        this.settings = settings;
+        this.graphClient = graphClient;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public Set<String> resolve(AadUserInfo user, String accessToken) {
+        String userOid = user.getUserOid();
+        Optional<String> filter = membershipFilter();
+
+        // Filtering on directory objects is an advanced query: Graph only
+        // accepts it with an eventual consistency level and $count. The header
+        // has to be sent again with every page.
+        List<Option> pageOptions = filter.isPresent()
+            ? Collections.singletonList(new HeaderOption("ConsistencyLevel", "eventual"))
+            : Collections.emptyList();
+
+        // The shared Graph client authenticates every request made inside
+        // this call with the token we already have.
+        Set<String> parsedUserGroups = graphClient.call(accessToken, graphServiceClient -> {
+            // The group type cast leaves out directory roles and administrative
+            // units, which we would only throw away.
+            GroupCollectionRequest request = graphServiceClient
+                .users(userOid).transitiveMemberOfAsGroup()
+                .buildRequest(pageOptions)
+                .select("id,displayName")
+                .top(999); // Maximum page size of 999 to reduce number of requests.
+
+            if (filter.isPresent()) {
+                request = request.filter(filter.get()).count(true);
+            }
+
+            return processMemberGroupCollection(request.get(), pageOptions);
+        });
+
+        if(parsedUserGroups.isEmpty()) {
+            LOGGER.warn("Group list was empty. Maybe your AAD permissions aren't set correctly?");
+        }
+
+        return parsedUserGroups;
+    }
+
+    // Combines the configured name prefix and filter expression into one $filter.
+    Optional<String> membershipFilter() {
+        Optional<String> prefixFilter = settings.groupNamePrefix()
+            .map(prefix -> "startswith(displayName,'" + prefix.replace("'", "''") + "')");
+        Optional<String> customFilter = settings.groupFilter();
+
+        if (prefixFilter.isPresent() && customFilter.isPresent()) {
+            return Optional.of(prefixFilter.get() + " and (" + customFilter.get() + ")");
+        }
+        return prefixFilter.isPresent() ? prefixFilter : customFilter;
+    }
+
+    Set<String> processMemberGroupCollection(@Nullable GroupCollectionPage memberGroupCollection, List<Option> pageOptions) {
+        Set<String> parsedUserGroups = new HashSet<>();
+
+        while(memberGroupCollection != null) {
+            List<Group> page = memberGroupCollection.getCurrentPage();
+            metrics.graphPageFetched(page.size());
+
+            for (Group group : page) {
+                // Don't add the group if the display name is null
+                if (group.displayName != null) {
+                    parsedUserGroups.add(group.displayName);
+                }
+            }
+
+            // The next link already carries the query parameters, only the
+            // headers have to be passed on. Pages are fetched one after the
+            // other: the next link is only known once the SDK has parsed the
+            // whole page, so there is nothing left to overlap the next request
+            // with, and skip tokens are opaque, so later pages can't be asked
+            // for ahead of time.
+            final GroupCollectionRequestBuilder nextPage = memberGroupCollection.getNextPage();
+            if (nextPage == null) {
+                break;
+            } else {
+                memberGroupCollection = nextPage.buildRequest(pageOptions).get();
+            }
+        }
+
+        return parsedUserGroups;
+    }
+}
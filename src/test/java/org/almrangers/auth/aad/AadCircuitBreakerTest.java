@@ -0,0 +1,128 @@
+/**
+ * Azure Active Directory Authentication Plugin for SonarQube
+ * <p>
+ * Copyright (c) 2022 Michael Johnson
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.almrangers.auth.aad;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.utils.System2;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.almrangers.auth.aad.AadCircuitBreaker.State.CLOSED;
+import static org.almrangers.auth.aad.AadCircuitBreaker.State.HALF_OPEN;
+import static org.almrangers.auth.aad.AadCircuitBreaker.State.OPEN;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AadCircuitBreakerTest {
+
+    MapSettings settings = new MapSettings();
+    System2 system2 = mock(System2.class);
+    AadCircuitBreaker underTest = new AadCircuitBreaker("Test", new AadSettings(settings.asConfig()), system2);
+
+    @Test
+    public void opens_after_threshold_failures_in_a_row() {
+        settings.setProperty("sonar.auth.aad.circuitBreakerThreshold", 3);
+
+        underTest.recordFailure();
+        underTest.recordFailure();
+        underTest.recordSuccess();
+        underTest.recordFailure();
+        underTest.recordFailure();
+        assertThat(underTest.getState()).isEqualTo(CLOSED);
+        assertThat(underTest.allowRequest()).isTrue();
+
+        underTest.recordFailure();
+        assertThat(underTest.getState()).isEqualTo(OPEN);
+        assertThat(underTest.allowRequest()).isFalse();
+        assertThat(underTest.getRejectedCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void single_probe_after_open_duration() {
+        openCircuit();
+
+        when(system2.now()).thenReturn(TimeUnit.SECONDS.toMillis(30));
+        assertThat(underTest.allowRequest()).isTrue();
+        assertThat(underTest.getState()).isEqualTo(HALF_OPEN);
+        // Only one probe at a time
+        assertThat(underTest.allowRequest()).isFalse();
+
+        underTest.recordSuccess();
+        assertThat(underTest.getState()).isEqualTo(CLOSED);
+        assertThat(underTest.allowRequest()).isTrue();
+    }
+
+    @Test
+    public void failed_probe_opens_again() {
+        openCircuit();
+
+        when(system2.now()).thenReturn(TimeUnit.SECONDS.toMillis(30));
+        assertThat(underTest.allowRequest()).isTrue();
+        underTest.recordFailure();
+
+        assertThat(underTest.getState()).isEqualTo(OPEN);
+        assertThat(underTest.getOpenedAt()).isEqualTo(TimeUnit.SECONDS.toMillis(30));
+        assertThat(underTest.allowRequest()).isFalse();
+    }
+
+    @Test
+    public void unanswered_probe_is_given_up_on() {
+        openCircuit();
+
+        when(system2.now()).thenReturn(TimeUnit.SECONDS.toMillis(30));
+        assertThat(underTest.allowRequest()).isTrue();
+
+        when(system2.now()).thenReturn(TimeUnit.SECONDS.toMillis(60));
+        assertThat(underTest.allowRequest()).isTrue();
+    }
+
+    @Test
+    public void zero_threshold_disables_the_breaker() {
+        settings.setProperty("sonar.auth.aad.circuitBreakerThreshold", 0);
+
+        for (int i = 0; i < 10; i++) {
+            underTest.recordFailure();
+        }
+
+        assertThat(underTest.getState()).isEqualTo(CLOSED);
+        assertThat(underTest.allowRequest()).isTrue();
+    }
+
+    @Before
+    public void setUp() {
+        when(system2.now()).thenReturn(0L);
+    }
+
+    private void openCircuit() {
+        for (int i = 0; i < AadSettings.DEFAULT_CIRCUIT_BREAKER_THRESHOLD; i++) {
+            underTest.recordFailure();
+        }
+        assertThat(underTest.getState()).isEqualTo(OPEN);
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * Azure Active Directory Authentication Plugin for SonarQube
+ * <p>
+ * Copyright (c) 2022 Michael Johnson
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.almrangers.auth.aad;
+
+import com.nimbusds.oauth2.sdk.token.AccessToken;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonar.api.config.internal.MapSettings;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.spy;
+
+public class AadClientTokenManagerTest {
+
+    MapSettings settings = new MapSettings();
+    AadSettings spySettings = spy(new AadSettings(settings.asConfig()));
+    MockWebServer mockWebServer = new MockWebServer();
+    AadClientTokenManager underTest = new AadClientTokenManager(spySettings, new AadHttpTransport(spySettings));
+
+    @Test
+    public void token_is_reused_until_it_expires() throws IOException {
+        mockWebServer.enqueue(tokenResponse("first", 3599));
+        assertThat(underTest.tokenExpiresAt()).isEmpty();
+
+        assertThat(underTest.getAccessToken().getValue()).isEqualTo("first");
+        assertThat(underTest.getAccessToken().getValue()).isEqualTo("first");
+        assertThat(mockWebServer.getRequestCount()).isEqualTo(1);
+        long now = System.currentTimeMillis();
+        assertThat(underTest.tokenExpiresAt().getAsLong())
+            .isBetween(now + TimeUnit.MINUTES.toMillis(59), now + TimeUnit.HOURS.toMillis(1));
+    }
+
+    @Test
+    public void token_is_dropped_when_the_app_registration_changes() throws IOException {
+        mockWebServer.enqueue(tokenResponse("first", 3599));
+        mockWebServer.enqueue(tokenResponse("second", 3599));
+
+        assertThat(underTest.getAccessToken().getValue()).isEqualTo("first");
+        settings.setProperty("sonar.auth.aad.clientSecret.secured", "rotatedSecret");
+        assertThat(underTest.getAccessToken().getValue()).isEqualTo("second");
+        assertThat(mockWebServer.getRequestCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void short_lived_token_is_replaced() throws IOException {
+        mockWebServer.enqueue(tokenResponse("first", 1));
+        mockWebServer.enqueue(tokenResponse("second", 3599));
+
+        assertThat(underTest.getAccessToken().getValue()).isEqualTo("first");
+        assertThat(underTest.getAccessToken().getValue()).isEqualTo("second");
+        assertThat(mockWebServer.getRequestCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void error_response_is_reported_as_no_token() throws IOException {
+        mockWebServer.enqueue(new MockResponse()
+            .setResponseCode(400)
+            .setHeader("Content-Type", "application/json")
+            .setBody("{\"error\": \"invalid_client\", \"error_description\": \"Bad secret\"}"));
+
+        assertThat(underTest.findAccessToken()).isEmpty();
+    }
+
+    @Test
+    public void concurrent_callers_share_one_request() throws Exception {
+        mockWebServer.enqueue(tokenResponse("first", 3599).setBodyDelay(200, TimeUnit.MILLISECONDS));
+
+        ExecutorService callers = Executors.newFixedThreadPool(8);
+        List<Future<AccessToken>> results = new ArrayList<>();
+        Callable<AccessToken> call = underTest::getAccessToken;
+        for (int i = 0; i < 8; i++) {
+            results.add(callers.submit(call));
+        }
+
+        for (Future<AccessToken> result : results) {
+            assertThat(result.get().getValue()).isEqualTo("first");
+        }
+        callers.shutdown();
+
+        assertThat(mockWebServer.getRequestCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void error_response_returns_empty_token_and_is_not_cached() throws IOException {
+        mockWebServer.enqueue(new MockResponse()
+            .setResponseCode(400)
+            .setHeader("Content-Type", "application/json")
+            .setBody("{\"error\": \"invalid_client\", \"error_description\": \"Bad secret\"}"));
+        mockWebServer.enqueue(tokenResponse("first", 3599));
+
+        assertThat(underTest.getAccessToken().getValue()).isNotEqualTo("first");
+        assertThat(underTest.getAccessToken().getValue()).isEqualTo("first");
+        assertThat(mockWebServer.getRequestCount()).isEqualTo(2);
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mockWebServer.start();
+        settings.setProperty("sonar.auth.aad.clientId.secured", "id");
+        settings.setProperty("sonar.auth.aad.clientSecret.secured", "secret");
+        doReturn(mockWebServer.url("/tenant/oauth2/v2.0/token").toString()).when(spySettings).authorityUrl();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        underTest.stop();
+        mockWebServer.close();
+    }
+
+    private static MockResponse tokenResponse(String token, int expiresIn) {
+        return new MockResponse()
+            .setHeader("Content-Type", "application/json")
+            .setBody("{\"access_token\": \"" + token + "\", \"token_type\": \"Bearer\", \"expires_in\": " + expiresIn + "}");
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * Azure Active Directory Authentication Plugin for SonarQube
+ * <p>
+ * Copyright (c) 2022 Michael Johnson
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.almrangers.auth.aad;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonar.api.config.internal.MapSettings;
+
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.spy;
+
+public class AadGraphClientTest {
+
+    MapSettings settings = new MapSettings();
+    AadSettings spySettings = spy(new AadSettings(settings.asConfig()));
+    MockWebServer mockWebServer = new MockWebServer();
+    AadGraphClient underTest = new AadGraphClient(spySettings);
+
+    @Test
+    public void requests_use_the_token_of_the_call() throws InterruptedException {
+        mockWebServer.enqueue(emptyCollection());
+        mockWebServer.enqueue(emptyCollection());
+
+        underTest.call("firstToken", client -> client.users("oid").transitiveMemberOf().buildRequest().get());
+        underTest.call("secondToken", client -> client.users("oid").transitiveMemberOf().buildRequest().get());
+
+        RecordedRequest first = mockWebServer.takeRequest();
+        assertThat(first.getPath()).startsWith("/v1.0/users/oid/transitiveMemberOf");
+        assertThat(first.getHeader("Authorization")).isEqualTo("Bearer firstToken");
+        assertThat(mockWebServer.takeRequest().getHeader("Authorization")).isEqualTo("Bearer secondToken");
+    }
+
+    @Test
+    public void connection_use_is_counted_per_host() {
+        mockWebServer.enqueue(emptyCollection());
+        mockWebServer.enqueue(emptyCollection());
+
+        underTest.call("token", client -> client.users("oid").transitiveMemberOf().buildRequest().get());
+        underTest.call("token", client -> client.users("oid").transitiveMemberOf().buildRequest().get());
+
+        AadHostStats stats = underTest.getHostStats().get(mockWebServer.getHostName());
+        assertThat(stats.getRequests()).isEqualTo(2);
+        assertThat(stats.getConnectionsOpened()).isEqualTo(1);
+        assertThat(stats.getConnectionsReused()).isEqualTo(1);
+    }
+
+    @Test
+    public void service_client_is_shared() {
+        assertThat(underTest.serviceClient()).isSameAs(underTest.serviceClient());
+        assertThat(underTest.serviceClient().getServiceRoot()).isEqualTo(mockWebServer.url("/v1.0").toString());
+    }
+
+    @Test
+    public void stop_releases_http_resources() {
+        underTest.stop();
+
+        assertThat(underTest.httpClient().dispatcher().executorService().isShutdown()).isTrue();
+        assertThat(underTest.httpClient().connectionPool().connectionCount()).isZero();
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mockWebServer.start();
+        // Strip the trailing slash so the URL looks like the configured Graph URLs.
+        String graphUrl = mockWebServer.url("/").toString();
+        doReturn(graphUrl.substring(0, graphUrl.length() - 1)).when(spySettings).getGraphURL();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        underTest.stop();
+        mockWebServer.close();
+    }
+
+    private static MockResponse emptyCollection() {
+        return new MockResponse()
+            .setHeader("Content-Type", "application/json")
+            .setBody("{\"value\": []}");
+    }
+}
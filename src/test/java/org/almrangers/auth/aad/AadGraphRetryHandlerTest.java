@@ -0,0 +1,154 @@
+/**
+ * Azure Active Directory Authentication Plugin for SonarQube
+ * <p>
+ * Copyright (c) 2022 Michael Johnson
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.almrangers.auth.aad;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonar.api.config.internal.MapSettings;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AadGraphRetryHandlerTest {
+
+    MapSettings settings = new MapSettings();
+    AadGraphRetryHandler underTest = new AadGraphRetryHandler(new AadSettings(settings.asConfig()));
+    OkHttpClient client = new OkHttpClient.Builder().addInterceptor(underTest).build();
+    MockWebServer mockWebServer = new MockWebServer();
+
+    @Test
+    public void throttled_requests_are_retried() throws IOException {
+        mockWebServer.enqueue(new MockResponse().setResponseCode(429).setHeader("Retry-After", "0"));
+        mockWebServer.enqueue(new MockResponse().setResponseCode(503));
+        mockWebServer.enqueue(new MockResponse().setBody("ok"));
+
+        assertThat(get().code()).isEqualTo(200);
+        assertThat(mockWebServer.getRequestCount()).isEqualTo(3);
+        assertThat(underTest.retryCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void other_errors_are_not_retried() throws IOException {
+        mockWebServer.enqueue(new MockResponse().setResponseCode(500));
+
+        assertThat(get().code()).isEqualTo(500);
+        assertThat(mockWebServer.getRequestCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void retries_are_limited() throws IOException {
+        settings.setProperty("sonar.auth.aad.graphMaxRetries", 2);
+        for (int i = 0; i < 4; i++) {
+            mockWebServer.enqueue(new MockResponse().setResponseCode(429).setHeader("Retry-After", "0"));
+        }
+
+        assertThat(get().code()).isEqualTo(429);
+        assertThat(mockWebServer.getRequestCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void retry_after_past_the_group_timeout_is_not_waited_for() throws IOException {
+        settings.setProperty("sonar.auth.aad.groupSyncTimeout", 1);
+        mockWebServer.enqueue(new MockResponse().setResponseCode(429).setHeader("Retry-After", "120"));
+
+        long start = System.nanoTime();
+        assertThat(get().code()).isEqualTo(429);
+        assertThat(System.nanoTime() - start).isLessThan(1_000_000_000L);
+        assertThat(mockWebServer.getRequestCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void retries_stop_at_the_lookup_deadline() {
+        mockWebServer.enqueue(new MockResponse().setResponseCode(429).setHeader("Retry-After", "1"));
+        mockWebServer.enqueue(new MockResponse().setBody("ok"));
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(500);
+        int code = AadGraphRetryHandler.withDeadline(deadline, () -> {
+            try {
+                return get().code();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+
+        assertThat(code).isEqualTo(429);
+        assertThat(mockWebServer.getRequestCount()).isEqualTo(1);
+        assertThat(AadGraphRetryHandler.lookupDeadline()).isNull();
+    }
+
+    @Test
+    public void retry_after_is_read_as_seconds_or_date() {
+        assertThat(AadGraphRetryHandler.retryAfterMillis("3")).isEqualTo(3000);
+        assertThat(AadGraphRetryHandler.retryAfterMillis("soon")).isNull();
+        assertThat(AadGraphRetryHandler.retryAfterMillis(null)).isNull();
+
+        String inOneMinute = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC).plusMinutes(1));
+        assertThat(AadGraphRetryHandler.retryAfterMillis(inOneMinute)).isBetween(50_000L, 60_000L);
+    }
+
+    @Test
+    public void backoff_grows_with_jitter() {
+        Response response = new Response.Builder()
+            .request(new Request.Builder().url("http://localhost/").build())
+            .protocol(Protocol.HTTP_1_1)
+            .code(503)
+            .message("Service Unavailable")
+            .build();
+
+        assertThat(AadGraphRetryHandler.delayMillis(response, 1)).isBetween(250L, 500L);
+        assertThat(AadGraphRetryHandler.delayMillis(response, 3)).isBetween(1000L, 2000L);
+        assertThat(AadGraphRetryHandler.delayMillis(response, 10)).isBetween(4000L, AadGraphRetryHandler.MAX_DELAY_MILLIS);
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mockWebServer.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mockWebServer.close();
+    }
+
+    private Response get() throws IOException {
+        try (Response response = client.newCall(new Request.Builder().url(mockWebServer.url("/")).build()).execute()) {
+            return response;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * Azure Active Directory Authentication Plugin for SonarQube
+ * <p>
+ * Copyright (c) 2022 Michael Johnson
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.almrangers.auth.aad;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.utils.System2;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AadGroupCacheTest {
+
+    MapSettings settings = new MapSettings();
+    System2 system2 = mock(System2.class);
+    AadGroupCache underTest = new AadGroupCache(new AadSettings(settings.asConfig()), system2);
+
+    Set<String> groups = Collections.singleton("Developers");
+
+    @Test
+    public void fresh_entries_are_returned() {
+        underTest.put("tenant", "oid", groups);
+
+        assertThat(underTest.getFresh("tenant", "oid")).contains(groups);
+        assertThat(underTest.getFresh("otherTenant", "oid")).isEmpty();
+    }
+
+    @Test
+    public void expired_entries_are_only_returned_as_stale() {
+        underTest.put("tenant", "oid", groups);
+
+        when(system2.now()).thenReturn(TimeUnit.MINUTES.toMillis(16));
+
+        assertThat(underTest.getFresh("tenant", "oid")).isEmpty();
+        assertThat(underTest.getStale("tenant", "oid")).contains(groups);
+    }
+
+    @Test
+    public void least_recently_used_entry_is_evicted() {
+        settings.setProperty("sonar.auth.aad.groupCacheMaxEntries", 2);
+
+        underTest.put("tenant", "first", groups);
+        underTest.put("tenant", "second", groups);
+        underTest.getFresh("tenant", "first");
+        underTest.put("tenant", "third", groups);
+
+        assertThat(underTest.size()).isEqualTo(2);
+        assertThat(underTest.getStale("tenant", "first")).isPresent();
+        assertThat(underTest.getStale("tenant", "second")).isEmpty();
+        assertThat(underTest.getStale("tenant", "third")).isPresent();
+    }
+
+    @Before
+    public void setUp() {
+        when(system2.now()).thenReturn(0L);
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * Azure Active Directory Authentication Plugin for SonarQube
+ * <p>
+ * Copyright (c) 2022 Michael Johnson
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.almrangers.auth.aad;
+
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.utils.System2;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.when;
+
+public class AadGroupDirectoryTest {
+
+    static final String DEVELOPERS_ID = "89fb503f-134f-43cd-aaa7-f21facb2eca3";
+    static final String ADMINISTRATORS_ID = "d595c0e2-28f4-4a52-8ec5-58eab17309f8";
+    static final String DELETED_ID = "0b8c0f4e-6f4d-4a4c-9d0b-2b8f1d7f8e11";
+
+    MapSettings settings = new MapSettings();
+    AadSettings spySettings = spy(new AadSettings(settings.asConfig()));
+    MockWebServer mockWebServer = new MockWebServer();
+    System2 system2 = mock(System2.class);
+    AadGraphClient graphClient = new AadGraphClient(spySettings);
+    AadGroupDirectory underTest = new AadGroupDirectory(spySettings, graphClient, system2);
+
+    @Test
+    public void resolves_names_in_one_request() throws InterruptedException {
+        mockWebServer.enqueue(AadGroupServiceTest.groupsResponse());
+
+        assertThat(underTest.getDisplayNames(Arrays.asList(DEVELOPERS_ID, ADMINISTRATORS_ID), "token"))
+            .isEqualTo(new HashSet<>(Arrays.asList("Developers", "Administrators")));
+
+        RecordedRequest request = mockWebServer.takeRequest();
+        assertThat(request.getMethod()).isEqualTo("POST");
+        assertThat(request.getPath()).isEqualTo("/v1.0/directoryObjects/microsoft.graph.getByIds");
+        assertThat(request.getBody().readUtf8()).contains(DEVELOPERS_ID, ADMINISTRATORS_ID, "\"group\"");
+    }
+
+    @Test
+    public void known_and_missing_ids_are_not_requested_again() throws InterruptedException {
+        mockWebServer.enqueue(AadGroupServiceTest.groupsResponse());
+
+        underTest.getDisplayNames(Arrays.asList(DEVELOPERS_ID, ADMINISTRATORS_ID, DELETED_ID), "token");
+
+        assertThat(underTest.getDisplayNames(Arrays.asList(DEVELOPERS_ID, DELETED_ID), "token"))
+            .containsOnly("Developers");
+        assertThat(mockWebServer.getRequestCount()).isEqualTo(1);
+        assertThat(underTest.size()).isEqualTo(3);
+    }
+
+    @Test
+    public void only_unknown_ids_are_requested() throws InterruptedException {
+        mockWebServer.enqueue(AadGroupServiceTest.groupsResponse());
+        mockWebServer.enqueue(AadGroupServiceTest.groupsResponse());
+
+        underTest.getDisplayNames(Collections.singletonList(DEVELOPERS_ID), "token");
+        mockWebServer.takeRequest();
+        underTest.getDisplayNames(Arrays.asList(DEVELOPERS_ID, ADMINISTRATORS_ID), "token");
+
+        assertThat(mockWebServer.takeRequest().getBody().readUtf8())
+            .contains(ADMINISTRATORS_ID)
+            .doesNotContain(DEVELOPERS_ID);
+    }
+
+    @Test
+    public void expired_names_are_requested_again() {
+        mockWebServer.enqueue(AadGroupServiceTest.groupsResponse());
+        mockWebServer.enqueue(AadGroupServiceTest.groupsResponse());
+
+        underTest.getDisplayNames(Collections.singletonList(DEVELOPERS_ID), "token");
+        when(system2.now()).thenReturn(TimeUnit.HOURS.toMillis(1));
+        underTest.getDisplayNames(Collections.singletonList(DEVELOPERS_ID), "token");
+
+        assertThat(mockWebServer.getRequestCount()).isEqualTo(2);
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        when(system2.now()).thenReturn(0L);
+        mockWebServer.start();
+        String graphUrl = mockWebServer.url("/").toString();
+        doReturn(graphUrl.substring(0, graphUrl.length() - 1)).when(spySettings).getGraphURL();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        graphClient.stop();
+        mockWebServer.close();
+    }
+}
@@ -0,0 +1,533 @@
+/**
+ * Azure Active Directory Authentication Plugin for SonarQube
+ * <p>
+ * Copyright (c) 2022 Michael Johnson
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.almrangers.auth.aad;
+
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.PlainJWT;
+import com.nimbusds.oauth2.sdk.token.BearerAccessToken;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonar.api.config.internal.MapSettings;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+
+public class AadGroupServiceTest {
+
+    static final String GROUPS_RESPONSE = "{\n" +
+        "  \"@odata.context\": \"https://graph.microsoft.com/v1.0/$metadata#directoryObjects(id,displayName)\",\n" +
+        "  \"value\": [\n" +
+        "    {\n" +
+        "      \"@odata.type\": \"#microsoft.graph.group\",\n" +
+        "      \"id\": \"89fb503f-134f-43cd-aaa7-f21facb2eca3\",\n" +
+        "      \"displayName\": \"Developers\"\n" +
+        "    },\n" +
+        "    {\n" +
+        "      \"@odata.type\": \"#microsoft.graph.group\",\n" +
+        "      \"id\": \"d595c0e2-28f4-4a52-8ec5-58eab17309f8\",\n" +
+        "      \"displayName\": \"Administrators\"\n" +
+        "    }\n" +
+        "  ]\n" +
+        "}";
+
+    MapSettings settings = new MapSettings();
+    AadSettings spySettings = spy(new AadSettings(settings.asConfig()));
+    MockWebServer mockWebServer = new MockWebServer();
+    AadGraphClient graphClient = new AadGraphClient(spySettings);
+    AadMembershipIndex membershipIndex = new AadMembershipIndex();
+    AadMetrics metrics = new AadMetrics(graphClient, mock(AadHttpTransport.class));
+    AadGroupService underTest = new AadGroupService(spySettings, graphClient, new AadGroupCache(spySettings),
+        new AadGroupDirectory(spySettings, graphClient), membershipIndex, metrics);
+    AadUserInfo user;
+
+    Set<String> expectedGroups = new HashSet<>(Arrays.asList("Administrators", "Developers"));
+
+    @Test
+    public void fetch_member_groups() {
+        mockWebServer.enqueue(groupsResponse());
+
+        assertThat(underTest.getUserGroups(user, new BearerAccessToken())).isEqualTo(expectedGroups);
+    }
+
+    @Test
+    public void only_groups_are_requested() throws InterruptedException {
+        mockWebServer.enqueue(groupsResponse());
+
+        underTest.getUserGroups(user, new BearerAccessToken());
+
+        RecordedRequest request = mockWebServer.takeRequest();
+        assertThat(request.getRequestUrl().encodedPath())
+            .isEqualTo("/v1.0/users/377ae852-940f-4e0a-b154-563b7427a3dc/transitiveMemberOf/microsoft.graph.group");
+        assertThat(request.getRequestUrl().queryParameter("$filter")).isNull();
+        assertThat(request.getHeader("ConsistencyLevel")).isNull();
+    }
+
+    @Test
+    public void filter_is_applied_on_every_page() throws InterruptedException {
+        settings.setProperty("sonar.auth.aad.groupNamePrefix", "sonar-");
+        settings.setProperty("sonar.auth.aad.groupFilter", "securityEnabled eq true");
+        String nextLink = mockWebServer.url("/v1.0/users/377ae852-940f-4e0a-b154-563b7427a3dc/transitiveMemberOf/microsoft.graph.group?$skiptoken=page2").toString();
+        mockWebServer.enqueue(new MockResponse()
+            .setHeader("Content-Type", "application/json")
+            .setBody("{\"@odata.nextLink\": \"" + nextLink + "\", \"value\": [{\"id\": \"1\", \"displayName\": \"sonar-developers\"}]}"));
+        mockWebServer.enqueue(new MockResponse()
+            .setHeader("Content-Type", "application/json")
+            .setBody("{\"value\": [{\"id\": \"2\", \"displayName\": \"sonar-administrators\"}]}"));
+
+        assertThat(underTest.getUserGroups(user, new BearerAccessToken()))
+            .containsOnly("sonar-developers", "sonar-administrators");
+
+        RecordedRequest firstPage = mockWebServer.takeRequest();
+        assertThat(firstPage.getRequestUrl().queryParameter("$filter"))
+            .isEqualTo("startswith(displayName,'sonar-') and (securityEnabled eq true)");
+        assertThat(firstPage.getRequestUrl().queryParameter("$count")).isEqualTo("true");
+        assertThat(firstPage.getHeader("ConsistencyLevel")).isEqualTo("eventual");
+
+        RecordedRequest secondPage = mockWebServer.takeRequest();
+        assertThat(secondPage.getRequestUrl().queryParameter("$skiptoken")).isEqualTo("page2");
+        assertThat(secondPage.getHeader("ConsistencyLevel")).isEqualTo("eventual");
+    }
+
+    @Test
+    public void every_page_of_a_slow_lookup_is_read() throws InterruptedException {
+        String path = "/v1.0/users/377ae852-940f-4e0a-b154-563b7427a3dc/transitiveMemberOf/microsoft.graph.group";
+        for (int page = 1; page <= 4; page++) {
+            String next = page < 4
+                ? "\"@odata.nextLink\": \"" + mockWebServer.url(path + "?$skiptoken=page" + (page + 1)) + "\", "
+                : "";
+            mockWebServer.enqueue(new MockResponse()
+                .setHeader("Content-Type", "application/json")
+                .setBodyDelay(100, TimeUnit.MILLISECONDS)
+                .setBody("{" + next + "\"value\": [{\"id\": \"" + page + "\", \"displayName\": \"group" + page + "\"}]}"));
+        }
+
+        assertThat(underTest.getUserGroups(user, new BearerAccessToken("token")))
+            .containsOnly("group1", "group2", "group3", "group4");
+
+        for (int page = 1; page <= 4; page++) {
+            RecordedRequest request = mockWebServer.takeRequest();
+            assertThat(request.getHeader("Authorization")).isEqualTo("Bearer token");
+            if (page > 1) {
+                assertThat(request.getRequestUrl().queryParameter("$skiptoken")).isEqualTo("page" + page);
+            }
+        }
+    }
+
+    @Test
+    // This tests that group resolution will still work without errors in the event that the
+    // group fetch doesn't work. For this test, it's because of an invalid token.
+    public void test_empty_group_parsing() {
+        mockWebServer.enqueue(new MockResponse()
+            .setResponseCode(401)
+            .setHeader("Content-Type", "application/json")
+            .setBody("{\"error\": {\"code\": \"InvalidAuthenticationToken\", \"message\": \"Access token validation failure.\"}}"));
+
+        assertThat(underTest.getUserGroups(user, new BearerAccessToken())).isEqualTo(Collections.emptySet());
+    }
+
+    @Test
+    public void stalled_lookup_leaves_groups_unknown() {
+        settings.setProperty("sonar.auth.aad.readTimeout", 1);
+        mockWebServer.enqueue(groupsResponse().setHeadersDelay(3, TimeUnit.SECONDS));
+
+        assertThrows(AadGroupsUnavailableException.class, () -> underTest.getUserGroups(user, new BearerAccessToken()));
+        assertThat(metrics.getGroupLookupFailures()).isEqualTo(1);
+    }
+
+    @Test
+    public void throttled_lookup_leaves_groups_unknown() {
+        settings.setProperty("sonar.auth.aad.graphMaxRetries", 1);
+        mockWebServer.enqueue(throttledResponse());
+        mockWebServer.enqueue(throttledResponse());
+
+        assertThrows(AadGroupsUnavailableException.class, () -> underTest.getUserGroups(user, new BearerAccessToken()));
+        assertThat(mockWebServer.getRequestCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void server_error_leaves_groups_unknown() {
+        mockWebServer.enqueue(new MockResponse().setResponseCode(502));
+
+        assertThrows(AadGroupsUnavailableException.class, () -> underTest.getUserGroups(user, new BearerAccessToken()));
+    }
+
+    @Test
+    public void unknown_user_has_no_groups() {
+        mockWebServer.enqueue(new MockResponse()
+            .setResponseCode(404)
+            .setHeader("Content-Type", "application/json")
+            .setBody("{\"error\": {\"code\": \"Request_ResourceNotFound\", \"message\": \"Resource does not exist.\"}}"));
+
+        assertThat(underTest.getUserGroups(user, new BearerAccessToken())).isEmpty();
+    }
+
+    @Test
+    public void throttled_lookup_is_retried() {
+        mockWebServer.enqueue(throttledResponse());
+        mockWebServer.enqueue(groupsResponse());
+
+        assertThat(underTest.getUserGroups(user, new BearerAccessToken())).isEqualTo(expectedGroups);
+        assertThat(graphClient.retryHandler().retryCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void open_circuit_skips_graph() {
+        settings.setProperty("sonar.auth.aad.circuitBreakerThreshold", 1);
+        mockWebServer.enqueue(new MockResponse().setResponseCode(500));
+
+        assertThrows(AadGroupsUnavailableException.class, () -> underTest.getUserGroups(user, new BearerAccessToken()));
+        assertThat(graphClient.circuitBreaker().getState()).isEqualTo(AadCircuitBreaker.State.OPEN);
+
+        assertThrows(AadGroupsUnavailableException.class, () -> underTest.getUserGroups(user, new BearerAccessToken()));
+        assertThat(mockWebServer.getRequestCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void unreachable_graph_opens_circuit_without_failing_logins() throws IOException {
+        settings.setProperty("sonar.auth.aad.circuitBreakerThreshold", 2);
+        mockWebServer.shutdown();
+
+        assertThrows(AadGroupsUnavailableException.class, () -> underTest.getUserGroups(user, new BearerAccessToken()));
+        assertThrows(AadGroupsUnavailableException.class, () -> underTest.getUserGroups(user, new BearerAccessToken()));
+        assertThat(graphClient.circuitBreaker().getState()).isEqualTo(AadCircuitBreaker.State.OPEN);
+
+        assertThrows(AadGroupsUnavailableException.class, () -> underTest.getUserGroups(user, new BearerAccessToken()));
+        assertThat(graphClient.circuitBreaker().getRejectedCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void rate_limited_lookup_uses_cached_groups() {
+        settings.setProperty("sonar.auth.aad.enableGroupCache", true);
+        settings.setProperty("sonar.auth.aad.groupCacheTtl", 0);
+        settings.setProperty("sonar.auth.aad.graphRequestsPerSecond", 1);
+        settings.setProperty("sonar.auth.aad.graphRateLimitMaxWait", 0);
+        mockWebServer.enqueue(groupsResponse());
+
+        assertThat(underTest.getUserGroups(user, new BearerAccessToken())).isEqualTo(expectedGroups);
+        assertThat(underTest.getUserGroups(user, new BearerAccessToken())).isEqualTo(expectedGroups);
+        assertThat(mockWebServer.getRequestCount()).isEqualTo(1);
+        assertThat(graphClient.rateLimiter().getRejectedCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void refused_token_keeps_circuit_closed() {
+        settings.setProperty("sonar.auth.aad.circuitBreakerThreshold", 1);
+        mockWebServer.enqueue(new MockResponse().setResponseCode(401));
+
+        underTest.getUserGroups(user, new BearerAccessToken());
+
+        assertThat(graphClient.circuitBreaker().getState()).isEqualTo(AadCircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void cached_groups_are_reused() {
+        settings.setProperty("sonar.auth.aad.enableGroupCache", true);
+        mockWebServer.enqueue(groupsResponse());
+
+        assertThat(underTest.getUserGroups(user, new BearerAccessToken())).isEqualTo(expectedGroups);
+        assertThat(underTest.getUserGroups(user, new BearerAccessToken())).isEqualTo(expectedGroups);
+        assertThat(mockWebServer.getRequestCount()).isEqualTo(1);
+        assertThat(metrics.getGroupCacheMisses()).isEqualTo(1);
+        assertThat(metrics.getGroupCacheHits()).isEqualTo(1);
+        assertThat(metrics.getGraphPages()).isEqualTo(1);
+        assertThat(metrics.getGraphGroups()).isEqualTo(2);
+    }
+
+    @Test
+    public void stale_groups_are_used_when_graph_fails() {
+        settings.setProperty("sonar.auth.aad.enableGroupCache", true);
+        settings.setProperty("sonar.auth.aad.groupCacheTtl", 0);
+        mockWebServer.enqueue(groupsResponse());
+        mockWebServer.enqueue(new MockResponse().setResponseCode(500));
+
+        assertThat(underTest.getUserGroups(user, new BearerAccessToken())).isEqualTo(expectedGroups);
+        assertThat(underTest.getUserGroups(user, new BearerAccessToken())).isEqualTo(expectedGroups);
+        assertThat(mockWebServer.getRequestCount()).isEqualTo(2);
+        assertThat(metrics.getGroupLookupFailures()).isEqualTo(1);
+    }
+
+    @Test
+    public void groups_claim_is_resolved_by_id() throws Exception {
+        settings.setProperty("sonar.auth.aad.groupSource", "ID Token Claim");
+        mockWebServer.enqueue(groupsResponse());
+
+        AadUserInfo userWithGroups = userWith("groups", Arrays.asList(AadGroupDirectoryTest.DEVELOPERS_ID, AadGroupDirectoryTest.ADMINISTRATORS_ID));
+
+        assertThat(underTest.getUserGroups(userWithGroups, new BearerAccessToken())).isEqualTo(expectedGroups);
+        assertThat(mockWebServer.takeRequest().getPath()).isEqualTo("/v1.0/directoryObjects/microsoft.graph.getByIds");
+    }
+
+    @Test
+    public void failing_name_lookup_does_not_fall_back_to_membership_lookup() throws Exception {
+        settings.setProperty("sonar.auth.aad.groupSource", "ID Token Claim");
+        mockWebServer.enqueue(new MockResponse().setResponseCode(500));
+
+        AadUserInfo userWithGroups = userWith("groups", Collections.singletonList(AadGroupDirectoryTest.DEVELOPERS_ID));
+
+        assertThrows(AadGroupsUnavailableException.class, () -> underTest.getUserGroups(userWithGroups, new BearerAccessToken()));
+        assertThat(mockWebServer.getRequestCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void refused_name_lookup_falls_back_to_membership_lookup() throws Exception {
+        settings.setProperty("sonar.auth.aad.groupSource", "ID Token Claim");
+        mockWebServer.enqueue(new MockResponse().setResponseCode(403));
+        mockWebServer.enqueue(groupsResponse());
+
+        AadUserInfo userWithGroups = userWith("groups", Collections.singletonList(AadGroupDirectoryTest.DEVELOPERS_ID));
+
+        assertThat(underTest.getUserGroups(userWithGroups, new BearerAccessToken())).isEqualTo(expectedGroups);
+        mockWebServer.takeRequest();
+        assertThat(mockWebServer.takeRequest().getPath()).contains("/transitiveMemberOf");
+    }
+
+    @Test
+    public void name_lookup_is_skipped_while_circuit_is_open() throws Exception {
+        settings.setProperty("sonar.auth.aad.groupSource", "ID Token Claim");
+        settings.setProperty("sonar.auth.aad.enableGroupCache", true);
+        settings.setProperty("sonar.auth.aad.circuitBreakerThreshold", 1);
+        graphClient.circuitBreaker().recordFailure();
+
+        AadUserInfo userWithGroups = userWith("groups", Collections.singletonList(AadGroupDirectoryTest.DEVELOPERS_ID));
+
+        assertThrows(AadGroupsUnavailableException.class, () -> underTest.getUserGroups(userWithGroups, new BearerAccessToken()));
+        assertThat(mockWebServer.getRequestCount()).isZero();
+        assertThat(metrics.getGroupLookupFailures()).isEqualTo(1);
+    }
+
+    @Test
+    public void groups_claim_is_narrowed_by_name_prefix() throws Exception {
+        settings.setProperty("sonar.auth.aad.groupSource", "ID Token Claim");
+        settings.setProperty("sonar.auth.aad.groupNamePrefix", "Dev");
+        mockWebServer.enqueue(groupsResponse());
+
+        AadUserInfo userWithGroups = userWith("groups", Arrays.asList(AadGroupDirectoryTest.DEVELOPERS_ID, AadGroupDirectoryTest.ADMINISTRATORS_ID));
+
+        assertThat(underTest.getUserGroups(userWithGroups, new BearerAccessToken())).containsOnly("Developers");
+    }
+
+    @Test
+    public void groups_claim_is_narrowed_by_allowlist_and_name_prefix() throws Exception {
+        settings.setProperty("sonar.auth.aad.groupSource", "ID Token Claim");
+        settings.setProperty("sonar.auth.aad.groupAllowlist", AadGroupDirectoryTest.ADMINISTRATORS_ID + ",Developers");
+        settings.setProperty("sonar.auth.aad.groupNamePrefix", "Dev");
+        mockWebServer.enqueue(groupsResponse());
+
+        AadUserInfo userWithGroups = userWith("groups", Arrays.asList(AadGroupDirectoryTest.DEVELOPERS_ID, AadGroupDirectoryTest.ADMINISTRATORS_ID));
+
+        assertThat(underTest.getUserGroups(userWithGroups, new BearerAccessToken())).containsOnly("Developers");
+        assertThat(mockWebServer.takeRequest().getPath()).isEqualTo("/v1.0/directoryObjects/microsoft.graph.getByIds");
+        assertThat(mockWebServer.getRequestCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void groups_claim_is_not_used_with_a_group_filter() throws Exception {
+        settings.setProperty("sonar.auth.aad.groupSource", "ID Token Claim");
+        settings.setProperty("sonar.auth.aad.groupFilter", "securityEnabled eq true");
+        mockWebServer.enqueue(groupsResponse());
+
+        AadUserInfo userWithGroups = userWith("groups", Collections.singletonList(AadGroupDirectoryTest.DEVELOPERS_ID));
+
+        assertThat(underTest.getUserGroups(userWithGroups, new BearerAccessToken())).isEqualTo(expectedGroups);
+        assertThat(mockWebServer.takeRequest().getRequestUrl().queryParameter("$filter")).isEqualTo("securityEnabled eq true");
+    }
+
+    @Test
+    public void group_overage_falls_back_to_graph() throws Exception {
+        settings.setProperty("sonar.auth.aad.groupSource", "ID Token Claim");
+        mockWebServer.enqueue(groupsResponse());
+
+        AadUserInfo userWithOverage = userWith("_claim_names", Collections.singletonMap("groups", "src1"));
+
+        assertThat(underTest.getUserGroups(userWithOverage, new BearerAccessToken())).isEqualTo(expectedGroups);
+        assertThat(mockWebServer.takeRequest().getPath()).startsWith("/v1.0/users/377ae852-940f-4e0a-b154-563b7427a3dc/transitiveMemberOf/microsoft.graph.group");
+    }
+
+    @Test
+    public void groups_claim_is_ignored_when_graph_is_the_source() throws Exception {
+        mockWebServer.enqueue(groupsResponse());
+
+        AadUserInfo userWithGroups = userWith("groups", Collections.singletonList(AadGroupDirectoryTest.DEVELOPERS_ID));
+
+        assertThat(underTest.getUserGroups(userWithGroups, new BearerAccessToken())).isEqualTo(expectedGroups);
+        assertThat(mockWebServer.takeRequest().getPath()).contains("/transitiveMemberOf");
+    }
+
+    @Test
+    public void allowlist_checks_membership_instead_of_listing_groups() throws Exception {
+        settings.setProperty("sonar.auth.aad.groupAllowlist", AadGroupDirectoryTest.DEVELOPERS_ID);
+        mockWebServer.enqueue(groupsResponse());
+        mockWebServer.enqueue(CheckMemberGroupsResolverTest.memberOfResponse(AadGroupDirectoryTest.DEVELOPERS_ID));
+
+        assertThat(underTest.getUserGroups(user, new BearerAccessToken())).containsOnly("Developers");
+
+        mockWebServer.takeRequest();
+        assertThat(mockWebServer.takeRequest().getPath())
+            .isEqualTo("/v1.0/users/377ae852-940f-4e0a-b154-563b7427a3dc/microsoft.graph.checkMemberGroups");
+    }
+
+    @Test
+    public void membership_index_is_used_once_ready() {
+        settings.setProperty("sonar.auth.aad.enableGroupsSync", true);
+        settings.setProperty("sonar.auth.aad.enableClientCredential", true);
+        settings.setProperty("sonar.auth.aad.enableBackgroundGroupSync", true);
+        settings.setProperty("sonar.auth.aad.groupNamePrefix", "sonar-");
+        mockWebServer.enqueue(groupsResponse());
+
+        // Not ready yet, Graph is asked
+        assertThat(underTest.getUserGroups(user, new BearerAccessToken())).isEqualTo(expectedGroups);
+
+        AadMembershipIndex.Builder builder = new AadMembershipIndex.Builder();
+        builder.setName("g1", "sonar-users");
+        builder.setName("g2", "other");
+        builder.addMember("g1", user.getUserOid());
+        builder.addMember("g2", user.getUserOid());
+        membershipIndex.publish(builder.build("scope", "delta"));
+
+        assertThat(underTest.getUserGroups(user, new BearerAccessToken())).containsOnly("sonar-users");
+        assertThat(mockWebServer.getRequestCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void membership_index_is_not_used_for_unknown_users_or_when_stale() {
+        settings.setProperty("sonar.auth.aad.enableGroupsSync", true);
+        settings.setProperty("sonar.auth.aad.enableClientCredential", true);
+        settings.setProperty("sonar.auth.aad.enableBackgroundGroupSync", true);
+        mockWebServer.enqueue(groupsResponse());
+        mockWebServer.enqueue(groupsResponse());
+
+        AadMembershipIndex.Builder builder = new AadMembershipIndex.Builder();
+        builder.setName("g1", "Other");
+        builder.addMember("g1", "another-user");
+        membershipIndex.publish(builder.build("scope", "delta"));
+
+        assertThat(underTest.getUserGroups(user, new BearerAccessToken())).isEqualTo(expectedGroups);
+
+        long twoHoursAgo = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2);
+        builder.addMember("g1", user.getUserOid());
+        AadMembershipIndex.Snapshot stale = builder.build("scope", "delta");
+        membershipIndex.publish(new AadMembershipIndex.Snapshot(stale.scope, stale.deltaLink, stale.names, stale.members, twoHoursAgo));
+
+        assertThat(underTest.getUserGroups(user, new BearerAccessToken())).isEqualTo(expectedGroups);
+        assertThat(mockWebServer.getRequestCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void membership_index_is_not_used_with_a_group_filter() throws Exception {
+        settings.setProperty("sonar.auth.aad.enableGroupsSync", true);
+        settings.setProperty("sonar.auth.aad.enableClientCredential", true);
+        settings.setProperty("sonar.auth.aad.enableBackgroundGroupSync", true);
+        settings.setProperty("sonar.auth.aad.groupFilter", "securityEnabled eq true");
+        mockWebServer.enqueue(groupsResponse());
+
+        AadMembershipIndex.Builder builder = new AadMembershipIndex.Builder();
+        builder.setName("g1", "sonar-users");
+        builder.addMember("g1", user.getUserOid());
+        membershipIndex.publish(builder.build("scope", "delta"));
+
+        assertThat(underTest.getUserGroups(user, new BearerAccessToken())).isEqualTo(expectedGroups);
+        assertThat(mockWebServer.takeRequest().getRequestUrl().queryParameter("$filter")).isEqualTo("securityEnabled eq true");
+    }
+
+    @Test
+    public void concurrent_lookups_for_same_user_share_one_request() throws Exception {
+        mockWebServer.enqueue(groupsResponse().setHeadersDelay(500, TimeUnit.MILLISECONDS));
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Set<String>> first = executor.submit(() -> underTest.getUserGroups(user, new BearerAccessToken()));
+            mockWebServer.takeRequest(5, TimeUnit.SECONDS);
+            Future<Set<String>> second = executor.submit(() -> underTest.getUserGroups(user, new BearerAccessToken()));
+
+            assertThat(first.get(5, TimeUnit.SECONDS)).isEqualTo(expectedGroups);
+            assertThat(second.get(5, TimeUnit.SECONDS)).isEqualTo(expectedGroups);
+            assertThat(mockWebServer.getRequestCount()).isEqualTo(1);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException, ParseException {
+        mockWebServer.start();
+        String graphUrl = mockWebServer.url("/").toString();
+        doReturn(graphUrl.substring(0, graphUrl.length() - 1)).when(spySettings).getGraphURL();
+
+        user = new AadUserInfo(new PlainJWT(baseClaims()));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        graphClient.stop();
+        mockWebServer.close();
+    }
+
+    private AadUserInfo userWith(String claim, Object value) throws ParseException {
+        return new AadUserInfo(new PlainJWT(new JWTClaimsSet.Builder(baseClaims()).claim(claim, value).build()));
+    }
+
+    private static JWTClaimsSet baseClaims() {
+        return new JWTClaimsSet.Builder()
+            .claim("email", "john.doe@example.com")
+            .claim("name", "John Doe")
+            .claim("oid", "377ae852-940f-4e0a-b154-563b7427a3dc")
+            .claim("preferred_username", "john.doe@example.net")
+            .claim("tid", "ff4d5470-f7f3-4603-900d-cb291dc340bd")
+            .build();
+    }
+
+    static MockResponse throttledResponse() {
+        return new MockResponse()
+            .setResponseCode(429)
+            .setHeader("Retry-After", "0")
+            .setHeader("Content-Type", "application/json")
+            .setBody("{\"error\": {\"code\": \"TooManyRequests\", \"message\": \"Too many requests.\"}}");
+    }
+
+    static MockResponse groupsResponse() {
+        return new MockResponse()
+            .setHeader("Content-Type", "application/json")
+            .setBody(GROUPS_RESPONSE);
+    }
+}
@@ -0,0 +1,211 @@
+/**
+ * Azure Active Directory Authentication Plugin for SonarQube
+ * <p>
+ * Copyright (c) 2022 Michael Johnson
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.almrangers.auth.aad;
+
+import com.nimbusds.oauth2.sdk.token.BearerAccessToken;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.platform.ServerFileSystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.when;
+
+public class AadGroupSyncTest {
+
+    static final String USER = "377ae852-940f-4e0a-b154-563b7427a3dc";
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    MapSettings settings = new MapSettings();
+    AadSettings spySettings = spy(new AadSettings(settings.asConfig()));
+    MockWebServer mockWebServer = new MockWebServer();
+    AadGraphClient graphClient = new AadGraphClient(spySettings);
+    AadClientTokenManager tokenManager = mock(AadClientTokenManager.class);
+    ServerFileSystem fileSystem = mock(ServerFileSystem.class);
+    AadMembershipIndex index = new AadMembershipIndex();
+    AadGroupSync underTest = new AadGroupSync(spySettings, tokenManager, graphClient, index, fileSystem);
+
+    @Test
+    public void full_sync_then_incremental() throws Exception {
+        String nextLink = mockWebServer.url("/v1.0/groups/delta?$skiptoken=page2").toString();
+        String deltaLink = mockWebServer.url("/v1.0/groups/delta?$deltatoken=first").toString();
+        mockWebServer.enqueue(json("{\"@odata.nextLink\": \"" + nextLink + "\", \"value\": ["
+            + group("developers", "Developers", member(USER, false)) + "]}"));
+        mockWebServer.enqueue(json("{\"@odata.deltaLink\": \"" + deltaLink + "\", \"value\": ["
+            + group("admins", "Administrators", member(USER, false)) + ","
+            + group("engineering", "Engineering", member("developers", false)) + "]}"));
+
+        underTest.sync();
+
+        RecordedRequest first = mockWebServer.takeRequest();
+        assertThat(first.getRequestUrl().encodedPath()).isEqualTo("/v1.0/groups/microsoft.graph.delta");
+        assertThat(first.getRequestUrl().queryParameter("$select")).isEqualTo("displayName,members");
+        assertThat(first.getHeader("Authorization")).isEqualTo("Bearer token");
+        assertThat(index.getUserGroups(USER).get()).containsOnly(
+            entry("developers", "Developers"), entry("admins", "Administrators"), entry("engineering", "Engineering"));
+        assertThat(mockWebServer.takeRequest().getRequestUrl().queryParameter("$skiptoken")).isEqualTo("page2");
+
+        mockWebServer.enqueue(json("{\"@odata.deltaLink\": \"" + deltaLink.replace("first", "second") + "\", \"value\": ["
+            + "{\"id\": \"admins\", \"@removed\": {\"reason\": \"deleted\"}},"
+            + "{\"id\": \"engineering\", \"members@delta\": [" + member("developers", true) + "]}]}"));
+
+        underTest.sync();
+
+        assertThat(mockWebServer.takeRequest().getRequestUrl().queryParameter("$deltatoken")).isEqualTo("first");
+        assertThat(index.getUserGroups(USER).get()).containsOnly(entry("developers", "Developers"));
+        assertThat(index.current().deltaLink).endsWith("$deltatoken=second");
+    }
+
+    @Test
+    public void sync_pages_take_their_turn_in_the_rate_limit() throws Exception {
+        settings.setProperty("sonar.auth.aad.graphRequestsPerSecond", 1);
+        String nextLink = mockWebServer.url("/v1.0/groups/delta?$skiptoken=page2").toString();
+        String deltaLink = mockWebServer.url("/v1.0/groups/delta?$deltatoken=first").toString();
+        mockWebServer.enqueue(json("{\"@odata.nextLink\": \"" + nextLink + "\", \"value\": []}"));
+        mockWebServer.enqueue(json("{\"@odata.deltaLink\": \"" + deltaLink + "\", \"value\": []}"));
+
+        underTest.sync();
+
+        assertThat(mockWebServer.getRequestCount()).isEqualTo(2);
+        assertThat(graphClient.rateLimiter().getWaitedCount()).isEqualTo(1);
+        assertThat(graphClient.rateLimiter().getRejectedCount()).isZero();
+    }
+
+    @Test
+    public void restart_resumes_from_saved_delta_link() throws Exception {
+        String deltaLink = mockWebServer.url("/v1.0/groups/delta?$deltatoken=first").toString();
+        mockWebServer.enqueue(json("{\"@odata.deltaLink\": \"" + deltaLink + "\", \"value\": ["
+            + group("developers", "Developers", member(USER, false)) + "]}"));
+        underTest.sync();
+        mockWebServer.takeRequest();
+        assertThat(new File(temp.getRoot(), "data/" + AadGroupSync.INDEX_FILE)).isFile();
+
+        AadMembershipIndex restartedIndex = new AadMembershipIndex();
+        AadGroupSync restarted = new AadGroupSync(spySettings, tokenManager, graphClient, restartedIndex, fileSystem);
+        restarted.loadIndex();
+        assertThat(restartedIndex.getUserGroups(USER).get()).containsOnly(entry("developers", "Developers"));
+
+        mockWebServer.enqueue(json("{\"@odata.deltaLink\": \"" + deltaLink + "\", \"value\": []}"));
+        restarted.sync();
+
+        assertThat(mockWebServer.takeRequest().getRequestUrl().queryParameter("$deltatoken")).isEqualTo("first");
+    }
+
+    @Test
+    public void saved_index_of_another_tenant_is_ignored() throws Exception {
+        String deltaLink = mockWebServer.url("/v1.0/groups/delta?$deltatoken=first").toString();
+        mockWebServer.enqueue(json("{\"@odata.deltaLink\": \"" + deltaLink + "\", \"value\": []}"));
+        underTest.sync();
+
+        settings.setProperty("sonar.auth.aad.tenantId", "other-tenant");
+        AadMembershipIndex restartedIndex = new AadMembershipIndex();
+        new AadGroupSync(spySettings, tokenManager, graphClient, restartedIndex, fileSystem).loadIndex();
+
+        assertThat(restartedIndex.isReady()).isFalse();
+    }
+
+    @Test
+    public void expired_delta_link_triggers_full_sync() throws Exception {
+        String deltaLink = mockWebServer.url("/v1.0/groups/delta?$deltatoken=first").toString();
+        mockWebServer.enqueue(json("{\"@odata.deltaLink\": \"" + deltaLink + "\", \"value\": ["
+            + group("developers", "Developers", member(USER, false)) + "]}"));
+        underTest.sync();
+
+        mockWebServer.enqueue(new MockResponse().setResponseCode(410).setHeader("Content-Type", "application/json")
+            .setBody("{\"error\": {\"code\": \"syncStateNotFound\", \"message\": \"expired\"}}"));
+        mockWebServer.enqueue(json("{\"@odata.deltaLink\": \"" + deltaLink + "\", \"value\": ["
+            + group("admins", "Administrators", member(USER, false)) + "]}"));
+        underTest.sync();
+
+        assertThat(mockWebServer.getRequestCount()).isEqualTo(3);
+        assertThat(index.getUserGroups(USER).get()).containsOnly(entry("admins", "Administrators"));
+    }
+
+    @Test
+    public void nothing_happens_without_a_token() throws Exception {
+        when(tokenManager.findAccessToken()).thenReturn(Optional.empty());
+
+        underTest.sync();
+
+        assertThat(mockWebServer.getRequestCount()).isZero();
+        assertThat(index.isReady()).isFalse();
+    }
+
+    @Test
+    public void disabled_by_default() {
+        underTest.start();
+        underTest.stop();
+
+        assertThat(mockWebServer.getRequestCount()).isZero();
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mockWebServer.start();
+        String graphUrl = mockWebServer.url("/").toString();
+        doReturn(graphUrl.substring(0, graphUrl.length() - 1)).when(spySettings).getGraphURL();
+        settings.setProperty("sonar.auth.aad.tenantId", "tenant");
+        settings.setProperty("sonar.auth.aad.clientId.secured", "client");
+        when(tokenManager.findAccessToken()).thenReturn(Optional.of(new BearerAccessToken("token")));
+        when(fileSystem.getHomeDir()).thenReturn(temp.getRoot());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        graphClient.stop();
+        mockWebServer.close();
+    }
+
+    private static MockResponse json(String body) {
+        return new MockResponse().setHeader("Content-Type", "application/json").setBody(body);
+    }
+
+    private static String group(String id, String displayName, String... members) {
+        return "{\"id\": \"" + id + "\", \"displayName\": \"" + displayName + "\", \"members@delta\": ["
+            + String.join(",", members) + "]}";
+    }
+
+    private static String member(String id, boolean removed) {
+        return "{\"@odata.type\": \"#microsoft.graph.user\", \"id\": \"" + id + "\""
+            + (removed ? ", \"@removed\": {\"reason\": \"deleted\"}" : "") + "}";
+    }
+}
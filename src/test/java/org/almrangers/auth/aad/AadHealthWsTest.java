@@ -0,0 +1,165 @@
+/**
+ * Azure Active Directory Authentication Plugin for SonarQube
+ * <p>
+ * Copyright (c) 2022 Michael Johnson
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.almrangers.auth.aad;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.After;
+import org.junit.Test;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.server.ws.LocalConnector;
+import org.sonar.api.server.ws.Request;
+import org.sonar.api.server.ws.Response;
+import org.sonar.api.server.ws.WebService;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.OptionalLong;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class AadHealthWsTest {
+
+    MapSettings settings = new MapSettings();
+    AadSettings aadSettings = new AadSettings(settings.asConfig());
+    AadJwkSource jwkSource = mock(AadJwkSource.class);
+    AadClientTokenManager clientTokenManager = mock(AadClientTokenManager.class);
+    AadGroupCache groupCache = new AadGroupCache(aadSettings);
+    AadGraphClient graphClient = new AadGraphClient(aadSettings);
+    AadHttpTransport transport = new AadHttpTransport(aadSettings);
+    AadMetrics metrics = new AadMetrics(graphClient, transport);
+    AadHealthWs underTest = new AadHealthWs(jwkSource, clientTokenManager, groupCache, graphClient, transport, metrics);
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    Response.Stream stream = mock(Response.Stream.class);
+
+    @Test
+    public void defines_health_action() {
+        WebService.Context context = new WebService.Context();
+        underTest.define(context);
+
+        WebService.Action action = context.controller("api/authaad").action("health");
+        assertThat(action).isNotNull();
+        assertThat(action.isPost()).isFalse();
+        assertThat(action.handler()).isNotNull();
+    }
+
+    @Test
+    public void anonymous_users_are_refused() throws Exception {
+        underTest.handle(request("{\"isLoggedIn\":false}"), response());
+
+        verify(stream).setStatus(401);
+        assertThat(body()).isEqualTo("{\"errors\":[{\"msg\":\"Authentication is required\"}]}");
+    }
+
+    @Test
+    public void users_without_admin_permission_are_refused() throws Exception {
+        underTest.handle(request("{\"isLoggedIn\":true,\"permissions\":{\"global\":[\"scan\",\"provisioning\"]}}"), response());
+
+        verify(stream).setStatus(403);
+        assertThat(body()).isEqualTo("{\"errors\":[{\"msg\":\"Insufficient privileges\"}]}");
+    }
+
+    @Test
+    public void administrators_get_plugin_health() throws Exception {
+        long now = System.currentTimeMillis();
+        when(jwkSource.keysFetchedAt()).thenReturn(OptionalLong.of(now - TimeUnit.MINUTES.toMillis(2)));
+        when(jwkSource.keyIds()).thenReturn(Arrays.asList("key1", "key2"));
+        when(clientTokenManager.tokenExpiresAt()).thenReturn(OptionalLong.empty());
+        groupCache.put("tenant", "user", Collections.singleton("Developers"));
+        metrics.groupCacheMiss();
+        metrics.groupCacheHit();
+        metrics.groupCacheHit();
+        metrics.groupCacheHit();
+        metrics.record(AadMetrics.Stage.LOGIN, TimeUnit.MILLISECONDS.toNanos(80));
+
+        underTest.handle(request("{\"isLoggedIn\":true,\"permissions\":{\"global\":[\"admin\"]}}"), response());
+
+        verify(stream).setStatus(200);
+        assertThat(body())
+            .contains("\"ageSeconds\":120")
+            .contains("\"keyIds\":[\"key1\",\"key2\"]")
+            .contains("\"clientToken\":{}")
+            .contains("\"size\":1")
+            .contains("\"hitRatio\":0.75")
+            .contains("{\"name\":\"Azure AD\",\"state\":\"CLOSED\"")
+            .contains("{\"name\":\"Microsoft Graph\",\"state\":\"CLOSED\"")
+            .contains("\"count\":1")
+            .contains("\"p99Millis\":80.0");
+    }
+
+    @Test
+    public void connection_use_is_reported_per_host() throws Exception {
+        try (MockWebServer server = new MockWebServer()) {
+            server.enqueue(new MockResponse().setBody("{\"keys\":[]}"));
+            transport.resourceRetriever().retrieveResource(server.url("/keys").url());
+
+            underTest.handle(request("{\"isLoggedIn\":true,\"permissions\":{\"global\":[\"admin\"]}}"), response());
+
+            assertThat(body())
+                .contains("\"connections\":[{\"name\":\"Azure AD\",\"hosts\":[{\"host\":\"" + server.getHostName()
+                    + "\",\"requests\":1,\"failures\":0,\"connectionsOpened\":1,\"connectionsReused\":0")
+                .contains("{\"name\":\"Microsoft Graph\",\"hosts\":[]}");
+        }
+    }
+
+    @After
+    public void tearDown() {
+        graphClient.stop();
+        transport.stop();
+    }
+
+    private Request request(String currentUser) {
+        LocalConnector.LocalResponse localResponse = mock(LocalConnector.LocalResponse.class);
+        when(localResponse.getStatus()).thenReturn(200);
+        when(localResponse.getBytes()).thenReturn(currentUser.getBytes(StandardCharsets.UTF_8));
+
+        LocalConnector localConnector = mock(LocalConnector.class);
+        when(localConnector.call(any())).thenReturn(localResponse);
+
+        Request request = mock(Request.class);
+        when(request.localConnector()).thenReturn(localConnector);
+        return request;
+    }
+
+    private Response response() {
+        when(stream.output()).thenReturn(output);
+        Response response = mock(Response.class);
+        when(response.stream()).thenReturn(stream);
+        return response;
+    }
+
+    private String body() {
+        return new String(output.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
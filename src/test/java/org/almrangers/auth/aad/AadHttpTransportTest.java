@@ -0,0 +1,160 @@
+/**
+ * Azure Active Directory Authentication Plugin for SonarQube
+ * <p>
+ * Copyright (c) 2022 Michael Johnson
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.almrangers.auth.aad;
+
+import com.nimbusds.common.contenttype.ContentType;
+import com.nimbusds.jose.util.Resource;
+import com.nimbusds.oauth2.sdk.http.HTTPRequest;
+import com.nimbusds.oauth2.sdk.http.HTTPResponse;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonar.api.config.internal.MapSettings;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertThrows;
+
+public class AadHttpTransportTest {
+
+    MapSettings settings = new MapSettings();
+    MockWebServer mockWebServer = new MockWebServer();
+    AadHttpTransport underTest = new AadHttpTransport(new AadSettings(settings.asConfig()));
+
+    @Test
+    public void form_is_posted_as_body() throws Exception {
+        mockWebServer.enqueue(new MockResponse()
+            .setResponseCode(400)
+            .setHeader("Content-Type", "application/json; charset=utf-8")
+            .setBody("{\"error\":\"invalid_grant\"}"));
+
+        HTTPRequest request = new HTTPRequest(HTTPRequest.Method.POST, mockWebServer.url("/token").url());
+        request.setContentType("application/x-www-form-urlencoded");
+        request.setAuthorization("Basic abc");
+        request.setQuery("grant_type=authorization_code&code=xyz");
+
+        HTTPResponse response = underTest.send(request);
+
+        assertThat(response.getStatusCode()).isEqualTo(400);
+        assertThat(response.getEntityContentType().matches(ContentType.APPLICATION_JSON)).isTrue();
+        assertThat(response.getContentAsJSONObject()).containsEntry("error", "invalid_grant");
+
+        RecordedRequest recorded = mockWebServer.takeRequest();
+        assertThat(recorded.getPath()).isEqualTo("/token");
+        assertThat(recorded.getHeader("Authorization")).isEqualTo("Basic abc");
+        assertThat(recorded.getHeader("Content-Type")).startsWith("application/x-www-form-urlencoded");
+        assertThat(recorded.getBody().readUtf8()).isEqualTo("grant_type=authorization_code&code=xyz");
+    }
+
+    @Test
+    public void query_goes_in_url_without_body() throws Exception {
+        mockWebServer.enqueue(new MockResponse().setResponseCode(204));
+
+        HTTPRequest request = new HTTPRequest(HTTPRequest.Method.GET, mockWebServer.url("/keys").url());
+        request.setQuery("appid=id");
+
+        assertThat(underTest.send(request).getStatusCode()).isEqualTo(204);
+        assertThat(mockWebServer.takeRequest().getPath()).isEqualTo("/keys?appid=id");
+    }
+
+    @Test
+    public void connections_are_reused_and_counted_per_host() throws Exception {
+        mockWebServer.enqueue(new MockResponse().setBody("{\"keys\":[]}"));
+        mockWebServer.enqueue(new MockResponse().setBody("{\"keys\":[]}"));
+
+        URL url = mockWebServer.url("/keys").url();
+        Resource resource = underTest.resourceRetriever().retrieveResource(url);
+        underTest.resourceRetriever().retrieveResource(url);
+
+        assertThat(resource.getContent()).isEqualTo("{\"keys\":[]}");
+        AadHostStats stats = underTest.getHostStats().get(url.getHost());
+        assertThat(stats.getRequests()).isEqualTo(2);
+        assertThat(stats.getConnectionsOpened()).isEqualTo(1);
+        assertThat(stats.getConnectionsReused()).isEqualTo(1);
+        assertThat(stats.getFailures()).isZero();
+    }
+
+    @Test
+    public void oversized_resources_are_refused() {
+        mockWebServer.enqueue(new MockResponse().setBody(new String(new char[AadHttpTransport.MAX_RESOURCE_SIZE + 1]).replace('\0', 'x')));
+
+        assertThrows(IOException.class, () -> underTest.resourceRetriever().retrieveResource(mockWebServer.url("/keys").url()));
+    }
+
+    @Test
+    public void read_timeout_comes_from_settings() {
+        settings.setProperty("sonar.auth.aad.readTimeout", 1);
+        mockWebServer.enqueue(new MockResponse().setBody("{}").setHeadersDelay(3, TimeUnit.SECONDS));
+
+        HTTPRequest request = new HTTPRequest(HTTPRequest.Method.GET, mockWebServer.url("/keys").url());
+
+        assertThrows(SocketTimeoutException.class, () -> underTest.send(request));
+        assertThat(underTest.getHostStats().get(mockWebServer.getHostName()).getFailures()).isEqualTo(1);
+    }
+
+    @Test
+    public void failing_endpoint_opens_the_circuit() throws Exception {
+        settings.setProperty("sonar.auth.aad.circuitBreakerThreshold", 2);
+        mockWebServer.enqueue(new MockResponse().setResponseCode(503));
+        mockWebServer.enqueue(new MockResponse().setResponseCode(503));
+
+        HTTPRequest request = new HTTPRequest(HTTPRequest.Method.GET, mockWebServer.url("/keys").url());
+        underTest.send(request);
+        underTest.send(request);
+
+        assertThat(underTest.circuitBreaker().getState()).isEqualTo(AadCircuitBreaker.State.OPEN);
+        assertThrows(IOException.class, () -> underTest.send(request));
+        assertThat(mockWebServer.getRequestCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void client_is_rebuilt_when_timeouts_change() {
+        assertThat(underTest.client()).isSameAs(underTest.client());
+        assertThat(underTest.client().connectTimeoutMillis()).isEqualTo(5000);
+        assertThat(underTest.client().callTimeoutMillis()).isEqualTo(30000);
+
+        settings.setProperty("sonar.auth.aad.connectTimeout", 2);
+        assertThat(underTest.client().connectTimeoutMillis()).isEqualTo(2000);
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mockWebServer.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        underTest.stop();
+        mockWebServer.shutdown();
+    }
+}
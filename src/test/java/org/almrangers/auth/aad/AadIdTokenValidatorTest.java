@@ -0,0 +1,147 @@
+/**
+ * Azure Active Directory Authentication Plugin for SonarQube
+ * <p>
+ * Copyright (c) 2022 Michael Johnson
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.almrangers.auth.aad;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+import com.nimbusds.jose.jwk.source.ImmutableJWKSet;
+import com.nimbusds.jose.proc.BadJOSEException;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonar.api.config.internal.MapSettings;
+
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.Date;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.spy;
+
+public class AadIdTokenValidatorTest {
+
+    MapSettings settings = new MapSettings();
+    AadSettings aadSettings = new AadSettings(settings.asConfig());
+    RSAKey rsaPublicJwk;
+    SignedJWT testIdToken;
+
+    @Test
+    public void validate_id_token() throws IOException, BadJOSEException, JOSEException {
+        MockWebServer mockWebServer = new MockWebServer();
+        mockWebServer.enqueue(
+            new MockResponse().setBody("{\"keys\": [" +
+                rsaPublicJwk.toJSONString() +
+                "]}")
+        );
+
+        mockWebServer.start();
+
+        AadSettings spySettings = spy(aadSettings);
+        doReturn(mockWebServer.url("/common/discovery/keys").toString()).when(spySettings).jwkKeysUrl();
+
+        AadJwkSource jwkSource = new AadJwkSource(spySettings, new AadHttpTransport(spySettings));
+        AadIdTokenValidator underTest = new AadIdTokenValidator(spySettings, jwkSource);
+
+        assertThat(underTest.validate(testIdToken)).isTrue();
+
+        jwkSource.stop();
+        mockWebServer.close();
+    }
+
+    @Test
+    public void processor_is_reused_until_settings_change() {
+        AadIdTokenValidator underTest = new AadIdTokenValidator(aadSettings, new ImmutableJWKSet<>(new JWKSet(rsaPublicJwk)));
+
+        settings.setProperty("sonar.auth.aad.clientId.secured", "testAudience");
+        settings.setProperty("sonar.auth.aad.tenantId", "tenant");
+        assertThat(underTest.currentProcessor()).isSameAs(underTest.currentProcessor());
+
+        Object processor = underTest.currentProcessor();
+        settings.setProperty("sonar.auth.aad.tenantId", "otherTenant");
+        assertThat(underTest.currentProcessor()).isNotSameAs(processor);
+
+        processor = underTest.currentProcessor();
+        settings.setProperty("sonar.auth.aad.clientId.secured", "otherAudience");
+        assertThat(underTest.currentProcessor()).isNotSameAs(processor);
+    }
+
+    @Test
+    public void reject_token_for_other_client() {
+        AadIdTokenValidator underTest = new AadIdTokenValidator(aadSettings, new ImmutableJWKSet<>(new JWKSet(rsaPublicJwk)));
+        settings.setProperty("sonar.auth.aad.clientId.secured", "otherAudience");
+
+        assertThrows(BadJOSEException.class, () -> underTest.validate(testIdToken));
+    }
+
+    @Before
+    public void setUp() throws JOSEException {
+        // Get current date/time for the test token
+        Calendar testCalendar = Calendar.getInstance();
+        Date currentTestDate = testCalendar.getTime();
+
+        // Set up a 1 hour expiration for the test token
+        testCalendar.add(Calendar.HOUR, 1);
+        Date expirationTestDate = testCalendar.getTime();
+
+        RSAKey rsaKey = new RSAKeyGenerator(2048)
+            .keyID("123")
+            .generate();
+
+        // Save the public key for verification
+        rsaPublicJwk = rsaKey.toPublicJWK();
+
+        testIdToken = new SignedJWT(
+            new JWSHeader.Builder(JWSAlgorithm.RS256)
+                .keyID("123")
+                .build(),
+            new JWTClaimsSet.Builder()
+                .audience("testAudience")
+                .issuer("https://login.microsoftonline.com/testTennantId/v2.0")
+                .issueTime(currentTestDate)
+                .notBeforeTime(currentTestDate)
+                .expirationTime(expirationTestDate)
+                .claim("email", "testUserMail")
+                .claim("name", "testUserName")
+                .claim("oid", "testOid")
+                .claim("preferred_username", "testUserUsername")
+                .subject("testSubject")
+                .claim("tid", "testTennantId")
+                .build()
+        );
+
+        testIdToken.sign(new RSASSASigner(rsaKey));
+    }
+}
@@ -30,22 +30,69 @@ import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.Assert.assertThrows;
 import static org.mockito.Mockito.*;
 
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+import com.nimbusds.jose.jwk.source.ImmutableJWKSet;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import com.nimbusds.oauth2.sdk.AuthorizationRequest;
+import com.nimbusds.oauth2.sdk.ResponseMode;
+import com.nimbusds.oauth2.sdk.ResponseType;
+import com.nimbusds.oauth2.sdk.Scope;
+import com.nimbusds.oauth2.sdk.id.ClientID;
+import com.nimbusds.oauth2.sdk.id.State;
+import com.nimbusds.oauth2.sdk.token.BearerAccessToken;
 import okhttp3.HttpUrl;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 import org.sonar.api.config.internal.MapSettings;
 import org.sonar.api.server.authentication.OAuth2IdentityProvider;
 import org.sonar.api.server.authentication.UnauthorizedException;
+import org.sonar.api.server.authentication.UserIdentity;
 import org.sonar.api.server.http.HttpRequest;
 
 import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 public class AadIdentityProviderTest {
 
   MapSettings settings = new MapSettings();
   AadSettings aadSettings = new AadSettings(settings.asConfig());
-  AadIdentityProvider underTest = spy(new AadIdentityProvider(aadSettings));
+  AadGraphClient graphClient = new AadGraphClient(aadSettings);
+  AadIoExecutor ioExecutor = new AadIoExecutor();
+  AadHttpTransport transport = new AadHttpTransport(aadSettings);
+  AadMetrics metrics = new AadMetrics(graphClient, transport);
+  AadJwkSource jwkSource = new AadJwkSource(aadSettings, transport);
+  AadClientTokenManager clientTokenManager = new AadClientTokenManager(aadSettings, transport);
+  AadIdentityProvider underTest = spy(new AadIdentityProvider(aadSettings,
+    new AadIdTokenValidator(aadSettings, jwkSource),
+    clientTokenManager,
+    new AadGroupService(aadSettings, graphClient, new AadGroupCache(aadSettings),
+      new AadGroupDirectory(aadSettings, graphClient), new AadMembershipIndex(), metrics),
+    ioExecutor, transport, metrics));
+
+  MockWebServer tokenServer = new MockWebServer();
+  AadClientTokenManager pipelineTokenManager;
+  AadGroupService groupService = mock(AadGroupService.class);
+  RSAKey signingKey;
 
   @Test
   public void check_fields() {
@@ -72,6 +119,124 @@ public class AadIdentityProviderTest {
 
   }
 
+  @Test
+  public void authenticate_user_from_code() throws Exception {
+    setSettings(true);
+    tokenServer.enqueue(tokenResponse());
+
+    OAuth2IdentityProvider.CallbackContext context = callbackContext();
+    pipelineProvider().onCallback(context);
+
+    ArgumentCaptor<UserIdentity> identity = ArgumentCaptor.forClass(UserIdentity.class);
+    verify(context).authenticate(identity.capture());
+    verify(context).redirectToRequestedPage();
+    assertThat(identity.getValue().getName()).isEqualTo("testUserName");
+    assertThat(tokenServer.takeRequest().getBody().readUtf8()).contains("grant_type=authorization_code");
+  }
+
+  @Test
+  public void client_token_is_requested_during_code_exchange() throws Exception {
+    setSettings(true);
+    settings.setProperty("sonar.auth.aad.enableGroupsSync", true);
+    settings.setProperty("sonar.auth.aad.enableClientCredential", true);
+    when(groupService.getUserGroups(any(), any())).thenReturn(Collections.singleton("Developers"));
+
+    // The code exchange only answers once the client token has been asked for,
+    // which never happens if the two are requested one after the other.
+    CountDownLatch clientTokenRequested = new CountDownLatch(1);
+    tokenServer.setDispatcher(new Dispatcher() {
+      @Override
+      public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+        if (request.getBody().readUtf8().contains("grant_type=client_credentials")) {
+          clientTokenRequested.countDown();
+          return new MockResponse()
+            .setHeader("Content-Type", "application/json")
+            .setBody("{\"access_token\":\"client\",\"token_type\":\"Bearer\",\"expires_in\":3600}");
+        }
+        clientTokenRequested.await(5, TimeUnit.SECONDS);
+        return tokenResponse();
+      }
+    });
+
+    OAuth2IdentityProvider.CallbackContext context = callbackContext();
+    pipelineProvider().onCallback(context);
+
+    assertThat(clientTokenRequested.getCount()).isZero();
+    ArgumentCaptor<UserIdentity> identity = ArgumentCaptor.forClass(UserIdentity.class);
+    verify(context).authenticate(identity.capture());
+    assertThat(identity.getValue().getGroups()).containsExactly("Developers");
+    verify(groupService).getUserGroups(any(), eq(new BearerAccessToken("client")));
+    for (AadMetrics.Stage stage : Arrays.asList(AadMetrics.Stage.CLIENT_TOKEN, AadMetrics.Stage.CODE_EXCHANGE,
+      AadMetrics.Stage.ID_TOKEN_VALIDATION, AadMetrics.Stage.GROUP_LOOKUP)) {
+      assertThat(metrics.histogram(stage).getCount()).as(stage.name()).isEqualTo(1);
+    }
+  }
+
+  @Test
+  public void slow_group_lookup_signs_in_without_updating_groups() throws Exception {
+    setSettings(true);
+    settings.setProperty("sonar.auth.aad.enableGroupsSync", true);
+    settings.setProperty("sonar.auth.aad.groupSyncTimeout", 1);
+    tokenServer.enqueue(tokenResponse());
+
+    CountDownLatch interrupted = new CountDownLatch(1);
+    when(groupService.getUserGroups(any(), any())).thenAnswer(invocation -> {
+      try {
+        Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+      } catch (InterruptedException e) {
+        interrupted.countDown();
+      }
+      return Collections.singleton("Developers");
+    });
+
+    OAuth2IdentityProvider.CallbackContext context = callbackContext();
+    pipelineProvider().onCallback(context);
+
+    ArgumentCaptor<UserIdentity> identity = ArgumentCaptor.forClass(UserIdentity.class);
+    verify(context).authenticate(identity.capture());
+    assertThat(identity.getValue().shouldSyncGroups()).isFalse();
+    assertThat(interrupted.await(5, TimeUnit.SECONDS)).isTrue();
+  }
+
+  @Test
+  public void unavailable_groups_sign_in_without_updating_groups() throws Exception {
+    setSettings(true);
+    settings.setProperty("sonar.auth.aad.enableGroupsSync", true);
+    tokenServer.enqueue(tokenResponse());
+    when(groupService.getUserGroups(any(), any())).thenThrow(new AadGroupsUnavailableException("Timed out", null));
+
+    OAuth2IdentityProvider.CallbackContext context = callbackContext();
+    pipelineProvider().onCallback(context);
+
+    ArgumentCaptor<UserIdentity> identity = ArgumentCaptor.forClass(UserIdentity.class);
+    verify(context).authenticate(identity.capture());
+    assertThat(identity.getValue().shouldSyncGroups()).isFalse();
+  }
+
+  @Test
+  public void outstanding_work_is_cancelled_at_deadline() {
+    setSettings(true);
+    settings.setProperty("sonar.auth.aad.callbackTimeout", 1);
+    CountDownLatch released = new CountDownLatch(1);
+    tokenServer.setDispatcher(new Dispatcher() {
+      @Override
+      public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+        released.await(30, TimeUnit.SECONDS);
+        return tokenResponse();
+      }
+    });
+
+    OAuth2IdentityProvider.CallbackContext context = callbackContext();
+    AadIdentityProvider provider = pipelineProvider();
+
+    long start = System.nanoTime();
+    assertThrows(UnauthorizedException.class, () -> provider.onCallback(context));
+
+    assertThat(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start)).isLessThan(10);
+    verify(context, never()).authenticate(any());
+    released.countDown();
+  }
+
   @Test
   public void init() {
     setSettings(true);
@@ -119,6 +284,21 @@ public class AadIdentityProviderTest {
     assertThat(actualUrlQuery).isEqualTo(expectedUrlQuery);
   }
 
+  @Test
+  public void init_fills_in_state_and_callback_on_every_redirect() throws Exception {
+    setSettings(true);
+    settings.setProperty("sonar.auth.aad.tenantId", "tenant");
+
+    assertThat(query(redirectFor("first state", "http://localhost/callback")))
+      .isEqualTo(query(fullRequest("first state", "http://localhost/callback")));
+    assertThat(query(redirectFor("second", "https://sonar.example.com/oauth2/callback/aad")))
+      .isEqualTo(query(fullRequest("second", "https://sonar.example.com/oauth2/callback/aad")));
+
+    settings.setProperty("sonar.auth.aad.tenantId", "otherTenant");
+    assertThat(redirectFor("state", "http://localhost/callback"))
+      .startsWith("https://login.microsoftonline.com/otherTenant/oauth2/v2.0/authorize?");
+  }
+
   @Test
   public void is_enabled() {
     settings.setProperty("sonar.auth.aad.clientId.secured", "id");
@@ -139,6 +319,118 @@ public class AadIdentityProviderTest {
     assertThat(underTest.allowsUsersToSignUp()).isFalse();
   }
 
+  @Before
+  public void setUp() throws Exception {
+    tokenServer.start();
+    signingKey = new RSAKeyGenerator(2048).keyID("123").generate();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    // The components above own thread pools, which must not outlive the test.
+    if (pipelineTokenManager != null) {
+      pipelineTokenManager.stop();
+    }
+    clientTokenManager.stop();
+    jwkSource.stop();
+    graphClient.stop();
+    ioExecutor.stop();
+    transport.stop();
+    tokenServer.shutdown();
+  }
+
+  // A provider whose token endpoint is the mock server and whose ID tokens
+  // are signed with the test key.
+  private AadIdentityProvider pipelineProvider() {
+    // Backed by the same settings, so properties set by the test still apply.
+    AadSettings pipelineSettings = new AadSettings(settings.asConfig()) {
+      @Override
+      public String authorityUrl() {
+        return tokenServer.url("/token").toString();
+      }
+    };
+
+    pipelineTokenManager = new AadClientTokenManager(pipelineSettings, transport);
+    return new AadIdentityProvider(pipelineSettings,
+      new AadIdTokenValidator(pipelineSettings, new ImmutableJWKSet<>(new JWKSet(signingKey.toPublicJWK()))),
+      pipelineTokenManager,
+      groupService,
+      ioExecutor,
+      transport,
+      metrics);
+  }
+
+  private OAuth2IdentityProvider.CallbackContext callbackContext() {
+    OAuth2IdentityProvider.CallbackContext context = mock(OAuth2IdentityProvider.CallbackContext.class);
+    HttpRequest request = mock(HttpRequest.class);
+
+    when(request.getParameter("code")).thenReturn("9Q4mHqIAmAHORqpwwUaAxnGh");
+    when(context.getHttpRequest()).thenReturn(request);
+    when(context.getCallbackUrl()).thenReturn("http://localhost/callback");
+    return context;
+  }
+
+  private MockResponse tokenResponse() {
+    Date now = new Date();
+    SignedJWT idToken = new SignedJWT(
+      new JWSHeader.Builder(JWSAlgorithm.RS256).keyID("123").build(),
+      new JWTClaimsSet.Builder()
+        .audience("id")
+        .issuer("https://login.microsoftonline.com/testTennantId/v2.0")
+        .issueTime(now)
+        .notBeforeTime(now)
+        .expirationTime(new Date(now.getTime() + TimeUnit.HOURS.toMillis(1)))
+        .claim("email", "testUserMail")
+        .claim("name", "testUserName")
+        .claim("oid", "testOid")
+        .claim("preferred_username", "testUserUsername")
+        .subject("testSubject")
+        .claim("tid", "testTennantId")
+        .build());
+    try {
+      idToken.sign(new RSASSASigner(signingKey));
+    } catch (JOSEException e) {
+      throw new IllegalStateException(e);
+    }
+
+    return new MockResponse()
+      .setHeader("Content-Type", "application/json")
+      .setBody("{\"access_token\":\"user\",\"token_type\":\"Bearer\",\"expires_in\":3600,"
+        + "\"id_token\":\"" + idToken.serialize() + "\"}");
+  }
+
+  private String redirectFor(String state, String callbackUrl) {
+    OAuth2IdentityProvider.InitContext context = mock(OAuth2IdentityProvider.InitContext.class);
+    when(context.generateCsrfState()).thenReturn(state);
+    when(context.getCallbackUrl()).thenReturn(callbackUrl);
+
+    underTest.init(context);
+
+    ArgumentCaptor<String> redirectUrl = ArgumentCaptor.forClass(String.class);
+    verify(context).redirectTo(redirectUrl.capture());
+    return redirectUrl.getValue();
+  }
+
+  private String fullRequest(String state, String callbackUrl) throws Exception {
+    return new AuthorizationRequest(
+      new URI(aadSettings.authorizationUrl()),
+      ResponseType.CODE,
+      ResponseMode.QUERY,
+      new ClientID("id"),
+      new URI(callbackUrl),
+      Scope.parse("openid profile email User.Read"),
+      new State(state)).toURI().toString();
+  }
+
+  private static HashMap<String, String> query(String url) {
+    HttpUrl parsed = HttpUrl.get(url);
+    HashMap<String, String> query = new HashMap<>();
+    for (int i = 0, size = parsed.querySize(); i < size; i++) {
+      query.put(parsed.queryParameterName(i), parsed.queryParameterValue(i));
+    }
+    return query;
+  }
+
   private void setSettings(boolean enabled) {
     if (enabled) {
       settings.setProperty("sonar.auth.aad.clientId.secured", "id");
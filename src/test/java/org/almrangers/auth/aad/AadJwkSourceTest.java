@@ -0,0 +1,129 @@
+/**
+ * Azure Active Directory Authentication Plugin for SonarQube
+ * <p>
+ * Copyright (c) 2022 Michael Johnson
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.almrangers.auth.aad;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.KeySourceException;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.JWKMatcher;
+import com.nimbusds.jose.jwk.JWKSelector;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonar.api.config.internal.MapSettings;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.spy;
+
+public class AadJwkSourceTest {
+
+    MapSettings settings = new MapSettings();
+    AadSettings spySettings = spy(new AadSettings(settings.asConfig()));
+    MockWebServer mockWebServer = new MockWebServer();
+    RSAKey firstKey;
+    RSAKey secondKey;
+    AadJwkSource underTest;
+
+    @Test
+    public void keys_are_cached_between_calls() throws KeySourceException {
+        enqueueKeys(firstKey);
+        underTest = new AadJwkSource(spySettings, new AadHttpTransport(spySettings));
+
+        assertThat(underTest.get(selectorFor("first"), null)).hasSize(1);
+        assertThat(underTest.get(selectorFor("first"), null)).hasSize(1);
+        assertThat(mockWebServer.getRequestCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void unknown_key_id_refreshes_once() throws KeySourceException {
+        enqueueKeys(firstKey);
+        enqueueKeys(firstKey, secondKey);
+        underTest = new AadJwkSource(spySettings, new AadHttpTransport(spySettings), 0);
+        assertThat(underTest.keysFetchedAt()).isEmpty();
+
+        assertThat(underTest.get(selectorFor("first"), null)).hasSize(1);
+        assertThat(underTest.keyIds()).containsExactly("first");
+        assertThat(underTest.get(selectorFor("second"), null)).hasSize(1);
+        assertThat(underTest.get(selectorFor("second"), null)).hasSize(1);
+        assertThat(mockWebServer.getRequestCount()).isEqualTo(2);
+        assertThat(underTest.keyIds()).containsExactly("first", "second");
+        assertThat(underTest.keysFetchedAt()).isPresent();
+    }
+
+    @Test
+    public void unknown_key_id_does_not_refresh_too_often() throws KeySourceException {
+        enqueueKeys(firstKey);
+        underTest = new AadJwkSource(spySettings, new AadHttpTransport(spySettings));
+
+        assertThat(underTest.get(selectorFor("first"), null)).hasSize(1);
+        assertThat(underTest.get(selectorFor("unknown"), null)).isEmpty();
+        assertThat(mockWebServer.getRequestCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void failed_download_throws() {
+        mockWebServer.enqueue(new MockResponse().setResponseCode(500));
+        underTest = new AadJwkSource(spySettings, new AadHttpTransport(spySettings));
+
+        JWKSelector selector = selectorFor("first");
+        assertThrows(KeySourceException.class, () -> underTest.get(selector, null));
+    }
+
+    @Before
+    public void setUp() throws IOException, JOSEException {
+        mockWebServer.start();
+        doReturn(mockWebServer.url("/common/discovery/keys").toString()).when(spySettings).jwkKeysUrl();
+
+        firstKey = new RSAKeyGenerator(2048).keyID("first").generate().toPublicJWK();
+        secondKey = new RSAKeyGenerator(2048).keyID("second").generate().toPublicJWK();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (underTest != null) {
+            underTest.stop();
+        }
+        mockWebServer.close();
+    }
+
+    private void enqueueKeys(RSAKey... keys) {
+        mockWebServer.enqueue(new MockResponse().setBody(new JWKSet(Arrays.<JWK>asList(keys)).toString()));
+    }
+
+    private static JWKSelector selectorFor(String keyId) {
+        return new JWKSelector(new JWKMatcher.Builder().keyID(keyId).build());
+    }
+}
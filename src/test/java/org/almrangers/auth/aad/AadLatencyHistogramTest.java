@@ -0,0 +1,77 @@
+/**
+ * Azure Active Directory Authentication Plugin for SonarQube
+ * <p>
+ * Copyright (c) 2022 Michael Johnson
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.almrangers.auth.aad;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AadLatencyHistogramTest {
+
+    AadLatencyHistogram underTest = new AadLatencyHistogram();
+
+    @Test
+    public void empty_histogram_reports_zero() {
+        assertThat(underTest.getCount()).isZero();
+        assertThat(underTest.getMeanMillis()).isZero();
+        assertThat(underTest.getP99Millis()).isZero();
+    }
+
+    @Test
+    public void percentiles_are_bucket_upper_bounds() {
+        for (int i = 0; i < 90; i++) {
+            underTest.record(TimeUnit.MILLISECONDS.toNanos(3));
+        }
+        for (int i = 0; i < 9; i++) {
+            underTest.record(TimeUnit.MILLISECONDS.toNanos(150));
+        }
+        underTest.record(TimeUnit.MILLISECONDS.toNanos(1500));
+
+        assertThat(underTest.getCount()).isEqualTo(100);
+        assertThat(underTest.getP50Millis()).isEqualTo(5);
+        assertThat(underTest.getP95Millis()).isEqualTo(200);
+        assertThat(underTest.getP99Millis()).isEqualTo(200);
+        assertThat(underTest.percentileMillis(100)).isEqualTo(1500);
+        assertThat(underTest.getMaxMillis()).isEqualTo(1500);
+        assertThat(underTest.getMeanMillis()).isEqualTo(31.2);
+    }
+
+    @Test
+    public void percentiles_never_exceed_the_largest_value() {
+        underTest.record(TimeUnit.MILLISECONDS.toNanos(12));
+
+        assertThat(underTest.getP50Millis()).isEqualTo(12);
+    }
+
+    @Test
+    public void slowest_values_go_into_the_last_bucket() {
+        underTest.record(TimeUnit.MINUTES.toNanos(5));
+
+        assertThat(underTest.getP99Millis()).isEqualTo(TimeUnit.MINUTES.toMillis(5));
+    }
+}
@@ -0,0 +1,148 @@
+/**
+ * Azure Active Directory Authentication Plugin for SonarQube
+ * <p>
+ * Copyright (c) 2022 Michael Johnson
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.almrangers.auth.aad;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.entry;
+
+public class AadMembershipIndexTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    AadMembershipIndex underTest = new AadMembershipIndex();
+
+    @Test
+    public void not_ready_until_published() {
+        assertThat(underTest.isReady()).isFalse();
+        assertThat(underTest.getUserGroups("user")).isEmpty();
+
+        underTest.publish(new AadMembershipIndex.Builder().build("scope", "delta"));
+
+        assertThat(underTest.isReady()).isTrue();
+        assertThat(underTest.isFresh(0)).isTrue();
+    }
+
+    @Test
+    public void unknown_users_are_left_to_graph() {
+        AadMembershipIndex.Builder builder = new AadMembershipIndex.Builder();
+        builder.setName("developers", "Developers");
+        builder.addMember("developers", "user");
+        underTest.publish(builder.build("scope", "delta"));
+
+        assertThat(underTest.getUserGroups("user")).isPresent();
+        assertThat(underTest.getUserGroups("new-user")).isEmpty();
+    }
+
+    @Test
+    public void old_snapshot_is_not_fresh() {
+        long anHourAgo = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1);
+        underTest.publish(new AadMembershipIndex.Snapshot("scope", "delta", new HashMap<>(), new HashMap<>(), anHourAgo));
+
+        assertThat(underTest.isFresh(TimeUnit.MINUTES.toMillis(90))).isTrue();
+        assertThat(underTest.isFresh(TimeUnit.MINUTES.toMillis(30))).isFalse();
+    }
+
+    @Test
+    public void nested_groups_are_resolved() {
+        AadMembershipIndex.Builder builder = new AadMembershipIndex.Builder();
+        builder.setName("developers", "Developers");
+        builder.setName("engineering", "Engineering");
+        builder.setName("everyone", "Everyone");
+        builder.addMember("developers", "user");
+        builder.addMember("engineering", "developers");
+        builder.addMember("everyone", "engineering");
+        // Cycles are allowed in AAD, they must not loop forever.
+        builder.addMember("developers", "everyone");
+        // Unknown group names are used for nesting but not returned.
+        builder.addMember("unnamed", "user");
+        builder.addMember("everyone", "unnamed");
+        underTest.publish(builder.build("scope", "delta"));
+
+        assertThat(underTest.getUserGroups("user").get()).containsOnly(
+            entry("developers", "Developers"),
+            entry("engineering", "Engineering"),
+            entry("everyone", "Everyone"));
+    }
+
+    @Test
+    public void removals_are_applied() {
+        AadMembershipIndex.Builder builder = new AadMembershipIndex.Builder();
+        builder.setName("developers", "Developers");
+        builder.setName("admins", "Administrators");
+        builder.addMember("developers", "user");
+        builder.addMember("admins", "user");
+        AadMembershipIndex.Snapshot first = builder.build("scope", "delta1");
+
+        AadMembershipIndex.Builder changes = first.toBuilder();
+        changes.removeMember("developers", "user");
+        changes.removeGroup("admins");
+        underTest.publish(changes.build("scope", "delta2"));
+
+        // No longer in any group the index knows of, so Graph is asked.
+        assertThat(underTest.getUserGroups("user")).isEmpty();
+        // The previous snapshot is untouched.
+        assertThat(first.members.get("developers")).containsOnly("user");
+    }
+
+    @Test
+    public void snapshot_survives_a_round_trip() throws IOException {
+        AadMembershipIndex.Builder builder = new AadMembershipIndex.Builder();
+        builder.setName("developers", "Developers");
+        builder.addMember("developers", "user");
+        File file = new File(temp.getRoot(), "authaad/group-index.json");
+
+        AadMembershipIndex.write(file, builder.build("scope", "https://graph/delta?token=1"));
+        AadMembershipIndex.Snapshot loaded = AadMembershipIndex.read(file).get();
+
+        assertThat(loaded.scope).isEqualTo("scope");
+        assertThat(loaded.deltaLink).isEqualTo("https://graph/delta?token=1");
+        assertThat(loaded.syncedAt).isPositive();
+        underTest.publish(loaded);
+        assertThat(underTest.getUserGroups("user").get()).containsOnly(entry("developers", "Developers"));
+    }
+
+    @Test
+    public void missing_or_broken_files() throws IOException {
+        File file = new File(temp.getRoot(), "group-index.json");
+        assertThat(AadMembershipIndex.read(file)).isEmpty();
+
+        Files.write(file.toPath(), "{not json".getBytes(StandardCharsets.UTF_8));
+        assertThatThrownBy(() -> AadMembershipIndex.read(file)).isInstanceOf(IOException.class);
+    }
+}
@@ -0,0 +1,150 @@
+/**
+ * Azure Active Directory Authentication Plugin for SonarQube
+ * <p>
+ * Copyright (c) 2022 Michael Johnson
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.almrangers.auth.aad;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.After;
+import org.junit.Test;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.utils.System2;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AadMetricsTest {
+
+    MapSettings settings = new MapSettings();
+    AadSettings aadSettings = new AadSettings(settings.asConfig());
+    AadHttpTransport transport = new AadHttpTransport(aadSettings);
+    AadMetrics underTest = new AadMetrics(new AadGraphClient(aadSettings), transport);
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+    @After
+    public void tearDown() {
+        underTest.stop();
+        transport.stop();
+    }
+
+    @Test
+    public void timed_task_is_recorded_even_when_it_fails() throws Exception {
+        assertThat(underTest.timed(AadMetrics.Stage.CODE_EXCHANGE, () -> "tokens").call()).isEqualTo("tokens");
+        assertThrows(IllegalStateException.class, () -> underTest.timed(AadMetrics.Stage.CODE_EXCHANGE, () -> {
+            throw new IllegalStateException("Refused");
+        }).call());
+
+        assertThat(underTest.histogram(AadMetrics.Stage.CODE_EXCHANGE).getCount()).isEqualTo(2);
+        assertThat(underTest.histogram(AadMetrics.Stage.GROUP_LOOKUP).getCount()).isZero();
+    }
+
+    @Test
+    public void recent_login_latency_covers_the_last_two_windows() {
+        System2 system2 = mock(System2.class);
+        when(system2.now()).thenReturn(0L);
+        AadMetrics recent = new AadMetrics(new AadGraphClient(aadSettings), transport, system2);
+
+        recent.record(AadMetrics.Stage.LOGIN, TimeUnit.MILLISECONDS.toNanos(900));
+        when(system2.now()).thenReturn(TimeUnit.MINUTES.toMillis(6));
+        recent.record(AadMetrics.Stage.LOGIN, TimeUnit.MILLISECONDS.toNanos(30));
+
+        assertThat(recent.getRecentLogins()).isEqualTo(2);
+        assertThat(recent.recentLoginLatencyMillis(99)).isEqualTo(900);
+
+        when(system2.now()).thenReturn(TimeUnit.MINUTES.toMillis(11));
+        assertThat(recent.getRecentLogins()).isEqualTo(1);
+        assertThat(recent.recentLoginLatencyMillis(99)).isEqualTo(30);
+
+        when(system2.now()).thenReturn(TimeUnit.MINUTES.toMillis(30));
+        assertThat(recent.getRecentLogins()).isZero();
+        assertThat(recent.recentLoginLatencyMillis(99)).isZero();
+        assertThat(recent.getLogins()).isEqualTo(2);
+    }
+
+    @Test
+    public void metrics_are_published_over_jmx() throws Exception {
+        underTest.start();
+        underTest.record(AadMetrics.Stage.LOGIN, TimeUnit.MILLISECONDS.toNanos(40));
+        underTest.loginFailed();
+        underTest.graphPageFetched(3);
+
+        ObjectName login = new ObjectName("org.almrangers.auth.aad:type=Login");
+        assertThat(server.getAttribute(login, "Logins")).isEqualTo(1L);
+        assertThat(server.getAttribute(login, "FailedLogins")).isEqualTo(1L);
+        assertThat(server.getAttribute(login, "GraphPages")).isEqualTo(1L);
+        assertThat(server.getAttribute(login, "GraphGroups")).isEqualTo(3L);
+        assertThat(server.getAttribute(login, "GraphRetries")).isEqualTo(0L);
+
+        ObjectName stage = new ObjectName("org.almrangers.auth.aad:type=LoginStage,name=login");
+        assertThat(server.getAttribute(stage, "Count")).isEqualTo(1L);
+        assertThat(server.getAttribute(stage, "P99Millis")).isEqualTo(40.0);
+    }
+
+    @Test
+    public void connection_use_is_published_over_jmx() throws Exception {
+        try (MockWebServer mockWebServer = new MockWebServer()) {
+            mockWebServer.enqueue(new MockResponse().setBody("{\"keys\":[]}"));
+            transport.resourceRetriever().retrieveResource(mockWebServer.url("/keys").url());
+            underTest.start();
+
+            TabularData hosts = (TabularData) server.getAttribute(
+                new ObjectName("org.almrangers.auth.aad:type=Connections,name=azureAd"), "HostStats");
+            CompositeData host = hosts.get(new Object[] {mockWebServer.getHostName()});
+            CompositeData stats = (CompositeData) host.get("value");
+            assertThat(stats.get("requests")).isEqualTo(1L);
+            assertThat(stats.get("connectionsOpened")).isEqualTo(1L);
+            assertThat(server.isRegistered(new ObjectName("org.almrangers.auth.aad:type=Connections,name=graph"))).isTrue();
+        }
+    }
+
+    @Test
+    public void restarted_plugin_replaces_previous_metrics() throws Exception {
+        underTest.start();
+        AadMetrics restarted = new AadMetrics(new AadGraphClient(aadSettings), transport);
+        restarted.start();
+        restarted.loginFailed();
+
+        assertThat(server.getAttribute(new ObjectName("org.almrangers.auth.aad:type=Login"), "FailedLogins")).isEqualTo(1L);
+        restarted.stop();
+    }
+
+    @Test
+    public void stop_unregisters_metrics() throws Exception {
+        underTest.start();
+        underTest.stop();
+
+        assertThat(server.isRegistered(new ObjectName("org.almrangers.auth.aad:type=Login"))).isFalse();
+        assertThat(server.isRegistered(new ObjectName("org.almrangers.auth.aad:type=LoginStage,name=login"))).isFalse();
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * Azure Active Directory Authentication Plugin for SonarQube
+ * <p>
+ * Copyright (c) 2022 Michael Johnson
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.almrangers.auth.aad;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.utils.System2;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AadRateLimiterTest {
+
+    MapSettings settings = new MapSettings();
+    System2 system2 = mock(System2.class);
+    AadRateLimiter underTest = new AadRateLimiter(new AadSettings(settings.asConfig()), system2);
+
+    @Test
+    public void burst_up_to_the_rate_goes_through() throws InterruptedException {
+        settings.setProperty("sonar.auth.aad.graphRequestsPerSecond", 5);
+        settings.setProperty("sonar.auth.aad.graphRateLimitMaxWait", 0);
+
+        for (int i = 0; i < 5; i++) {
+            assertThat(underTest.tryAcquire()).isTrue();
+        }
+        assertThat(underTest.tryAcquire()).isFalse();
+        assertThat(underTest.getRejectedCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void permits_are_refilled_over_time() throws InterruptedException {
+        settings.setProperty("sonar.auth.aad.graphRequestsPerSecond", 2);
+        settings.setProperty("sonar.auth.aad.graphRateLimitMaxWait", 0);
+
+        assertThat(underTest.tryAcquire()).isTrue();
+        assertThat(underTest.tryAcquire()).isTrue();
+        assertThat(underTest.tryAcquire()).isFalse();
+
+        when(system2.now()).thenReturn(500L);
+        assertThat(underTest.tryAcquire()).isTrue();
+        assertThat(underTest.tryAcquire()).isFalse();
+    }
+
+    @Test
+    public void background_callers_always_wait_for_their_turn() throws InterruptedException {
+        settings.setProperty("sonar.auth.aad.graphRequestsPerSecond", 10);
+        settings.setProperty("sonar.auth.aad.graphRateLimitMaxWait", 0);
+
+        for (int i = 0; i < 10; i++) {
+            underTest.acquire();
+        }
+        assertThat(underTest.tryAcquire()).isFalse();
+
+        underTest.acquire();
+        assertThat(underTest.getWaitedCount()).isEqualTo(1);
+        assertThat(underTest.getRejectedCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void callers_wait_briefly_for_their_turn() throws InterruptedException {
+        settings.setProperty("sonar.auth.aad.graphRequestsPerSecond", 10);
+        settings.setProperty("sonar.auth.aad.graphRateLimitMaxWait", 150);
+
+        for (int i = 0; i < 10; i++) {
+            underTest.tryAcquire();
+        }
+
+        long start = System.nanoTime();
+        assertThat(underTest.tryAcquire()).isTrue();
+        assertThat(System.nanoTime() - start).isGreaterThanOrEqualTo(90_000_000L);
+        assertThat(underTest.getWaitedCount()).isEqualTo(1);
+        assertThat(underTest.getWaiting()).isZero();
+
+        // The next turn is 200 ms away, longer than the maximum wait.
+        assertThat(underTest.tryAcquire()).isFalse();
+    }
+
+    @Test
+    public void waiting_callers_are_bounded() throws InterruptedException {
+        settings.setProperty("sonar.auth.aad.graphRequestsPerSecond", 1);
+        settings.setProperty("sonar.auth.aad.graphRateLimitQueueSize", 0);
+
+        assertThat(underTest.tryAcquire()).isTrue();
+        assertThat(underTest.tryAcquire()).isFalse();
+    }
+
+    @Test
+    public void zero_rate_disables_the_limit() throws InterruptedException {
+        settings.setProperty("sonar.auth.aad.graphRequestsPerSecond", 0);
+
+        for (int i = 0; i < 1000; i++) {
+            assertThat(underTest.tryAcquire()).isTrue();
+        }
+    }
+
+    @Before
+    public void setUp() {
+        when(system2.now()).thenReturn(0L);
+    }
+}
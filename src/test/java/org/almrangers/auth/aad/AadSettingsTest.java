@@ -31,8 +31,11 @@ import org.sonar.api.config.PropertyDefinitions;
 import org.sonar.api.config.internal.MapSettings;
 import org.sonar.api.utils.System2;
 
+import java.net.URISyntaxException;
+
 import static org.almrangers.auth.aad.AadSettings.*;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertThrows;
 
 public class AadSettingsTest {
   MapSettings settings = new MapSettings(new PropertyDefinitions(new System2(), AadSettings.definitions()));
@@ -173,8 +176,180 @@ public class AadSettingsTest {
     assertThat(underTest.allowUsersToSignUp()).isFalse();
   }
 
+  @Test
+  public void return_jwks_cache_ttl() {
+    assertThat(underTest.jwksCacheTtl()).isEqualTo(60);
+    settings.setProperty("sonar.auth.aad.jwksCacheTtl", 15);
+    assertThat(underTest.jwksCacheTtl()).isEqualTo(15);
+    settings.setProperty("sonar.auth.aad.jwksCacheTtl", 0);
+    assertThat(underTest.jwksCacheTtl()).isEqualTo(1);
+  }
+
+  @Test
+  public void return_group_cache_settings() {
+    assertThat(underTest.enableGroupCache()).isFalse();
+    assertThat(underTest.groupCacheTtl()).isEqualTo(15);
+    assertThat(underTest.groupCacheMaxEntries()).isEqualTo(10000);
+
+    settings.setProperty("sonar.auth.aad.enableGroupCache", true);
+    settings.setProperty("sonar.auth.aad.groupCacheTtl", 60);
+    settings.setProperty("sonar.auth.aad.groupCacheMaxEntries", 500);
+    assertThat(underTest.enableGroupCache()).isTrue();
+    assertThat(underTest.groupCacheTtl()).isEqualTo(60);
+    assertThat(underTest.groupCacheMaxEntries()).isEqualTo(500);
+  }
+
+  @Test
+  public void return_group_name_cache_ttl() {
+    assertThat(underTest.groupNameCacheTtl()).isEqualTo(60);
+
+    settings.setProperty("sonar.auth.aad.groupNameCacheTtl", 240);
+    assertThat(underTest.groupNameCacheTtl()).isEqualTo(240);
+  }
+
+  @Test
+  public void return_group_source() {
+    assertThat(underTest.groupsFromIdToken()).isFalse();
+
+    settings.setProperty("sonar.auth.aad.groupSource", "ID Token Claim");
+    assertThat(underTest.groupsFromIdToken()).isTrue();
+
+    settings.setProperty("sonar.auth.aad.groupSource", "Microsoft Graph");
+    assertThat(underTest.groupsFromIdToken()).isFalse();
+  }
+
+  @Test
+  public void return_group_filters() {
+    assertThat(underTest.groupNamePrefix()).isEmpty();
+    assertThat(underTest.groupFilter()).isEmpty();
+
+    settings.setProperty("sonar.auth.aad.groupNamePrefix", " sonar- ");
+    settings.setProperty("sonar.auth.aad.groupFilter", "securityEnabled eq true");
+    assertThat(underTest.groupNamePrefix()).contains("sonar-");
+    assertThat(underTest.groupFilter()).contains("securityEnabled eq true");
+  }
+
+  @Test
+  public void return_group_allowlist() {
+    assertThat(underTest.groupAllowlist()).isEmpty();
+
+    settings.setProperty("sonar.auth.aad.groupAllowlist", "Developers, 89fb503f-134f-43cd-aaa7-f21facb2eca3,,Developers");
+    assertThat(underTest.groupAllowlist()).containsExactly("Developers", "89fb503f-134f-43cd-aaa7-f21facb2eca3");
+  }
+
+  @Test
+  public void background_group_sync_max_age_is_at_least_the_interval() {
+    assertThat(underTest.backgroundGroupSyncMaxAge()).isEqualTo(60);
+
+    settings.setProperty("sonar.auth.aad.backgroundGroupSyncMaxAge", 5);
+    assertThat(underTest.backgroundGroupSyncMaxAge()).isEqualTo(10);
+  }
+
+  @Test
+  public void return_background_group_sync() {
+    assertThat(underTest.backgroundGroupSync()).isFalse();
+    assertThat(underTest.backgroundGroupSyncInterval()).isEqualTo(10);
+
+    settings.setProperty("sonar.auth.aad.enableBackgroundGroupSync", true);
+    settings.setProperty("sonar.auth.aad.backgroundGroupSyncInterval", 0);
+    assertThat(underTest.backgroundGroupSync()).isFalse();
+    assertThat(underTest.backgroundGroupSyncInterval()).isEqualTo(1);
+
+    settings.setProperty("sonar.auth.aad.enableGroupsSync", true);
+    settings.setProperty("sonar.auth.aad.enableClientCredential", true);
+    assertThat(underTest.backgroundGroupSync()).isTrue();
+
+    settings.setProperty("sonar.auth.aad.multiTenant", true);
+    assertThat(underTest.backgroundGroupSync()).isFalse();
+  }
+
+  @Test
+  public void return_timeouts() {
+    assertThat(underTest.callbackTimeout()).isEqualTo(30);
+    assertThat(underTest.connectTimeout()).isEqualTo(5);
+    assertThat(underTest.readTimeout()).isEqualTo(10);
+    assertThat(underTest.groupSyncTimeout()).isEqualTo(10);
+
+    // Group lookups can't take longer than the login itself.
+    settings.setProperty("sonar.auth.aad.callbackTimeout", 5);
+    assertThat(underTest.groupSyncTimeout()).isEqualTo(5);
+
+    settings.setProperty("sonar.auth.aad.connectTimeout", 0);
+    assertThat(underTest.connectTimeout()).isEqualTo(1);
+  }
+
+  @Test
+  public void return_graph_max_retries() {
+    assertThat(underTest.graphMaxRetries()).isEqualTo(3);
+    settings.setProperty("sonar.auth.aad.graphMaxRetries", -1);
+    assertThat(underTest.graphMaxRetries()).isZero();
+  }
+
+  @Test
+  public void return_circuit_breaker_settings() {
+    assertThat(underTest.circuitBreakerThreshold()).isEqualTo(5);
+    assertThat(underTest.circuitBreakerOpenDuration()).isEqualTo(30);
+
+    settings.setProperty("sonar.auth.aad.circuitBreakerThreshold", 0);
+    settings.setProperty("sonar.auth.aad.circuitBreakerOpenDuration", 0);
+    assertThat(underTest.circuitBreakerThreshold()).isZero();
+    assertThat(underTest.circuitBreakerOpenDuration()).isEqualTo(1);
+  }
+
+  @Test
+  public void return_graph_rate_limit_settings() {
+    assertThat(underTest.graphRequestsPerSecond()).isEqualTo(50);
+    assertThat(underTest.graphRateLimitMaxWait()).isEqualTo(1000);
+    assertThat(underTest.graphRateLimitQueueSize()).isEqualTo(100);
+
+    settings.setProperty("sonar.auth.aad.graphRequestsPerSecond", -5);
+    assertThat(underTest.graphRequestsPerSecond()).isZero();
+  }
+
+  @Test
+  public void snapshot_parses_connection_settings() throws Exception {
+    settings.setProperty("sonar.auth.aad.clientId.secured", "id");
+    settings.setProperty("sonar.auth.aad.clientSecret.secured", "secret");
+    settings.setProperty("sonar.auth.aad.tenantId", "tenantId");
+    settings.setProperty("sonar.auth.aad.directoryLocation", "Azure AD China");
+
+    AadSettings.Snapshot snapshot = underTest.snapshot();
+    assertThat(snapshot.clientId().getValue()).isEqualTo("id");
+    assertThat(snapshot.clientSecret().getValue()).isEqualTo("secret");
+    assertThat(snapshot.authorizationUri()).hasToString("https://login.chinacloudapi.cn/tenantId/oauth2/v2.0/authorize");
+    assertThat(snapshot.authorityUri()).hasToString("https://login.chinacloudapi.cn/tenantId/oauth2/v2.0/token");
+    assertThat(snapshot.jwkKeysUrl()).isEqualTo("https://login.chinacloudapi.cn/tenantId/discovery/keys");
+    assertThat(snapshot.graphScope()).hasToString("https://microsoftgraph.chinacloudapi.cn/.default");
+  }
+
+  @Test
+  public void snapshot_is_rebuilt_only_when_connection_settings_change() {
+    settings.setProperty("sonar.auth.aad.tenantId", "tenantId");
+    AadSettings.Snapshot snapshot = underTest.snapshot();
+
+    settings.setProperty("sonar.auth.aad.groupCacheTtl", 5);
+    assertThat(underTest.snapshot()).isSameAs(snapshot);
+
+    settings.setProperty("sonar.auth.aad.tenantId", "otherTenant");
+    assertThat(underTest.snapshot()).isNotSameAs(snapshot);
+    assertThat(underTest.snapshot().jwkKeysUrl()).isEqualTo("https://login.microsoftonline.com/otherTenant/discovery/keys");
+  }
+
+  @Test
+  public void snapshot_without_client_id() {
+    assertThat(underTest.snapshot().clientId()).isNull();
+    assertThat(underTest.snapshot().clientIdValue()).isEmpty();
+  }
+
+  @Test
+  public void invalid_url_fails_when_used() {
+    settings.setProperty("sonar.auth.aad.tenantId", "tenant with spaces");
+
+    assertThrows(URISyntaxException.class, () -> underTest.snapshot().authorityUri());
+  }
+
   @Test
   public void definitions() {
-    assertThat(AadSettings.definitions()).hasSize(9);
+    assertThat(AadSettings.definitions()).hasSize(32);
   }
 }
@@ -29,34 +29,32 @@ import com.nimbusds.jose.JOSEException;
 import com.nimbusds.jose.JWSAlgorithm;
 import com.nimbusds.jose.JWSHeader;
 import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.jwk.JWKSet;
 import com.nimbusds.jose.jwk.RSAKey;
 import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+import com.nimbusds.jose.jwk.source.ImmutableJWKSet;
 import com.nimbusds.jose.proc.BadJOSEException;
+import com.nimbusds.jose.proc.SecurityContext;
 import com.nimbusds.jwt.JWTClaimsSet;
 import com.nimbusds.jwt.SignedJWT;
+import com.nimbusds.jwt.proc.ConfigurableJWTProcessor;
 import com.nimbusds.oauth2.sdk.http.HTTPResponse;
 import com.nimbusds.oauth2.sdk.token.AccessToken;
 import com.nimbusds.oauth2.sdk.token.BearerAccessToken;
 import com.nimbusds.oauth2.sdk.token.RefreshToken;
 import com.nimbusds.openid.connect.sdk.OIDCTokenResponse;
 import com.nimbusds.openid.connect.sdk.token.OIDCTokens;
-import okhttp3.HttpUrl;
-import okhttp3.mockwebserver.MockResponse;
-import okhttp3.mockwebserver.MockWebServer;
 import org.junit.Before;
 import org.junit.Test;
 import org.sonar.api.config.internal.MapSettings;
 import org.sonar.api.server.authentication.UnauthorizedException;
 
-import java.io.IOException;
 import java.util.Calendar;
 import java.util.Date;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
-import static org.mockito.Mockito.doReturn;
-import static org.mockito.Mockito.spy;
 
 public class AadTokenHelperTest {
 
@@ -98,24 +96,11 @@ public class AadTokenHelperTest {
     }
 
     @Test
-    public void validate_id_token() throws IOException, BadJOSEException, JOSEException {
-        MockWebServer mockWebServer = new MockWebServer();
-        mockWebServer.enqueue(
-            new MockResponse().setBody("{\"keys\": [" +
-                rsaPublicJwk.toJSONString() +
-                "]}")
-        );
-
-        mockWebServer.start();
-
-        HttpUrl baseUrl = mockWebServer.url("/common/discovery/keys");
-
-        AadSettings spySettings = spy(aadSettings);
-        doReturn(baseUrl.toString()).when(spySettings).jwkKeysUrl();
-
-        assertThat(AadTokenHelper.validateIdToken(testIdToken, spySettings)).isTrue();
+    public void build_id_token_processor() throws BadJOSEException, JOSEException {
+        ConfigurableJWTProcessor<SecurityContext> processor =
+            AadTokenHelper.buildIdTokenProcessor("testAudience", new ImmutableJWKSet<>(new JWKSet(rsaPublicJwk)));
 
-        mockWebServer.close();
+        assertThat(processor.process(testIdToken, null).getClaim("oid")).isEqualTo("testOid");
     }
 
     @Before
@@ -30,15 +30,8 @@ import static org.assertj.core.api.Assertions.assertThat;
 import java.text.ParseException;
 import java.util.*;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonObject;
-import com.microsoft.graph.logger.DefaultLogger;
-import com.microsoft.graph.requests.DirectoryObjectCollectionResponse;
-import com.microsoft.graph.requests.DirectoryObjectCollectionWithReferencesPage;
-import com.microsoft.graph.serializer.DefaultSerializer;
 import com.nimbusds.jwt.JWTClaimsSet;
 import com.nimbusds.jwt.PlainJWT;
-import com.nimbusds.oauth2.sdk.token.BearerAccessToken;
 import org.junit.Before;
 import org.junit.Test;
 import org.sonar.api.server.authentication.UserIdentity;
@@ -61,46 +54,45 @@ public class AadUserInfoTest {
     PlainJWT testIdTokenNoUsername;
     AadUserInfo userInfo;
 
-    // A group object for testing the group parser
-    DirectoryObjectCollectionWithReferencesPage memberGroupCollection;
-
     @Test
     public void test_token_parsing() throws ParseException {
-        userInfo = new AadUserInfo(testIdToken, new BearerAccessToken(), false);
+        userInfo = new AadUserInfo(testIdToken);
 
         assertThat(userInfo).isInstanceOf(AadUserInfo.class);
     }
 
     @Test
     public void test_token_claims() throws ParseException {
-        userInfo = new AadUserInfo(testIdToken, new BearerAccessToken(), false);
+        userInfo = new AadUserInfo(testIdToken);
 
         assertThat(userInfo.getDisplayId()).isEqualTo(testUserUsername);
         assertThat(userInfo.getDisplayName()).isEqualTo(testUserName);
         assertThat(userInfo.getUserEmail()).isEqualTo(testUserMail);
+        assertThat(userInfo.getUserOid()).isEqualTo(testOid);
+        assertThat(userInfo.getTenantId()).isEqualTo(testTennantId);
 
         // No groups were parsed, so we should get an empty set
         assertThat(userInfo.getUserGroups()).isEqualTo(Collections.emptySet());
 
         // Test for the "no name claim" scenario
-        userInfo = new AadUserInfo(testIdTokenNoName, new BearerAccessToken(), false);
+        userInfo = new AadUserInfo(testIdTokenNoName);
 
         assertThat(userInfo.getDisplayName()).isEqualTo("No name provided");
 
         // Test for the "no email claim" scenario
-        userInfo = new AadUserInfo(testIdTokenNoMail, new BearerAccessToken(), false);
+        userInfo = new AadUserInfo(testIdTokenNoMail);
 
         assertThat(userInfo.getUserEmail()).isEqualTo(testUserUsername);
 
         // Test for the "no username claim" scenario
-        userInfo = new AadUserInfo(testIdTokenNoUsername, new BearerAccessToken(), false);
+        userInfo = new AadUserInfo(testIdTokenNoUsername);
 
         assertThat(userInfo.getDisplayId()).isEqualTo(testUserMail);
     }
 
     @Test
     public void returns_user_id_builder() throws ParseException {
-        userInfo = new AadUserInfo(testIdToken, new BearerAccessToken(), false);
+        userInfo = new AadUserInfo(testIdToken);
 
         UserIdentity userId = userInfo.buildUserId(true).build();
 
@@ -113,31 +105,42 @@ public class AadUserInfoTest {
     }
 
     @Test
-    // This tests that parsing will still work without errors in the event that the
-    // group fetch doesn't work. For this test, it's because of an invalid token.
-    public void test_empty_group_parsing() throws ParseException {
-        userInfo = new AadUserInfo(testIdToken, new BearerAccessToken(), true);
-
-        assertThat(userInfo).isInstanceOf(AadUserInfo.class);
-        assertThat(userInfo.getUserGroups()).isEqualTo(Collections.emptySet());
-    }
+    public void parses_groups_claim() throws ParseException {
+        userInfo = new AadUserInfo(testIdToken);
 
-    @Test
-    public void parse_member_groups() throws ParseException {
-        Set<String> expectedGroups = new HashSet<>(Arrays.asList("Administrators", "Developers"));
+        assertThat(userInfo.getGroupIds()).isEmpty();
+        assertThat(userInfo.hasGroupOverage()).isFalse();
 
-        userInfo = new AadUserInfo(testIdToken, new BearerAccessToken(), false);
+        userInfo = new AadUserInfo(new PlainJWT(
+            new JWTClaimsSet.Builder(testIdToken.getJWTClaimsSet())
+                .claim("groups", Arrays.asList("89fb503f-134f-43cd-aaa7-f21facb2eca3", "d595c0e2-28f4-4a52-8ec5-58eab17309f8"))
+                .build()));
 
-        Set<String> memberships = userInfo.processMemberGroupCollection(memberGroupCollection);
+        assertThat(userInfo.getGroupIds()).contains(Arrays.asList("89fb503f-134f-43cd-aaa7-f21facb2eca3", "d595c0e2-28f4-4a52-8ec5-58eab17309f8"));
+        assertThat(userInfo.hasGroupOverage()).isFalse();
+    }
 
-        assertThat(memberships).isEqualTo(expectedGroups);
+    @Test
+    public void detects_group_overage() throws ParseException {
+        userInfo = new AadUserInfo(new PlainJWT(
+            new JWTClaimsSet.Builder(testIdToken.getJWTClaimsSet())
+                .claim("_claim_names", Collections.singletonMap("groups", "src1"))
+                .build()));
+
+        assertThat(userInfo.getGroupIds()).isEmpty();
+        assertThat(userInfo.hasGroupOverage()).isTrue();
+
+        userInfo = new AadUserInfo(new PlainJWT(
+            new JWTClaimsSet.Builder(testIdToken.getJWTClaimsSet())
+                .claim("hasgroups", true)
+                .build()));
+
+        assertThat(userInfo.getGroupIds()).isEmpty();
+        assertThat(userInfo.hasGroupOverage()).isTrue();
     }
 
     @Before
     public void setUp() {
-        // Build the object for parsing AAD Group Responses
-        createAadGroupResponse();
-
         // Get current date/time for the test token
         Calendar testCalendar = Calendar.getInstance();
         Date currentTestDate = testCalendar.getTime();
@@ -222,32 +225,4 @@ public class AadUserInfoTest {
                 .claim("ver", "2.0")
                 .build());
     }
-
-    void createAadGroupResponse() {
-        // This object is a direct copy of the MS Graph response with the ID
-        // being changed from the real value.
-        JsonObject jsonObj = new Gson().fromJson("{\n" +
-                "  \"@odata.context\": \"https://graph.microsoft.com/v1.0/$metadata#directoryObjects(id,displayName)\",\n" +
-                "  \"value\": [\n" +
-                "    {\n" +
-                "      \"@odata.type\": \"#microsoft.graph.group\",\n" +
-                "      \"id\": \"89fb503f-134f-43cd-aaa7-f21facb2eca3\",\n" +
-                "      \"displayName\": \"Developers\"\n" +
-                "    },\n" +
-                "    {\n" +
-                "      \"@odata.type\": \"#microsoft.graph.group\",\n" +
-                "      \"id\": \"d595c0e2-28f4-4a52-8ec5-58eab17309f8\",\n" +
-                "      \"displayName\": \"Administrators\"\n" +
-                "    }\n" +
-                "  ]\n" +
-                "}",
-            JsonObject.class);
-
-        DefaultSerializer serializer = new DefaultSerializer(new DefaultLogger());
-
-        DirectoryObjectCollectionResponse memberResponse = serializer.deserializeObject(jsonObj, DirectoryObjectCollectionResponse.class);
-
-        assert memberResponse != null;
-        memberGroupCollection = new DirectoryObjectCollectionWithReferencesPage(memberResponse, null);
-    }
 }
@@ -0,0 +1,184 @@
+/**
+ * Azure Active Directory Authentication Plugin for SonarQube
+ * <p>
+ * Copyright (c) 2022 Michael Johnson
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.almrangers.auth.aad;
+
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonar.api.config.internal.MapSettings;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.spy;
+
+public class AadWarmUpTest {
+
+    MapSettings settings = new MapSettings();
+    AadSettings spySettings = spy(new AadSettings(settings.asConfig()));
+    MockWebServer mockWebServer = new MockWebServer();
+    AadHttpTransport transport;
+    AadJwkSource jwkSource;
+    AadGraphClient graphClient;
+    AadWarmUp underTest;
+
+    @Test
+    public void keys_are_loaded_in_the_background_at_startup() throws Exception {
+        mockWebServer.enqueue(new MockResponse().setBody(
+            new JWKSet(new RSAKeyGenerator(2048).keyID("first").generate().toPublicJWK()).toString()));
+
+        underTest.start();
+        underTest.warmUpTask().get(10, TimeUnit.SECONDS);
+
+        assertThat(jwkSource.keysFetchedAt()).isPresent();
+        assertThat(jwkSource.keyIds()).containsExactly("first");
+    }
+
+    @Test
+    public void failed_warm_up_does_not_fail_startup() throws Exception {
+        mockWebServer.enqueue(new MockResponse().setResponseCode(500));
+
+        underTest.start();
+        underTest.warmUpTask().get(10, TimeUnit.SECONDS);
+
+        assertThat(jwkSource.keysFetchedAt()).isEmpty();
+    }
+
+    @Test
+    public void graph_connection_is_opened_with_the_client_token() throws Exception {
+        settings.setProperty("sonar.auth.aad.enableGroupsSync", true);
+        settings.setProperty("sonar.auth.aad.enableClientCredential", true);
+        mockWebServer.setDispatcher(new WarmUpDispatcher());
+
+        underTest.start();
+        underTest.warmUpTask().get(10, TimeUnit.SECONDS);
+
+        RecordedRequest graphRequest = takeRequest("/v1.0/organization");
+        assertThat(graphRequest.getRequestUrl().queryParameter("$select")).isEqualTo("id");
+        assertThat(graphRequest.getHeader("Authorization")).isEqualTo("Bearer graphToken");
+        assertThat(graphClient.getHostStats().get(mockWebServer.getHostName()).getConnectionsOpened()).isEqualTo(1);
+    }
+
+    @Test
+    public void graph_connection_is_opened_without_client_credential() throws Exception {
+        settings.setProperty("sonar.auth.aad.enableGroupsSync", true);
+        mockWebServer.setDispatcher(new WarmUpDispatcher());
+
+        underTest.start();
+        underTest.warmUpTask().get(10, TimeUnit.SECONDS);
+
+        // Refused, but the connection is open all the same.
+        assertThat(takeRequest("/v1.0/organization").getHeader("Authorization")).isNull();
+        assertThat(graphClient.getHostStats().get(mockWebServer.getHostName()).getConnectionsOpened()).isEqualTo(1);
+    }
+
+    @Test
+    public void does_nothing_when_disabled() {
+        settings.setProperty("sonar.auth.aad.warmUpOnStartup", false);
+
+        underTest.start();
+
+        assertThat(underTest.warmUpTask()).isNull();
+        assertThat(mockWebServer.getRequestCount()).isZero();
+    }
+
+    @Test
+    public void does_nothing_when_plugin_is_not_enabled() {
+        settings.setProperty("sonar.auth.aad.enabled", false);
+
+        underTest.start();
+
+        assertThat(underTest.warmUpTask()).isNull();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mockWebServer.start();
+        settings.setProperty("sonar.auth.aad.enabled", true);
+        settings.setProperty("sonar.auth.aad.clientId.secured", "client");
+        settings.setProperty("sonar.auth.aad.clientSecret.secured", "secret");
+        doReturn(mockWebServer.url("/common/discovery/keys").toString()).when(spySettings).jwkKeysUrl();
+        doReturn(mockWebServer.url("/common/oauth2/v2.0/token").toString()).when(spySettings).authorityUrl();
+        // Strip the trailing slash so the URL looks like the configured Graph URLs.
+        String graphUrl = mockWebServer.url("/").toString();
+        doReturn(graphUrl.substring(0, graphUrl.length() - 1)).when(spySettings).getGraphURL();
+
+        transport = new AadHttpTransport(spySettings);
+        jwkSource = new AadJwkSource(spySettings, transport);
+        graphClient = new AadGraphClient(spySettings);
+        underTest = new AadWarmUp(spySettings, jwkSource, new AadClientTokenManager(spySettings, transport), graphClient);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        underTest.stop();
+        jwkSource.stop();
+        graphClient.stop();
+        transport.stop();
+        mockWebServer.close();
+    }
+
+    private RecordedRequest takeRequest(String path) throws InterruptedException {
+        for (int i = mockWebServer.getRequestCount(); i > 0; i--) {
+            RecordedRequest request = mockWebServer.takeRequest(1, TimeUnit.SECONDS);
+            if (request != null && request.getPath().startsWith(path)) {
+                return request;
+            }
+        }
+        throw new AssertionError("No request to " + path);
+    }
+
+    // Signing keys, client token and Graph, whichever order they are asked for in.
+    private static final class WarmUpDispatcher extends Dispatcher {
+        @Override
+        public MockResponse dispatch(RecordedRequest request) {
+            String path = request.getPath();
+            if (path.startsWith("/common/discovery/keys")) {
+                return new MockResponse().setBody("{\"keys\": []}");
+            }
+            if (path.startsWith("/common/oauth2/v2.0/token")) {
+                return new MockResponse()
+                    .setHeader("Content-Type", "application/json")
+                    .setBody("{\"access_token\": \"graphToken\", \"token_type\": \"Bearer\", \"expires_in\": 3600}");
+            }
+            if (request.getHeader("Authorization") == null) {
+                return new MockResponse().setResponseCode(401)
+                    .setHeader("Content-Type", "application/json")
+                    .setBody("{\"error\": {\"code\": \"InvalidAuthenticationToken\", \"message\": \"Access token is empty.\"}}");
+            }
+            return new MockResponse()
+                .setHeader("Content-Type", "application/json")
+                .setBody("{\"value\": [{\"id\": \"ff4d5470-f7f3-4603-900d-cb291dc340bd\"}]}");
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/**
+ * Azure Active Directory Authentication Plugin for SonarQube
+ * <p>
+ * Copyright (c) 2022 Michael Johnson
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.almrangers.auth.aad;
+
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.PlainJWT;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonar.api.config.internal.MapSettings;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+
+public class CheckMemberGroupsResolverTest {
+
+    MapSettings settings = new MapSettings();
+    AadSettings spySettings = spy(new AadSettings(settings.asConfig()));
+    MockWebServer mockWebServer = new MockWebServer();
+    AadGraphClient graphClient = new AadGraphClient(spySettings);
+    CheckMemberGroupsResolver underTest = new CheckMemberGroupsResolver(spySettings, graphClient,
+        new AadGroupDirectory(spySettings, graphClient), new AadMetrics(graphClient, mock(AadHttpTransport.class)));
+    AadUserInfo user;
+
+    @Test
+    public void group_ids_are_checked_in_chunks() throws InterruptedException {
+        List<String> groupIds = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            groupIds.add(UUID.randomUUID().toString());
+        }
+        settings.setProperty("sonar.auth.aad.groupAllowlist", String.join(",", groupIds));
+
+        mockWebServer.enqueue(groupsResponse(groupIds));
+        mockWebServer.enqueue(memberOfResponse(groupIds.get(0)));
+        mockWebServer.enqueue(memberOfResponse(groupIds.get(24)));
+
+        assertThat(underTest.resolve(user, "token")).containsOnly("group-" + groupIds.get(0), "group-" + groupIds.get(24));
+
+        assertThat(mockWebServer.takeRequest().getPath()).isEqualTo("/v1.0/directoryObjects/microsoft.graph.getByIds");
+        RecordedRequest firstCheck = mockWebServer.takeRequest();
+        assertThat(firstCheck.getPath()).endsWith("/microsoft.graph.checkMemberGroups");
+        assertThat(countIds(firstCheck.getBody().readUtf8(), groupIds)).isEqualTo(20);
+        assertThat(countIds(mockWebServer.takeRequest().getBody().readUtf8(), groupIds)).isEqualTo(5);
+        assertThat(mockWebServer.getRequestCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void group_names_are_resolved_once() throws InterruptedException {
+        settings.setProperty("sonar.auth.aad.groupAllowlist", "Developers,Administrators,O'Brien");
+
+        mockWebServer.enqueue(AadGroupServiceTest.groupsResponse());
+        mockWebServer.enqueue(memberOfResponse(AadGroupDirectoryTest.DEVELOPERS_ID));
+        mockWebServer.enqueue(memberOfResponse(AadGroupDirectoryTest.ADMINISTRATORS_ID));
+
+        assertThat(underTest.resolve(user, "token")).containsOnly("Developers");
+        assertThat(underTest.resolve(user, "token")).containsOnly("Administrators");
+
+        RecordedRequest nameLookup = mockWebServer.takeRequest();
+        assertThat(nameLookup.getRequestUrl().encodedPath()).isEqualTo("/v1.0/groups");
+        assertThat(nameLookup.getRequestUrl().queryParameter("$filter"))
+            .isEqualTo("displayName in ('Developers','Administrators','O''Brien')");
+        assertThat(mockWebServer.getRequestCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void logins_waiting_for_the_name_lookup_are_not_blocked() throws Exception {
+        settings.setProperty("sonar.auth.aad.groupAllowlist", "Developers");
+
+        mockWebServer.enqueue(AadGroupServiceTest.groupsResponse().setHeadersDelay(1, TimeUnit.SECONDS));
+        mockWebServer.enqueue(memberOfResponse(AadGroupDirectoryTest.DEVELOPERS_ID));
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Set<String>> first = executor.submit(() -> underTest.resolve(user, "token"));
+            assertThat(mockWebServer.takeRequest(5, TimeUnit.SECONDS).getRequestUrl().encodedPath()).isEqualTo("/v1.0/groups");
+
+            // A second login waits for the same lookup, and gives up as soon as its deadline interrupts it.
+            CountDownLatch secondDone = new CountDownLatch(1);
+            Future<?> second = executor.submit(() -> {
+                try {
+                    underTest.resolve(user, "token");
+                } finally {
+                    secondDone.countDown();
+                }
+            });
+            Thread.sleep(100);
+            second.cancel(true);
+            assertThat(secondDone.await(300, TimeUnit.MILLISECONDS)).isTrue();
+            assertThat(first.isDone()).isFalse();
+
+            assertThat(first.get(5, TimeUnit.SECONDS)).containsOnly("Developers");
+            assertThat(mockWebServer.getRequestCount()).isEqualTo(2);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException, ParseException {
+        mockWebServer.start();
+        String graphUrl = mockWebServer.url("/").toString();
+        doReturn(graphUrl.substring(0, graphUrl.length() - 1)).when(spySettings).getGraphURL();
+
+        user = new AadUserInfo(new PlainJWT(new JWTClaimsSet.Builder()
+            .claim("name", "John Doe")
+            .claim("oid", "377ae852-940f-4e0a-b154-563b7427a3dc")
+            .claim("preferred_username", "john.doe@example.net")
+            .build()));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        graphClient.stop();
+        mockWebServer.close();
+    }
+
+    private static long countIds(String body, List<String> groupIds) {
+        return groupIds.stream().filter(body::contains).count();
+    }
+
+    static MockResponse memberOfResponse(String... groupIds) {
+        String value = Arrays.stream(groupIds).map(id -> '"' + id + '"').collect(Collectors.joining(","));
+        return new MockResponse()
+            .setHeader("Content-Type", "application/json")
+            .setBody("{\"value\": [" + value + "]}");
+    }
+
+    private static MockResponse groupsResponse(List<String> groupIds) {
+        String value = groupIds.stream()
+            .map(id -> "{\"@odata.type\": \"#microsoft.graph.group\", \"id\": \"" + id + "\", \"displayName\": \"group-" + id + "\"}")
+            .collect(Collectors.joining(","));
+        return new MockResponse()
+            .setHeader("Content-Type", "application/json")
+            .setBody("{\"value\": [" + value + "]}");
+    }
+}
@@ -0,0 +1,137 @@
+/**
+ * Azure Active Directory Authentication Plugin for SonarQube
+ * <p>
+ * Copyright (c) 2022 Michael Johnson
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.almrangers.auth.aad;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class SingleFlightTest {
+
+    SingleFlight<String, String> underTest = new SingleFlight<>();
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+
+    AtomicInteger calls = new AtomicInteger();
+    CountDownLatch release = new CountDownLatch(1);
+
+    @Test
+    public void concurrent_calls_share_one_load() throws Exception {
+        Future<String> first = executor.submit(() -> underTest.execute("key", this::blockingLoad));
+        awaitInFlight();
+
+        AtomicReference<String> secondResult = new AtomicReference<>();
+        Thread second = new Thread(() -> {
+            try {
+                secondResult.set(underTest.execute("key", this::blockingLoad));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        second.start();
+        // Only let the load finish once the second caller is parked on it.
+        while (second.getState() != Thread.State.WAITING) {
+            Thread.sleep(10);
+        }
+
+        release.countDown();
+        second.join(5000);
+
+        assertThat(first.get(5, TimeUnit.SECONDS)).isEqualTo("value");
+        assertThat(secondResult.get()).isEqualTo("value");
+        assertThat(calls.get()).isEqualTo(1);
+        assertThat(underTest.inFlightCount()).isZero();
+    }
+
+    @Test
+    public void different_keys_load_independently() throws Exception {
+        release.countDown();
+
+        assertThat(underTest.execute("first", this::blockingLoad)).isEqualTo("value");
+        assertThat(underTest.execute("second", this::blockingLoad)).isEqualTo("value");
+        assertThat(underTest.execute("first", this::blockingLoad)).isEqualTo("value");
+        assertThat(calls.get()).isEqualTo(3);
+    }
+
+    @Test
+    public void failures_are_shared_and_not_remembered() throws Exception {
+        CompletableFuture<String> failed = underTest.submit("key", () -> {
+            throw new IllegalStateException("boom");
+        }, executor);
+
+        assertThatThrownBy(failed::get)
+            .isInstanceOf(ExecutionException.class)
+            .hasCauseInstanceOf(IllegalStateException.class);
+
+        assertThatThrownBy(() -> underTest.execute("key", () -> {
+            throw new IllegalStateException("boom again");
+        })).isInstanceOf(IllegalStateException.class).hasMessage("boom again");
+
+        release.countDown();
+        assertThat(underTest.submit("key", this::blockingLoad, executor).get(5, TimeUnit.SECONDS)).isEqualTo("value");
+    }
+
+    @Test
+    public void submitted_calls_share_one_future() throws Exception {
+        CompletableFuture<String> first = underTest.submit("key", this::blockingLoad, executor);
+        CompletableFuture<String> second = underTest.submit("key", this::blockingLoad, executor);
+
+        assertThat(second).isSameAs(first);
+
+        release.countDown();
+        assertThat(first.get(5, TimeUnit.SECONDS)).isEqualTo("value");
+        assertThat(calls.get()).isEqualTo(1);
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        executor.shutdownNow();
+    }
+
+    private String blockingLoad() throws InterruptedException {
+        calls.incrementAndGet();
+        release.await(5, TimeUnit.SECONDS);
+        return "value";
+    }
+
+    private void awaitInFlight() throws InterruptedException {
+        while (calls.get() == 0) {
+            Thread.sleep(10);
+        }
+    }
+}
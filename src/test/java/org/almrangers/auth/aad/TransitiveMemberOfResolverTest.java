@@ -0,0 +1,88 @@
+/**
+ * Azure Active Directory Authentication Plugin for SonarQube
+ * <p>
+ * Copyright (c) 2022 Michael Johnson
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.almrangers.auth.aad;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.microsoft.graph.logger.DefaultLogger;
+import com.microsoft.graph.requests.GroupCollectionPage;
+import com.microsoft.graph.requests.GroupCollectionResponse;
+import com.microsoft.graph.serializer.DefaultSerializer;
+import org.junit.Test;
+import org.sonar.api.config.internal.MapSettings;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class TransitiveMemberOfResolverTest {
+
+    MapSettings settings = new MapSettings();
+    AadSettings aadSettings = new AadSettings(settings.asConfig());
+    AadGraphClient graphClient = new AadGraphClient(aadSettings);
+    AadMetrics metrics = new AadMetrics(graphClient, mock(AadHttpTransport.class));
+    TransitiveMemberOfResolver underTest = new TransitiveMemberOfResolver(aadSettings, graphClient, metrics);
+
+    Set<String> expectedGroups = new HashSet<>(Arrays.asList("Administrators", "Developers"));
+
+    @Test
+    public void parse_member_groups() {
+        // This object is a direct copy of the MS Graph response with the ID
+        // being changed from the real value.
+        JsonObject jsonObj = new Gson().fromJson(AadGroupServiceTest.GROUPS_RESPONSE, JsonObject.class);
+
+        DefaultSerializer serializer = new DefaultSerializer(new DefaultLogger());
+
+        GroupCollectionResponse memberResponse = serializer.deserializeObject(jsonObj, GroupCollectionResponse.class);
+
+        assert memberResponse != null;
+        GroupCollectionPage memberGroupCollection = new GroupCollectionPage(memberResponse, null);
+
+        assertThat(underTest.processMemberGroupCollection(memberGroupCollection, Collections.emptyList())).isEqualTo(expectedGroups);
+    }
+
+    @Test
+    public void name_prefix_is_escaped() {
+        settings.setProperty("sonar.auth.aad.groupNamePrefix", "O'Brien ");
+
+        assertThat(underTest.membershipFilter()).contains("startswith(displayName,'O''Brien')");
+    }
+
+    @Test
+    public void filters_are_combined() {
+        assertThat(underTest.membershipFilter()).isEmpty();
+
+        settings.setProperty("sonar.auth.aad.groupFilter", "securityEnabled eq true");
+        assertThat(underTest.membershipFilter()).contains("securityEnabled eq true");
+
+        settings.setProperty("sonar.auth.aad.groupNamePrefix", "sonar-");
+        assertThat(underTest.membershipFilter()).contains("startswith(displayName,'sonar-') and (securityEnabled eq true)");
+    }
+}